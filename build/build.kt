@@ -18,6 +18,26 @@ val terrainTest by configuration("Terrain testing") {
     runOptions modify { it - "-XstartOnFirstThread"}
 }
 
+val animalBenchmark by configuration("Headless animal simulation benchmark") {
+    mainClass set { "com.darkyen.paragrowth.animal.AnimalBenchmark" }
+    runOptions modify { it - "-XstartOnFirstThread"}
+}
+
+val compileDictionary by configuration("Compiles word lists in packed resources into a dictionary") {
+    mainClass set { "com.darkyen.paragrowth.DictionaryCompiler" }
+    runOptions modify { it - "-XstartOnFirstThread"}
+}
+
+val compileAnimalMeshes by configuration("Compiles OBJ models of animals in packed resources into a binary mesh") {
+    mainClass set { "com.darkyen.paragrowth.animal.AnimalMeshCompiler" }
+    runOptions modify { it - "-XstartOnFirstThread"}
+}
+
+val textBatch by configuration("Headless batch analysis of text corpora into world characteristics") {
+    mainClass set { "com.darkyen.paragrowth.TextBatch" }
+    runOptions modify { it - "-XstartOnFirstThread"}
+}
+
 val paragrowth by project {
     projectName set { "paragrowth" }
     projectGroup set { "com.darkyen" }
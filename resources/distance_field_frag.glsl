@@ -0,0 +1,15 @@
+#version 330
+
+in vec4 v_color;
+in vec2 v_texCoords;
+out vec4 fragmentColor;
+
+uniform sampler2D u_texture;
+// Half of the distance which one screen pixel covers
+uniform float u_smoothing;
+
+void main() {
+  float distance = texture(u_texture, v_texCoords).a;
+  float alpha = smoothstep(0.5 - u_smoothing, 0.5 + u_smoothing, distance);
+  fragmentColor = vec4(v_color.rgb, v_color.a * alpha);
+}
@@ -2,10 +2,12 @@
 
 in vec4 a_letter_xywh;
 in vec4 a_letter_uvu2v2;
-in vec3 a_position_xyz;
+in float a_word;
 in vec4 a_color;
 
 uniform mat4 u_projViewTrans;
+// Position (xyz) and alpha (w) of each word
+uniform vec4 u_word_position_alpha[MAX_PLACED_WORDS];
 
 flat out vec3 v_color;
 out vec2 v_uv;
@@ -14,12 +16,13 @@ const vec2 faceMultipliers[4] = vec2[4](vec2(0, 0), vec2(0, 1), vec2(1, 1), vec2
 
 void main() {
 	vec2 faceMultiplier = faceMultipliers[gl_VertexID & 3];
+	vec4 word = u_word_position_alpha[int(a_word)];
 
 	vec2 xy = a_letter_xywh.xy + faceMultiplier * a_letter_xywh.zw;
 	v_uv = mix(a_letter_uvu2v2.xy, a_letter_uvu2v2.zw, faceMultiplier);
 	v_color = a_color.rgb;
 
-	vec4 screenSpacePos = u_projViewTrans * vec4(a_position_xyz, 1.0);
-	screenSpacePos.xy += xy * (1.0 / 40.0) * a_color.a;
+	vec4 screenSpacePos = u_projViewTrans * vec4(word.xyz, 1.0);
+	screenSpacePos.xy += xy * (1.0 / 40.0) * word.w;
 	gl_Position = screenSpacePos;
 }
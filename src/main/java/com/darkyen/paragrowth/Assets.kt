@@ -0,0 +1,94 @@
+package com.darkyen.paragrowth
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.graphics.Pixmap
+import com.badlogic.gdx.graphics.Texture
+import com.badlogic.gdx.scenes.scene2d.ui.Skin
+import com.darkyen.paragrowth.animal.loadAnimalModels
+import com.darkyen.paragrowth.font.FontLoader
+import com.darkyen.paragrowth.render.MeshBlob
+import com.darkyen.paragrowth.util.*
+
+/**
+ * Assets which are loaded before the game starts, see [load].
+ */
+object Assets {
+
+    /** How long may the [ParagrowthMain.assetManager] work each frame */
+    private const val ASSET_MANAGER_BUDGET_MILLIS = 3
+
+    lateinit var skin:Skin
+        private set
+    lateinit var waterDisplacement:Texture
+        private set
+    lateinit var waterNormal:Texture
+        private set
+
+    /** Loaded animal models, until the [com.darkyen.paragrowth.animal.AnimalWorld] which needs them takes them */
+    @Volatile
+    private var animalModels:MeshBlob? = null
+
+    /** @return animal models, if they were loaded and not taken yet */
+    internal fun takeAnimalModels():MeshBlob? {
+        val models = animalModels
+        animalModels = null
+        return models
+    }
+
+    /**
+     * Start loading of all assets. Decoding and parsing is done in parallel on worker threads,
+     * uploads are done by [GlJobs] and the [ParagrowthMain.assetManager] is updated when polled,
+     * so the returned [Delayed] must be polled each frame, after [GlJobs.drain].
+     */
+    fun load():Delayed<Unit> {
+        return TaskContext(CancellationToken(), Priority.VISIBLE).within {
+            allOf(
+                    loadWithAssetManager("UISkin.json", Skin::class.java) { skin = it },
+                    loadTexture("Water_001_DISP.png") { waterDisplacement = it },
+                    loadTexture("Water_001_NORM.jpg") { waterNormal = it },
+                    // Both fonts use Avara, shared through the cache of FontLoader
+                    offload {
+                        FontLoader.prepareDynamicDistanceFieldFont(Gdx.files.local("Avara.ttf"), 50, FontLoader.ASCII)
+                    }.mapOnGlThread { it.update() },
+                    offload { animalModels = loadAnimalModels() },
+                    offload { TextAnalyzer.get(); Unit }
+            )
+        }
+    }
+
+    private fun loadTexture(file:String, set:(Texture) -> Unit):Delayed<Unit> {
+        return offload { Pixmap(Gdx.files.local(file)) }.mapOnGlThread { pixmap ->
+            set(Texture(pixmap))
+            pixmap.dispose()
+        }
+    }
+
+    private fun <T:Any> loadWithAssetManager(file:String, type:Class<T>, set:(T) -> Unit):Delayed<Unit> {
+        val assetManager = ParagrowthMain.assetManager
+        assetManager.load(file, type)
+        val loadContext = TaskContext.current()
+
+        return object : Delayed<Unit> {
+            override val context:TaskContext
+                get() = loadContext
+
+            override val progress:Float
+                get() = assetManager.progress
+
+            override fun poll(): Unit? {
+                context.token.check()
+                if (!assetManager.update(ASSET_MANAGER_BUDGET_MILLIS)) {
+                    return null
+                }
+                set(assetManager.get(file, type))
+                return Unit
+            }
+
+            override fun get() {
+                context.token.check()
+                assetManager.finishLoading()
+                set(assetManager.get(file, type))
+            }
+        }
+    }
+}
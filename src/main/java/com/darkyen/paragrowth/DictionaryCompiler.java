@@ -0,0 +1,106 @@
+package com.darkyen.paragrowth;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles word lists from the words folder into a single {@link WordTrie} file,
+ * which {@link TextAnalyzer} then maps instead of parsing the lists on each start.
+ *
+ * Run with the words folder as an argument (defaults to "words") after packing resources.
+ */
+public final class DictionaryCompiler {
+
+    public static final String POSITIVE_FILE = "positive.txt";
+    public static final String NEGATIVE_FILE = "negative.txt";
+    public static final String COLORS_FILE = "colors.txt";
+    public static final String DICTIONARY_FILE = "dictionary.bin";
+
+    private static final Pattern WORD_SPLIT = Pattern.compile("[\\W]+");
+
+    private DictionaryCompiler() {
+    }
+
+    /** @return trie of all word lists in the folder */
+    public static WordTrie compile(File wordsFolder) throws IOException {
+        final WordTrie.Builder builder = new WordTrie.Builder();
+        loadWordSet(builder, new File(wordsFolder, POSITIVE_FILE), WordTrie.POSITIVE);
+        loadWordSet(builder, new File(wordsFolder, NEGATIVE_FILE), WordTrie.NEGATIVE);
+        loadColorMap(builder, new File(wordsFolder, COLORS_FILE));
+        return builder.build();
+    }
+
+    /** @return true if the compiled dictionary exists and is not older than any word list */
+    public static boolean isUpToDate(File wordsFolder) {
+        final long compiled = new File(wordsFolder, DICTIONARY_FILE).lastModified();
+        return compiled != 0L
+                && compiled >= new File(wordsFolder, POSITIVE_FILE).lastModified()
+                && compiled >= new File(wordsFolder, NEGATIVE_FILE).lastModified()
+                && compiled >= new File(wordsFolder, COLORS_FILE).lastModified();
+    }
+
+    private static void loadWordSet(WordTrie.Builder builder, File file, int flag) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            while (true) {
+                final String word = reader.readLine();
+                if (word == null) {
+                    break;
+                }
+                if (!word.isEmpty()) {
+                    builder.addFlags(builder.insert(word), flag);
+                }
+            }
+        }
+    }
+
+    private static void loadColorMap(WordTrie.Builder builder, File file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            final StringBuilder phrase = new StringBuilder();
+            int lineNumber = 0;
+            while (true) {
+                final String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                lineNumber++;
+                final int sep = line.indexOf('\t');
+                if (sep != 6) {
+                    throw new IOException("Invalid line "+lineNumber+" '"+line+"' in "+file);
+                }
+                final int rgb;
+                try {
+                    rgb = Integer.parseInt(line.substring(0, 6), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid color on line "+lineNumber+" '"+line+"' in "+file, e);
+                }
+
+                // Normalize the phrase into words separated by a single space, as seen by the scanner
+                phrase.setLength(0);
+                for (String word : WORD_SPLIT.split(line.substring(sep + 1))) {
+                    if (word.isEmpty()) {
+                        continue;
+                    }
+                    if (phrase.length() > 0) {
+                        phrase.append(' ');
+                    }
+                    phrase.append(word);
+                }
+
+                builder.addColor(builder.insert(phrase), (rgb << 8) | 0xFF);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        final File wordsFolder = new File(args.length > 0 ? args[0] : "words");
+        final long start = System.nanoTime();
+        final WordTrie trie = compile(wordsFolder);
+        final File dictionary = new File(wordsFolder, DICTIONARY_FILE);
+        trie.write(dictionary);
+        System.out.println("Compiled "+dictionary+" ("+dictionary.length()+" bytes) in "+(System.nanoTime() - start) / 1_000_000+" ms");
+    }
+}
@@ -0,0 +1,166 @@
+package com.darkyen.paragrowth;
+
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.IntArray;
+
+/**
+ * Holds a text which is being edited and keeps its {@link TextStatistics} up to date,
+ * so that {@link WorldCharacteristics} can be derived at any time without scanning the whole text again.
+ *
+ * The text is split into segments, which end at points where {@link TextScanner#isQuiet()}, so each segment can be
+ * scanned on its own. An edit re-scans only from the segment in which it starts, until the scan ends up quiet
+ * on an old segment boundary after the edit, from where the old segments are still valid.
+ * Color phrases spanning multiple words are therefore never cut in half.
+ */
+public final class IncrementalTextAnalyzer {
+
+    /** Segments are cut at first quiet point after this many characters */
+    private static final int SEGMENT_LENGTH = 256;
+
+    private final TextScanner scanner = TextAnalyzer.get().createScanner();
+    private final StringBuilder text = new StringBuilder();
+
+    private final Array<TextStatistics> segments = new Array<>(TextStatistics.class);
+    /** Sum of counters of all segments */
+    private final TextStatistics totals = new TextStatistics();
+
+    /** Scratch, for re-scanned segments */
+    private final Array<TextStatistics> newSegments = new Array<>(TextStatistics.class);
+    private final Array<TextStatistics> freeSegments = new Array<>(TextStatistics.class);
+
+    public CharSequence getText() {
+        return text;
+    }
+
+    public int length() {
+        return text.length();
+    }
+
+    public void append(CharSequence append) {
+        replace(text.length(), text.length(), append);
+    }
+
+    public void insert(int at, CharSequence insert) {
+        replace(at, at, insert);
+    }
+
+    public void delete(int start, int end) {
+        replace(start, end, "");
+    }
+
+    public void set(CharSequence newText) {
+        replace(0, text.length(), newText);
+    }
+
+    /** Replace characters in [start, end) with replacement. */
+    public void replace(int start, int end, CharSequence replacement) {
+        if (start < 0 || end > text.length() || start > end) {
+            throw new IndexOutOfBoundsException("["+start+", "+end+") in "+text.length());
+        }
+        final int oldLength = text.length();
+        text.delete(start, end);
+        text.insert(start, replacement);
+        final int delta = text.length() - oldLength;
+        final int editEnd = start + replacement.length();
+
+        // Find the segment in which the edit starts. The last segment was finished, so appending re-scans it.
+        int first = 0;
+        int firstStart = 0;
+        while (first < segments.size && firstStart + segments.get(first).length <= start
+                && !(first == segments.size - 1 && firstStart + segments.get(first).length == oldLength)) {
+            firstStart += segments.get(first).length;
+            first++;
+        }
+
+        // Re-scan until a quiet point on an old boundary after the edit, or until the end
+        int resync = first;
+        int resyncStart = firstStart;
+        final int newLength = text.length();
+        final TextScanner scanner = this.scanner;
+        TextStatistics segment = null;
+        boolean resynced = false;
+        int position = firstStart;
+        while (position < newLength) {
+            if (segment == null) {
+                segment = obtainSegment();
+                scanner.reset(segment, null);
+            }
+            scanner.feed(text.charAt(position++));
+
+            if (!scanner.isQuiet()) {
+                continue;
+            }
+
+            // Advance to the first old boundary which is not before the position
+            while (resync < segments.size && resyncStart + delta < position) {
+                resyncStart += segments.get(resync).length;
+                resync++;
+            }
+            if (position >= editEnd && resync < segments.size && resyncStart + delta == position) {
+                // Rest of the old segments is still valid
+                resynced = true;
+                break;
+            }
+
+            if (segment.length >= SEGMENT_LENGTH) {
+                newSegments.add(segment);
+                segment = null;
+            }
+        }
+        if (!resynced) {
+            resync = segments.size;
+            if (segment != null) {
+                scanner.finish();
+            }
+        }
+        if (segment != null) {
+            newSegments.add(segment);
+        }
+
+        // Replace old segments [first, resync) with new segments
+        for (int i = first; i < resync; i++) {
+            final TextStatistics old = segments.get(i);
+            totals.addCounters(old, -1);
+            freeSegments.add(old);
+        }
+        if (resync > first) {
+            segments.removeRange(first, resync - 1);
+        }
+        for (int i = 0; i < newSegments.size; i++) {
+            final TextStatistics added = newSegments.get(i);
+            totals.addCounters(added, 1);
+            segments.insert(first + i, added);
+        }
+        newSegments.clear();
+    }
+
+    private TextStatistics obtainSegment() {
+        final TextStatistics segment = freeSegments.size > 0 ? freeSegments.pop() : new TextStatistics();
+        segment.reset();
+        return segment;
+    }
+
+    /** @return statistics of the whole text, valid until the next edit */
+    public TextStatistics getStatistics() {
+        final TextStatistics totals = this.totals;
+        final IntArray colorMatches = totals.colorMatches;
+        colorMatches.clear();
+        long hash = 0;
+        long power = 1;
+        for (int i = 0; i < segments.size; i++) {
+            final TextStatistics segment = segments.get(i);
+            colorMatches.addAll(segment.colorMatches);
+            hash = hash * segment.power + segment.hash;
+            power *= segment.power;
+        }
+        totals.hash = hash;
+        totals.power = power;
+        totals.leadingSeparator = segments.size > 0 && segments.first().leadingSeparator;
+        return totals;
+    }
+
+    /** @return characteristics, same as {@link WorldCharacteristics#fromText(CharSequence)} would return for the text */
+    public WorldCharacteristics getCharacteristics() {
+        return WorldCharacteristics.fromStatistics(getStatistics());
+    }
+}
@@ -9,8 +9,8 @@ import com.badlogic.gdx.backends.lwjgl3.Lwjgl3ApplicationConfiguration;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
 import com.badlogic.gdx.graphics.glutils.ShaderProgram;
 import com.badlogic.gdx.scenes.scene2d.ui.Skin;
+import com.darkyen.paragrowth.game.LoadingState;
 import com.darkyen.paragrowth.game.WanderState;
-import com.darkyen.paragrowth.util.AutoReloadShaderProgram;
 
 import java.util.concurrent.ForkJoinPool;
 
@@ -28,8 +28,8 @@ public class ParagrowthMain extends Game {
     public static final ForkJoinPool WORKER_POOL = new ForkJoinPool();
 
     public static final AssetManager assetManager = new AssetManager(new LocalFileHandleResolver());
-    private static Skin skin;
     private static SpriteBatch batch;
+    private static ShaderProgram distanceFieldBatchShader;
 
     @Override
     public void create() {
@@ -41,12 +41,15 @@ public class ParagrowthMain extends Game {
             throw new IllegalStateException("batchShader did not compile:\n"+batchShader.getLog());
         }
         ParagrowthMain.batch = new SpriteBatch(1000, batchShader);
-        assetManager.load("UISkin.json",Skin.class);
-        assetManager.finishLoading();
-
-        ParagrowthMain.skin = assetManager.get("UISkin.json");
+        distanceFieldBatchShader = new ShaderProgram(
+                Gdx.files.local("default_vert.glsl"),
+                Gdx.files.local("distance_field_frag.glsl")
+        );
+        if (!distanceFieldBatchShader.isCompiled()) {
+            throw new IllegalStateException("distanceFieldBatchShader did not compile:\n"+distanceFieldBatchShader.getLog());
+        }
 
-        setScreen(new WanderState(WorldCharacteristics.random(0)));
+        setScreen(new LoadingState(Assets.INSTANCE.load(), () -> new WanderState(WorldCharacteristics.random(0))));
     }
 
     public static void main(String[] args){
@@ -64,7 +67,12 @@ public class ParagrowthMain extends Game {
         return batch;
     }
 
+    /** Shader for {@link #batch()} to draw distance field fonts, set its {@code u_smoothing} after switching to it. */
+    public static ShaderProgram distanceFieldBatchShader() {
+        return distanceFieldBatchShader;
+    }
+
     public static Skin skin() {
-        return skin;
+        return Assets.INSTANCE.getSkin();
     }
 }
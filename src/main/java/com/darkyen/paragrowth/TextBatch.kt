@@ -0,0 +1,178 @@
+@file:JvmName("TextBatch")
+package com.darkyen.paragrowth
+
+import java.io.*
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.ArrayDeque
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.ForkJoinTask
+import java.util.stream.Collectors
+import kotlin.system.exitProcess
+
+private const val USAGE = """Usage: TextBatch <input> [--output <file>] [--words <folder>] [--threads <count>]
+  input     directory, whose every file is a document, or a file, whose every line is a document
+  --output  where to write JSON lines with world characteristics of each document, default is stdout
+  --words   folder with the dictionary, default is 'words'
+  --threads amount of analyzing threads, default is amount of processors"""
+
+/** How many documents per thread can be in flight at once */
+private const val QUEUE_PER_THREAD = 16
+
+private class Document(val id:String, private val path:Path?, private val text:String?) {
+    fun read():String = text ?: String(Files.readAllBytes(path), StandardCharsets.UTF_8)
+}
+
+private fun StringBuilder.appendJsonString(value:String):StringBuilder {
+    append('"')
+    for (c in value) {
+        when {
+            c == '"' -> append("\\\"")
+            c == '\\' -> append("\\\\")
+            c == '\n' -> append("\\n")
+            c == '\r' -> append("\\r")
+            c == '\t' -> append("\\t")
+            c < ' ' -> append("\\u").append(String.format("%04x", c.toInt()))
+            else -> append(c)
+        }
+    }
+    append('"')
+    return this
+}
+
+/** JSON has no NaN nor infinities, those are written as null */
+private fun StringBuilder.appendJsonNumber(value:Float):StringBuilder {
+    return if (value.isFinite()) append(value) else append("null")
+}
+
+/** @return JSON line which reports that the document could not be analyzed */
+private fun error(document:Document, e:Exception):String {
+    return StringBuilder().append("{\"id\":").appendJsonString(document.id)
+            .append(",\"error\":").appendJsonString(e.toString()).append('}').toString()
+}
+
+/** @return JSON line of [WorldCharacteristics] of the document */
+private fun analyze(document:Document):String {
+    val text = try {
+        document.read()
+    } catch (e:IOException) {
+        return error(document, e)
+    }
+    // Failure of one document does not abort the whole batch
+    val c = try {
+        WorldCharacteristics.fromText(text)
+    } catch (e:RuntimeException) {
+        return error(document, e)
+    }
+    val json = StringBuilder(128 + c.colors.size * 11)
+    json.append("{\"id\":").appendJsonString(document.id)
+            .append(",\"length\":").append(text.length)
+            .append(",\"seed\":").append(c.seed)
+            .append(",\"size\":").append(c.size)
+            .append(",\"mood\":").appendJsonNumber(c.mood)
+            .append(",\"coherence\":").appendJsonNumber(c.coherence)
+            .append(",\"colors\":[")
+    for (i in 0 until c.colors.size) {
+        if (i != 0) {
+            json.append(',')
+        }
+        json.append('"').append(c.colors[i].toString()).append('"')
+    }
+    json.append("]}")
+    return json.toString()
+}
+
+private fun forEachDocument(input:File, action:(Document) -> Unit) {
+    if (input.isDirectory) {
+        val root = input.toPath()
+        val files = Files.walk(root).use { paths ->
+            paths.filter { Files.isRegularFile(it) }.sorted().collect(Collectors.toList())
+        }
+        for (file in files) {
+            action(Document(root.relativize(file).toString(), file, null))
+        }
+    } else {
+        input.bufferedReader(StandardCharsets.UTF_8).useLines { lines ->
+            var lineNumber = 0
+            for (line in lines) {
+                lineNumber++
+                action(Document("${input.name}:$lineNumber", null, line))
+            }
+        }
+    }
+}
+
+/**
+ * Headless batch analysis of a corpus, writes [WorldCharacteristics] of each document as JSON lines,
+ * in the order of documents. Documents are analyzed in parallel, but only a bounded amount of them is held in memory.
+ * Throughput is reported to stderr.
+ */
+fun main(args: Array<String>) {
+    var input:File? = null
+    var output:File? = null
+    var wordsFolder = File("words")
+    var threads = Runtime.getRuntime().availableProcessors()
+
+    var i = 0
+    while (i < args.size) {
+        val arg = args[i++]
+        when {
+            arg == "--output" && i < args.size -> output = File(args[i++])
+            arg == "--words" && i < args.size -> wordsFolder = File(args[i++])
+            arg == "--threads" && i < args.size -> threads = args[i++].toIntOrNull()?.takeIf { it > 0 } ?: run {
+                System.err.println(USAGE)
+                exitProcess(1)
+            }
+            input == null && !arg.startsWith("--") -> input = File(arg)
+            else -> {
+                System.err.println(USAGE)
+                exitProcess(1)
+            }
+        }
+    }
+    if (input == null || !input.exists()) {
+        System.err.println(USAGE)
+        exitProcess(1)
+    }
+
+    TextAnalyzer.initialize(if (DictionaryCompiler.isUpToDate(wordsFolder)) {
+        WordTrie.map(File(wordsFolder, DictionaryCompiler.DICTIONARY_FILE))
+    } else {
+        System.err.println("Dictionary in $wordsFolder is missing or outdated, compiling word lists")
+        DictionaryCompiler.compile(wordsFolder)
+    })
+
+    val pool = ForkJoinPool(threads)
+    val maxInFlight = threads * QUEUE_PER_THREAD
+    val inFlight = ArrayDeque<ForkJoinTask<String>>(maxInFlight)
+    var documents = 0L
+    val start = System.nanoTime()
+
+    val out = BufferedWriter(OutputStreamWriter(output?.let { FileOutputStream(it) } ?: FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 1 shl 16)
+    try {
+        fun writeOldest() {
+            out.write(inFlight.removeFirst().join())
+            out.write("\n")
+            documents++
+        }
+
+        forEachDocument(input) { document ->
+            if (inFlight.size >= maxInFlight) {
+                writeOldest()
+            }
+            inFlight.addLast(pool.submit(Callable { analyze(document) }))
+        }
+        while (inFlight.isNotEmpty()) {
+            writeOldest()
+        }
+    } finally {
+        out.close()
+        pool.shutdown()
+    }
+
+    val seconds = (System.nanoTime() - start) / 1_000_000_000.0
+    System.err.println("Analyzed $documents documents in ${"%.2f".format(seconds)} s, " +
+            "${"%.1f".format(documents / seconds)} documents per second, threads: $threads")
+}
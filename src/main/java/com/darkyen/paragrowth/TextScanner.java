@@ -0,0 +1,230 @@
+package com.darkyen.paragrowth;
+
+import java.util.Arrays;
+
+/**
+ * Single pass over text, which collects {@link TextStatistics}.
+ *
+ * Characters are fed one by one and are not retained. Words are runs of {@code [a-zA-Z0-9_]}, compared case-insensitively.
+ * Each word is looked up in {@link WordTrie} as it is being read, and color phrases are matched greedily,
+ * leftmost-longest, over the sequence of words, regardless of what separates them.
+ * Matching keeps a small amount of candidate phrases in progress, so nothing is allocated per word.
+ */
+public final class TextScanner {
+
+    private final WordTrie trie;
+    private TextStatistics out;
+    private ColorMatchListener listener;
+
+    /** Characters consumed so far */
+    private int position;
+
+    // Current word (run of word characters)
+    private boolean inToken;
+    private int tokenNode;
+    private int tokenStart;
+
+    // Current whitespace-delimited word
+    private boolean inWord;
+    private int wordLength;
+
+    // Color phrases in progress, ordered by the word on which they start
+    private int candidateCount;
+    private int[] candidateNode = new int[8];
+    private int[] candidateStart = new int[8];
+    private int[] candidateBestNode = new int[8];
+    private int[] candidateBestEnd = new int[8];
+
+    public TextScanner(WordTrie trie) {
+        this.trie = trie;
+    }
+
+    /** Start scanning a new text into out (which is not reset).
+     * @param listener optional, notified about found color phrases */
+    public void reset(TextStatistics out, ColorMatchListener listener) {
+        this.out = out;
+        this.listener = listener;
+        position = 0;
+        inToken = false;
+        inWord = false;
+        candidateCount = 0;
+    }
+
+    public void feed(CharSequence text) {
+        feed(text, 0, text.length());
+    }
+
+    public void feed(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            feed(text.charAt(i));
+        }
+    }
+
+    private static boolean isWordCharacter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    public void feed(char c) {
+        final TextStatistics out = this.out;
+        if (position++ == 0) {
+            out.leadingSeparator = !isWordCharacter(c);
+        }
+        out.length++;
+        out.hash = 31 * out.hash + c;
+        out.power *= 31;
+
+        if (Character.isLowerCase(c)) {
+            out.lowerCase++;
+        } else if (Character.isUpperCase(c)) {
+            out.upperCase++;
+        } else if (Character.isWhitespace(c)) {
+            out.whitespace++;
+        } else if (!Character.isAlphabetic(c)) {
+            out.other++;
+        }
+
+        if (Character.isWhitespace(c)) {
+            if (inWord) {
+                inWord = false;
+                out.addWord(wordLength);
+            }
+        } else if (inWord) {
+            wordLength++;
+        } else {
+            inWord = true;
+            wordLength = 1;
+        }
+
+        if (isWordCharacter(c)) {
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (!inToken) {
+                inToken = true;
+                tokenNode = WordTrie.ROOT;
+                tokenStart = position - 1;
+                addCandidate(tokenStart);
+            }
+
+            final WordTrie trie = this.trie;
+            if (tokenNode != WordTrie.NONE) {
+                tokenNode = trie.step(tokenNode, c);
+            }
+            final int[] candidateNode = this.candidateNode;
+            for (int i = 0; i < candidateCount; i++) {
+                final int node = candidateNode[i];
+                if (node != WordTrie.NONE) {
+                    candidateNode[i] = trie.step(node, c);
+                }
+            }
+        } else if (inToken) {
+            endToken(position - 1);
+        }
+    }
+
+    private void addCandidate(int start) {
+        final int index = candidateCount++;
+        if (index >= candidateNode.length) {
+            final int newSize = candidateNode.length * 2;
+            candidateNode = Arrays.copyOf(candidateNode, newSize);
+            candidateStart = Arrays.copyOf(candidateStart, newSize);
+            candidateBestNode = Arrays.copyOf(candidateBestNode, newSize);
+            candidateBestEnd = Arrays.copyOf(candidateBestEnd, newSize);
+        }
+        candidateNode[index] = WordTrie.ROOT;
+        candidateStart[index] = start;
+        candidateBestNode[index] = WordTrie.NONE;
+    }
+
+    /** @param end index after the last character of the word */
+    private void endToken(int end) {
+        inToken = false;
+        final TextStatistics out = this.out;
+        final WordTrie trie = this.trie;
+        out.tokens++;
+
+        if (tokenNode != WordTrie.NONE) {
+            final int flags = trie.flags(tokenNode);
+            if ((flags & WordTrie.POSITIVE) != 0) {
+                out.sentiment++;
+            }
+            if ((flags & WordTrie.NEGATIVE) != 0) {
+                out.sentiment--;
+            }
+        }
+
+        final int[] candidateNode = this.candidateNode;
+        for (int i = 0; i < candidateCount; i++) {
+            final int node = candidateNode[i];
+            if (node == WordTrie.NONE) {
+                continue;
+            }
+            if (trie.colorCount(node) > 0) {
+                candidateBestNode[i] = node;
+                candidateBestEnd[i] = end;
+            }
+            // Words of phrases are separated by a single space
+            candidateNode[i] = trie.step(node, ' ');
+        }
+
+        resolveCandidates();
+    }
+
+    /** Emit or discard candidates from the start, as long as they can't grow anymore. */
+    private void resolveCandidates() {
+        while (candidateCount > 0 && candidateNode[0] == WordTrie.NONE) {
+            final int bestNode = candidateBestNode[0];
+            int remove = 1;
+            if (bestNode != WordTrie.NONE) {
+                final int bestEnd = candidateBestEnd[0];
+                out.colorMatches.add(bestNode);
+                if (listener != null) {
+                    listener.colorMatch(candidateStart[0], bestEnd, bestNode);
+                }
+                // Later candidates which start inside this match are no longer valid
+                while (remove < candidateCount && candidateStart[remove] < bestEnd) {
+                    remove++;
+                }
+            }
+            removeCandidates(remove);
+        }
+    }
+
+    private void removeCandidates(int amount) {
+        final int remaining = candidateCount - amount;
+        System.arraycopy(candidateNode, amount, candidateNode, 0, remaining);
+        System.arraycopy(candidateStart, amount, candidateStart, 0, remaining);
+        System.arraycopy(candidateBestNode, amount, candidateBestNode, 0, remaining);
+        System.arraycopy(candidateBestEnd, amount, candidateBestEnd, 0, remaining);
+        candidateCount = remaining;
+    }
+
+    /** @return true if nothing is in progress, so the text fed so far can't affect how the rest is scanned */
+    public boolean isQuiet() {
+        return !inToken && !inWord && candidateCount == 0;
+    }
+
+    /** End the text. Words and phrases in progress are completed. */
+    public void finish() {
+        if (inToken) {
+            endToken(position);
+        }
+        if (inWord) {
+            inWord = false;
+            out.addWord(wordLength);
+        }
+        for (int i = 0; i < candidateCount; i++) {
+            candidateNode[i] = WordTrie.NONE;
+        }
+        resolveCandidates();
+    }
+
+    /** Notified about each color phrase found. */
+    public interface ColorMatchListener {
+        /**
+         * @param start index of the first character of the phrase
+         * @param end index after the last character of the phrase
+         * @param node {@link WordTrie} node of the phrase */
+        void colorMatch(int start, int end, int node);
+    }
+}
@@ -0,0 +1,186 @@
+package com.darkyen.paragrowth;
+
+import com.badlogic.gdx.utils.IntArray;
+
+import java.util.Arrays;
+
+/**
+ * Counters collected from a text by {@link TextScanner}, from which {@link TextAnalyzer} derives mood and coherence.
+ * Also holds found color phrases, as {@link WordTrie} nodes, in the order in which they appear in the text.
+ */
+public final class TextStatistics {
+
+    /** Amount of characters */
+    int length;
+    /** Whether the first character is not a word character */
+    boolean leadingSeparator;
+    /** Polynomial hash of the text, {@code hash = 31 * hash + c} for each character */
+    long hash;
+    /** 31^length, to combine hashes of consecutive texts */
+    long power = 1;
+
+    int upperCase;
+    int lowerCase;
+    int whitespace;
+    int other;
+
+    /** Amount of words (runs of word characters) */
+    int tokens;
+    /** Amount of positive words minus amount of negative words */
+    int sentiment;
+
+    /** Amount of whitespace-delimited words */
+    int words;
+    long totalWordLength;
+    /** Histogram of lengths of whitespace-delimited words */
+    int[] wordLengths = new int[32];
+
+    /** {@link WordTrie} nodes of found color phrases */
+    final IntArray colorMatches = new IntArray();
+
+    public void reset() {
+        length = 0;
+        leadingSeparator = false;
+        hash = 0;
+        power = 1;
+        upperCase = 0;
+        lowerCase = 0;
+        whitespace = 0;
+        other = 0;
+        tokens = 0;
+        sentiment = 0;
+        words = 0;
+        totalWordLength = 0;
+        Arrays.fill(wordLengths, 0);
+        colorMatches.clear();
+    }
+
+    /** Add counters of text which follows this one. Color phrases are not added.
+     * @param sign 1 to add, -1 to remove counters which were previously added */
+    void addCounters(TextStatistics other, int sign) {
+        length += sign * other.length;
+        upperCase += sign * other.upperCase;
+        lowerCase += sign * other.lowerCase;
+        whitespace += sign * other.whitespace;
+        this.other += sign * other.other;
+        tokens += sign * other.tokens;
+        sentiment += sign * other.sentiment;
+        words += sign * other.words;
+        totalWordLength += sign * other.totalWordLength;
+
+        final int[] otherWordLengths = other.wordLengths;
+        if (otherWordLengths.length > wordLengths.length) {
+            wordLengths = Arrays.copyOf(wordLengths, otherWordLengths.length);
+        }
+        for (int i = 0; i < otherWordLengths.length; i++) {
+            wordLengths[i] += sign * otherWordLengths[i];
+        }
+    }
+
+    void addWord(int length) {
+        if (length >= wordLengths.length) {
+            wordLengths = Arrays.copyOf(wordLengths, Math.max(length + 1, wordLengths.length * 2));
+        }
+        wordLengths[length]++;
+        words++;
+        totalWordLength += length;
+    }
+
+    /** @return length of the middle word, when sorted by length */
+    private int medianWordLength() {
+        int remaining = words / 2;
+        final int[] wordLengths = this.wordLengths;
+        for (int length = 0; length < wordLengths.length; length++) {
+            remaining -= wordLengths[length];
+            if (remaining < 0) {
+                return length;
+            }
+        }
+        return 0;
+    }
+
+    /** @return amount of color phrases found */
+    public int colorMatchCount() {
+        return colorMatches.size;
+    }
+
+    /** @return mood of the text, from -1 (negative) to 1 (positive) */
+    public float getMood() {
+        // Empty text and text with a leading separator used to be split with an empty first word
+        final int wordCount = tokens + (length == 0 || leadingSeparator ? 1 : 0);
+        if (tokens == 0) {
+            return 0f;
+        }
+        final int score = sentiment;
+        return Math.copySign((float)Math.pow((double)Math.abs(score) / wordCount, 1.0/4.0), score);
+    }
+
+    /** @return how much does the text look like a normal English prose, from 0 to 1 */
+    public float getCoherence() {
+        if (length == 0) {
+            // Nothing to look like prose
+            return 0f;
+        }
+
+        final float averageWordLength;
+        final int medianWordLength;
+        if (words != 0) {
+            averageWordLength = (float)((double)totalWordLength / (double)words);
+            medianWordLength = medianWordLength();
+        } else {
+            averageWordLength = 0f;
+            medianWordLength = 0;
+        }
+
+        final float upperCasePart = (float)upperCase / length;
+        final float lowerCasePart = (float)lowerCase / length;
+        final float whitespacePart = (float)whitespace / length;
+        final float otherPart = (float)other / length;
+
+        /*
+        Sample values:
+        The Man Behind the Bars by Winifred Louise Taylor
+        Upper: 0.018088255
+        Lower: 0.775302
+        White: 0.18113212
+        Other: 0.025477638
+
+        The Power of Movement in Plants by Charles Darwin and Sir Francis Darwin
+        Upper: 0.015339996
+        Lower: 0.7606471
+        White: 0.1741886
+        Other: 0.049824286
+
+        Mix of multiple books
+        Average: 4.592311
+        Median: 4
+        Upper: 0.019235987
+        Lower: 0.74673826
+        White: 0.18391201
+        Other: 0.050113782
+         */
+
+        final float expectedAverage = 4.59f;
+        final float expectedMedian = 4f;
+        final float expectedUpper = 0.0185f;
+        final float expectedLower = 0.746f;
+        final float expectedWhite = 0.18f;
+        final float expectedOther = 0.04f;
+
+        final float averageDiff = averageWordLength - expectedAverage;
+        final float medianDiff = medianWordLength - expectedMedian;
+        final float upperDiff = upperCasePart - expectedUpper;
+        final float lowerDiff = lowerCasePart - expectedLower;
+        final float whiteDiff = whitespacePart - expectedWhite;
+        final float otherDiff = otherPart - expectedOther;
+
+        final float variance = averageDiff * averageDiff
+                + medianDiff * medianDiff
+                + upperDiff * upperDiff
+                + lowerDiff * lowerDiff
+                + whiteDiff * whiteDiff
+                + otherDiff * otherDiff;
+
+        return 20f / (variance + 20f);
+    }
+}
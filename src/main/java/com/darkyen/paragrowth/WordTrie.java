@@ -0,0 +1,331 @@
+package com.darkyen.paragrowth;
+
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.CharArray;
+import com.badlogic.gdx.utils.IntArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Immutable character trie of all words and phrases known to {@link TextAnalyzer}.
+ *
+ * Keys are lower-case words, phrases have their words separated by a single space.
+ * Each node may carry {@link #POSITIVE}/{@link #NEGATIVE} flags and any amount of colors (RGBA8888).
+ * Children of each node are stored contiguously and sorted by label, so that {@link #step(int, char)}
+ * is a binary search over a few primitive arrays.
+ *
+ * The arrays are views of a single buffer, which can be saved by {@link #write(File)} at build time
+ * and then mapped by {@link #map(File)} at runtime, without parsing anything.
+ */
+public final class WordTrie {
+
+    public static final int ROOT = 0;
+    public static final int NONE = -1;
+
+    public static final int POSITIVE = 1;
+    public static final int NEGATIVE = 2;
+
+    private static final int MAGIC = 0x54574750; // "PGWT" in little endian
+    private static final int VERSION = 1;
+    /** Magic, version, node count, child count, color count */
+    private static final int HEADER_SIZE = 5 * 4;
+
+    /** Whole trie in the binary format, see {@link #write(File)} */
+    private final ByteBuffer data;
+
+    private final IntBuffer childStart;
+    private final IntBuffer childCount;
+    private final IntBuffer flags;
+    private final IntBuffer colorStart;
+    private final IntBuffer colorCount;
+
+    private final CharBuffer childLabel;
+    private final IntBuffer childNode;
+
+    private final IntBuffer colors;
+
+    private WordTrie(ByteBuffer data) {
+        this.data = data.order(ByteOrder.LITTLE_ENDIAN);
+        final int size = data.remaining();
+        if (size < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Not a word trie");
+        }
+        final int nodes = data.getInt(8);
+        final int children = data.getInt(12);
+        final int colors = data.getInt(16);
+        if (nodes < 1 || children != nodes - 1 || colors < 0
+                || (long) HEADER_SIZE + 4L * (5L * nodes + children + colors) + 2L * children != size) {
+            throw new IllegalArgumentException("Word trie is corrupted");
+        }
+
+        final int nodesStart = HEADER_SIZE;
+        childStart = slice(nodesStart, nodes * 4).asIntBuffer();
+        childCount = slice(nodesStart + nodes * 4, nodes * 4).asIntBuffer();
+        flags = slice(nodesStart + nodes * 8, nodes * 4).asIntBuffer();
+        colorStart = slice(nodesStart + nodes * 12, nodes * 4).asIntBuffer();
+        colorCount = slice(nodesStart + nodes * 16, nodes * 4).asIntBuffer();
+        final int childrenStart = nodesStart + nodes * 20;
+        childNode = slice(childrenStart, children * 4).asIntBuffer();
+        final int colorsStart = childrenStart + children * 4;
+        this.colors = slice(colorsStart, colors * 4).asIntBuffer();
+        childLabel = slice(colorsStart + colors * 4, children * 2).asCharBuffer();
+    }
+
+    private ByteBuffer slice(int offset, int length) {
+        final ByteBuffer slice = data.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Map trie previously saved by {@link #write(File)}.
+     * Lookups then go directly to the mapped file, nothing is loaded to the heap.
+     */
+    public static WordTrie map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return new WordTrie(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid dictionary "+file, e);
+        }
+    }
+
+    /**
+     * Save the trie to the file in its binary format, which can be then mapped by {@link #map(File)}.
+     * All values are little endian. After a header (magic, version, node count, child count, color count)
+     * come arrays of ints: child start, child count, flags, color start and color count (all per node),
+     * then child node (per child), colors and finally array of chars: child label (per child).
+     *
+     * The file is replaced atomically, because it may be mapped by a running game, which would crash if it was truncated.
+     */
+    public void write(File file) throws IOException {
+        final File temporary = File.createTempFile("dictionary", ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final ByteBuffer data = this.data.duplicate();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+        }
+    }
+
+    /** @return node reached from node by c, or {@link #NONE} */
+    public int step(int node, char c) {
+        int low = childStart.get(node);
+        int high = low + childCount.get(node) - 1;
+        final CharBuffer childLabel = this.childLabel;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final char label = childLabel.get(mid);
+            if (label < c) {
+                low = mid + 1;
+            } else if (label > c) {
+                high = mid - 1;
+            } else {
+                return childNode.get(mid);
+            }
+        }
+        return NONE;
+    }
+
+    public int flags(int node) {
+        return flags.get(node);
+    }
+
+    /** @return amount of colors of the phrase ending at node */
+    public int colorCount(int node) {
+        return colorCount.get(node);
+    }
+
+    /** @return global index of the color-th color of the node, see {@link #colorRGBA8888(int)} */
+    public int colorIndex(int node, int color) {
+        return colorStart.get(node) + color;
+    }
+
+    /** @return amount of all colors in the trie */
+    public int totalColors() {
+        return colors.limit();
+    }
+
+    public int colorRGBA8888(int colorIndex) {
+        return colors.get(colorIndex);
+    }
+
+    /** Collect all keys, whose node has all given flags. */
+    public void exportKeys(int withFlags, Array<String> out) {
+        exportKeys(ROOT, new StringBuilder(), withFlags, out, null);
+    }
+
+    /** Collect all keys with colors, one for each color, and their colors. */
+    public void exportColors(Array<String> outKeys, IntArray outColors) {
+        exportKeys(ROOT, new StringBuilder(), 0, outKeys, outColors);
+    }
+
+    private void exportKeys(int node, StringBuilder key, int withFlags, Array<String> out, IntArray outColors) {
+        if (outColors != null) {
+            for (int i = 0; i < colorCount.get(node); i++) {
+                out.add(key.toString());
+                outColors.add(colors.get(colorStart.get(node) + i));
+            }
+        } else if (node != ROOT && (flags.get(node) & withFlags) == withFlags) {
+            out.add(key.toString());
+        }
+
+        final int length = key.length();
+        for (int i = childStart.get(node), end = i + childCount.get(node); i < end; i++) {
+            key.append(childLabel.get(i));
+            exportKeys(childNode.get(i), key, withFlags, out, outColors);
+            key.setLength(length);
+        }
+    }
+
+    /** Mutable trie, which can be turned into {@link WordTrie}. */
+    public static final class Builder {
+        private final CharArray label = new CharArray();
+        private final IntArray firstChild = new IntArray();
+        private final IntArray nextSibling = new IntArray();
+        private final IntArray flags = new IntArray();
+        private final IntArray firstColor = new IntArray();
+        private final IntArray lastColor = new IntArray();
+
+        private final IntArray colors = new IntArray();
+        private final IntArray nextColor = new IntArray();
+
+        public Builder() {
+            createNode('\0');
+        }
+
+        private int createNode(char label) {
+            final int node = this.label.size;
+            this.label.add(label);
+            firstChild.add(NONE);
+            nextSibling.add(NONE);
+            flags.add(0);
+            firstColor.add(NONE);
+            lastColor.add(NONE);
+            return node;
+        }
+
+        private int child(int node, char c) {
+            int child = firstChild.get(node);
+            while (child != NONE) {
+                if (label.get(child) == c) {
+                    return child;
+                }
+                child = nextSibling.get(child);
+            }
+            child = createNode(c);
+            nextSibling.set(child, firstChild.get(node));
+            firstChild.set(node, child);
+            return child;
+        }
+
+        /** @return node of the key, created if it does not exist yet */
+        public int insert(CharSequence key) {
+            int node = ROOT;
+            for (int i = 0; i < key.length(); i++) {
+                node = child(node, key.charAt(i));
+            }
+            return node;
+        }
+
+        public void addFlags(int node, int flags) {
+            this.flags.set(node, this.flags.get(node) | flags);
+        }
+
+        public void addColor(int node, int rgba8888) {
+            final int color = colors.size;
+            colors.add(rgba8888);
+            nextColor.add(NONE);
+            final int last = lastColor.get(node);
+            if (last == NONE) {
+                firstColor.set(node, color);
+            } else {
+                nextColor.set(last, color);
+            }
+            lastColor.set(node, color);
+        }
+
+        public WordTrie build() {
+            final int nodeCount = label.size;
+            final int[] childStart = new int[nodeCount];
+            final int[] childCount = new int[nodeCount];
+            final int[] flags = new int[nodeCount];
+            final int[] colorStart = new int[nodeCount];
+            final int[] colorCount = new int[nodeCount];
+            final char[] childLabel = new char[nodeCount - 1];
+            final int[] childNode = new int[nodeCount - 1];
+            final int[] colors = new int[this.colors.size];
+
+            // Renumber in breadth-first order, so that children of each node get consecutive numbers
+            final int[] queue = new int[nodeCount];
+            int queueHead = 0;
+            int queueTail = 0;
+            queue[queueTail++] = ROOT;
+            int children = 0;
+            int colorCursor = 0;
+            final IntArray siblings = new IntArray();
+
+            while (queueHead < queueTail) {
+                final int newNode = queueHead;
+                final int oldNode = queue[queueHead++];
+
+                flags[newNode] = this.flags.get(oldNode);
+                colorStart[newNode] = colorCursor;
+                for (int color = firstColor.get(oldNode); color != NONE; color = nextColor.get(color)) {
+                    colors[colorCursor++] = this.colors.get(color);
+                }
+                colorCount[newNode] = colorCursor - colorStart[newNode];
+
+                siblings.clear();
+                for (int child = firstChild.get(oldNode); child != NONE; child = nextSibling.get(child)) {
+                    siblings.add(child);
+                }
+                // Insertion sort by label, there are few siblings
+                for (int i = 1; i < siblings.size; i++) {
+                    final int sibling = siblings.get(i);
+                    int j = i - 1;
+                    while (j >= 0 && label.get(siblings.get(j)) > label.get(sibling)) {
+                        siblings.set(j + 1, siblings.get(j));
+                        j--;
+                    }
+                    siblings.set(j + 1, sibling);
+                }
+
+                childStart[newNode] = children;
+                childCount[newNode] = siblings.size;
+                for (int i = 0; i < siblings.size; i++) {
+                    final int child = siblings.get(i);
+                    childLabel[children] = label.get(child);
+                    childNode[children] = queueTail;
+                    children++;
+                    queue[queueTail++] = child;
+                }
+            }
+
+            final ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + 4 * (5 * nodeCount + childNode.length + colors.length) + 2 * childLabel.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            data.putInt(MAGIC).putInt(VERSION).putInt(nodeCount).putInt(childNode.length).putInt(colors.length);
+            final IntBuffer ints = data.asIntBuffer();
+            ints.put(childStart).put(childCount).put(flags).put(colorStart).put(colorCount).put(childNode).put(colors);
+            data.position(data.position() + ints.position() * 4);
+            data.asCharBuffer().put(childLabel);
+            data.clear();
+            return new WordTrie(data);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.darkyen.paragrowth
+
+import com.badlogic.gdx.Gdx
+import com.darkyen.paragrowth.terrain.generator.Noise
+import java.io.File
+import java.io.IOException
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+/**
+ * On-disk cache of generated world heightfields, so that worlds with the same seed are not generated again.
+ *
+ * Entries are keyed by seed, size and [GENERATOR_VERSION] and stored as raw [Noise] files, which are mapped
+ * when loaded. Least recently used entries are evicted when the cache grows over [maxBytes].
+ * Thread safe, entries are written to a temporary file first and then atomically moved into place.
+ */
+class WorldCache(private val directory:File, private val maxBytes:Long) {
+
+    private fun entryFile(seed:Long, size:Int):File {
+        return File(directory, "${java.lang.Long.toHexString(seed)}-$size-v$GENERATOR_VERSION$EXTENSION")
+    }
+
+    /** @return cached heightfield or null if there is none */
+    fun load(seed:Long, size:Int):Noise? {
+        val file = entryFile(seed, size)
+        if (!file.isFile) {
+            return null
+        }
+        return try {
+            val noise = FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+                Noise.read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+            }
+            // Mark as recently used
+            file.setLastModified(System.currentTimeMillis())
+            noise
+        } catch (e:IOException) {
+            Gdx.app.error(LOG, "Failed to load $file, removing", e)
+            file.delete()
+            null
+        }
+    }
+
+    fun store(seed:Long, size:Int, noise:Noise) {
+        val file = entryFile(seed, size)
+        try {
+            directory.mkdirs()
+            // Write to a temporary file first, so that nobody can see it incomplete
+            val temporary = File.createTempFile("world", ".tmp", directory)
+            try {
+                FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).use { channel ->
+                    noise.write(channel)
+                }
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            } finally {
+                temporary.delete()
+            }
+        } catch (e:IOException) {
+            Gdx.app.error(LOG, "Failed to store $file", e)
+            return
+        }
+        evict()
+    }
+
+    /** Remove least recently used entries, until the cache fits into [maxBytes]. */
+    @Synchronized
+    private fun evict() {
+        val entries = directory.listFiles { file -> file.name.endsWith(EXTENSION) } ?: return
+        var totalBytes = entries.fold(0L) { total, file -> total + file.length() }
+        if (totalBytes <= maxBytes) {
+            return
+        }
+
+        entries.sortBy { it.lastModified() }
+        for (entry in entries) {
+            if (totalBytes <= maxBytes) {
+                break
+            }
+            val length = entry.length()
+            if (entry.delete()) {
+                totalBytes -= length
+            }
+        }
+    }
+
+    /** @return cached heightfield or a newly generated one, which is then cached */
+    inline fun getOrGenerate(seed:Long, size:Int, generate:() -> Noise):Noise {
+        val cached = load(seed, size)
+        if (cached != null) {
+            return cached
+        }
+        val noise = generate()
+        store(seed, size, noise)
+        return noise
+    }
+
+    companion object {
+        private const val LOG = "WorldCache"
+        private const val EXTENSION = ".noise"
+
+        /** Increment when the world generation changes, to not load heightfields of the old generator */
+        const val GENERATOR_VERSION = 1
+
+        /** Cache in the working directory, up to 512 MiB */
+        val DEFAULT:WorldCache by lazy { WorldCache(Gdx.files.local("world-cache").file(), 512L shl 20) }
+    }
+}
@@ -119,24 +119,30 @@ public class WorldCharacteristics {
     }
 
     public static WorldCharacteristics fromText(CharSequence text) {
+        final TextStatistics statistics = new TextStatistics();
+        TextAnalyzer.get().analyze(text, statistics);
+        return fromStatistics(statistics);
+    }
+
+    /**
+     * @param statistics of the whole text, as collected by {@link TextAnalyzer#analyze(CharSequence, TextStatistics)}
+     */
+    static WorldCharacteristics fromStatistics(TextStatistics statistics) {
         final WorldCharacteristics c = new WorldCharacteristics();
-        final int length = text.length();
+        final int length = statistics.length;
 
         // Fill up with random bytes, hopefully
         long seed = length * length * 31;
         seed = seed * seed;
         seed = seed * seed;
         seed = seed * seed;
-        for (int i = 0; i < length; i++) {
-            seed = 31 * seed + text.charAt(i);
-        }
-        c.seed = seed;
+        // Same as hashing each character into the seed
+        c.seed = seed * statistics.power + statistics.hash;
 
         c.size = (int) Math.round(Math.pow(length, 0.6)) + 2;
-        final TextAnalyzer textAnalyzer = TextAnalyzer.get();
-        c.mood = textAnalyzer.analyzePositivityAndNegativity(text);
-        c.coherence = textAnalyzer.analyzeCoherence(text);
-        textAnalyzer.analyzeColors(c.colors, text, new Random(c.seed));
+        c.mood = statistics.getMood();
+        c.coherence = statistics.getCoherence();
+        TextAnalyzer.get().resolveColors(statistics, c.colors, new Random(c.seed));
         return c;
     }
 
@@ -9,8 +9,11 @@ import com.darkyen.paragrowth.util.*
 
 /**
  * Stateless thread-safe characterization of a world, specific realization of [WorldCharacteristics].
+ *
+ * @param prefetchedNoise heightfield from [loadNoise] of the same characteristics, to not load it again
+ * @param open whether the world has no edges, then [noise] covers only an area around the center, see [openRegion]
  */
-class WorldSpecifics(val characteristics: WorldCharacteristics, centerX: Float, centerY: Float, centerForSpawn: Boolean) {
+class WorldSpecifics(val characteristics: WorldCharacteristics, centerX: Float, centerY: Float, centerForSpawn: Boolean, prefetchedNoise: Noise? = null, val open: Boolean = false) {
 
     val offsetX: Float
     val offsetY: Float
@@ -41,24 +44,30 @@ class WorldSpecifics(val characteristics: WorldCharacteristics, centerX: Float,
     }
 
     init {
-        val worldSize = (MathUtils.clamp(Math.sqrt(characteristics.size.toDouble()).toFloat(), 1f, 30f) * 100f).toInt()
-
-        noise = Noise.generateSimplexNoise(worldSize, worldSize,
-                characteristics.seed, 1f,
-                1f / 200f, 2f, 5, 40f, 0.5f, -1f)
-        noise.islandize(1f, -1f)
-        noise.max(-1f)
-
-        if (centerForSpawn) {
-            val v = Vector3()
-            val RNG = setupInitialPosition_RNG
-            RNG.setSeed(characteristics.seed)
-            noise.findRandomPositionInHeightRange(v, RNG, 1f, java.lang.Float.POSITIVE_INFINITY)
-            this.offsetX = centerX - v.x
-            this.offsetY = centerY - v.y
+        if (open) {
+            // Origin of the heightfield must lie on the grid of the noise, so that regions match
+            val sizeX = prefetchedNoise?.sizeX ?: OPEN_SPAWN_REGION_SIZE
+            val sizeY = prefetchedNoise?.sizeY ?: OPEN_SPAWN_REGION_SIZE
+            val originX = MathUtils.floor(centerX - sizeX * 0.5f)
+            val originY = MathUtils.floor(centerY - sizeY * 0.5f)
+            noise = prefetchedNoise ?: generateOpenNoise(characteristics, originX, originY, sizeX, sizeY)
+            this.offsetX = originX.toFloat()
+            this.offsetY = originY.toFloat()
         } else {
-            this.offsetX = centerX - worldSize * 0.5f
-            this.offsetY = centerY - worldSize * 0.5f
+            noise = prefetchedNoise ?: loadNoise(characteristics)
+            val worldSize = noise.sizeX
+
+            if (centerForSpawn) {
+                val v = Vector3()
+                val RNG = setupInitialPosition_RNG
+                RNG.setSeed(characteristics.seed)
+                noise.findRandomPositionInHeightRange(v, RNG, 1f, java.lang.Float.POSITIVE_INFINITY)
+                this.offsetX = centerX - v.x
+                this.offsetY = centerY - v.y
+            } else {
+                this.offsetX = centerX - worldSize * 0.5f
+                this.offsetY = centerY - worldSize * 0.5f
+            }
         }
     }
 
@@ -87,6 +96,16 @@ class WorldSpecifics(val characteristics: WorldCharacteristics, centerX: Float,
         return success
     }
 
+    /**
+     * Area of an [open] world, with the same heights and colors, whose [noise] covers given area of integer coordinates.
+     * Generating it is cheap compared to [loadNoise], so that patches of open worlds can be generated separately. Thread safe.
+     */
+    fun openRegion(x:Int, y:Int, sizeX:Int, sizeY:Int):WorldSpecifics {
+        assert(open)
+        val noise = generateOpenNoise(characteristics, x, y, sizeX, sizeY)
+        return WorldSpecifics(characteristics, x + sizeX * 0.5f, y + sizeY * 0.5f, false, noise, true)
+    }
+
     fun queryColors(): WorldColorQuery {
         return WorldColorQuery()
     }
@@ -121,7 +140,38 @@ class WorldSpecifics(val characteristics: WorldCharacteristics, centerX: Float,
         private const val COLOR_NOISE_SCALE_BEACH = 0.2f
         private const val COLOR_NOISE_SCALE_TERRAIN = 0.02f
 
+        /** Size of the area around the spawn of [open] worlds, which is covered by their [noise] */
+        private const val OPEN_SPAWN_REGION_SIZE = 512
+
         private val setupInitialPosition_RNG = RandomXS128()
+
+        /** @return size of the heightfield of [loadNoise], in both dimensions */
+        fun worldSize(characteristics: WorldCharacteristics): Int {
+            return (MathUtils.clamp(Math.sqrt(characteristics.size.toDouble()).toFloat(), 1f, 30f) * 100f).toInt()
+        }
+
+        /** @return heightfield of a world with given characteristics, cached or generated. Thread safe. */
+        fun loadNoise(characteristics: WorldCharacteristics): Noise {
+            val worldSize = worldSize(characteristics)
+
+            // Changes in generation must increment WorldCache.GENERATOR_VERSION
+            return WorldCache.DEFAULT.getOrGenerate(characteristics.seed, worldSize) {
+                Noise.generateSimplexNoise(worldSize, worldSize,
+                        characteristics.seed, 1f,
+                        1f / 200f, 2f, 5, 40f, 0.5f, -1f)
+                        .islandize(1f, -1f)
+                        .max(-1f)
+            }
+        }
+
+        /** @return heightfield of given area of an open world with given characteristics. Thread safe.
+         * It is the heightfield of [loadNoise], but without edges. */
+        fun generateOpenNoise(characteristics: WorldCharacteristics, originX:Int, originY:Int, sizeX:Int, sizeY:Int): Noise {
+            return Noise.generateSimplexNoise(sizeX, sizeY, originX, originY,
+                    characteristics.seed, 1f,
+                    1f / 200f, 2f, 5, 40f, 0.5f, -1f)
+                    .max(-1f)
+        }
     }
 
 
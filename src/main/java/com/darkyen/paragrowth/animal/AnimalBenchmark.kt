@@ -0,0 +1,125 @@
+@file:JvmName("AnimalBenchmark")
+package com.darkyen.paragrowth.animal
+
+import com.badlogic.gdx.math.MathUtils
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.math.Vector2
+import com.darkyen.paragrowth.terrain.WorldQuery
+import java.util.concurrent.ForkJoinPool
+
+private const val AGENTS = 10_000
+private const val WARMUP_TICKS = 200
+private const val MEASURED_TICKS = 1000
+private const val TICK_DELTA = 1f / 60f
+
+/** Rolling hills with lakes, so that animals switch between land and water movement. */
+private class BenchmarkWorld(size:Float) : WorldQuery {
+
+    private val dimensions = Rectangle(0f, 0f, size, size)
+
+    override fun getHeightAt(x: Float, y: Float): Float {
+        return MathUtils.sin(x * 0.05f) * MathUtils.cos(y * 0.04f) * 3f + 0.5f
+    }
+
+    override fun getDimensions(out: Rectangle): Rectangle = out.set(dimensions)
+
+    override fun adjustPointToHeightRange(point: Vector2, minHeight: Float, maxHeight: Float): Boolean {
+        for (i in 0..100) {
+            val x = point.x + i * 2f
+            if (getHeightAt(x, point.y) in minHeight..maxHeight) {
+                point.x = x
+                return true
+            }
+        }
+        return false
+    }
+}
+
+/** Measure the cost of blending land and water movement attributes, as done by every animal every tick. */
+private fun benchmarkAttributeBlend() {
+    val blended = AnimalAttributes()
+    val iterations = 10_000_000
+    var sink = 0f
+
+    for (round in 0 until 3) {
+        val start = System.nanoTime()
+        for (i in 0 until iterations) {
+            blended.setToLerp(DUCK_LAND_MOVEMENT, DUCK_WATER_MOVEMENT, (i and 1023) * (1f / 1023f))
+            sink += blended.maxSpeed
+        }
+        val duration = System.nanoTime() - start
+        println("Attribute blend: ${"%.2f".format(duration.toDouble() / iterations)} ns ($sink)")
+    }
+}
+
+private fun checksum(store:AnimalStore):Long {
+    var hash = 17L
+    for (i in 0 until store.size) {
+        hash = hash * 31 + java.lang.Float.floatToIntBits(store.x[i])
+        hash = hash * 31 + java.lang.Float.floatToIntBits(store.y[i])
+        hash = hash * 31 + java.lang.Float.floatToIntBits(store.heading[i])
+    }
+    return hash
+}
+
+/**
+ * Headless benchmark of [AnimalWorld.update] with [AGENTS] animals, using various amounts of threads.
+ * Also verifies that the result is the same, regardless of the amount of threads.
+ * Before that, measures the per-animal attribute blend.
+ */
+fun main(args: Array<String>) {
+    benchmarkAttributeBlend()
+
+    val maxThreads = Runtime.getRuntime().availableProcessors()
+    val threadCounts = sortedSetOf(1, 2, maxThreads / 2, maxThreads).filter { it >= 1 }
+
+    val world = BenchmarkWorld(3000f)
+    val playerPosition = Vector2(1500f, 1500f)
+    var referenceChecksum:Long? = null
+
+    for (threads in threadCounts) {
+        val pool = ForkJoinPool(threads)
+        val animalWorld = AnimalWorld(world, pool)
+        animalWorld.parallel = threads > 1
+        // Measure the full simulation, budget would also make the result timing-dependent
+        animalWorld.levelOfDetail = false
+        animalWorld.simulationBudgetMicros = 0
+        // Ducks have on average ~0.65 babies, so this ends up close to AGENTS
+        animalWorld.populate(world.getDimensions(), (AGENTS * 0.6f).toInt(), AGENTS / 100, 42L)
+
+        for (i in 0 until WARMUP_TICKS) {
+            animalWorld.update(TICK_DELTA, playerPosition)
+        }
+
+        val start = System.nanoTime()
+        for (i in 0 until MEASURED_TICKS) {
+            animalWorld.update(TICK_DELTA, playerPosition)
+        }
+        val duration = System.nanoTime() - start
+        pool.shutdown()
+
+        val checksum = checksum(animalWorld.store)
+        val deterministic = referenceChecksum == null || referenceChecksum == checksum
+        if (referenceChecksum == null) {
+            referenceChecksum = checksum
+        }
+
+        println("Threads: $threads, animals: ${animalWorld.animalCount}, " +
+                "tick: ${"%.3f".format(duration / 1_000_000.0 / MEASURED_TICKS)} ms, " +
+                "checksum: ${java.lang.Long.toHexString(checksum)}" + if (deterministic) "" else " (NOT DETERMINISTIC)")
+    }
+
+    // With level of detail and default budget, player in the middle
+    val animalWorld = AnimalWorld(world, ForkJoinPool(maxThreads))
+    animalWorld.populate(world.getDimensions(), (AGENTS * 0.6f).toInt(), AGENTS / 100, 42L)
+    for (i in 0 until WARMUP_TICKS) {
+        animalWorld.update(TICK_DELTA, playerPosition)
+    }
+    val start = System.nanoTime()
+    for (i in 0 until MEASURED_TICKS) {
+        animalWorld.update(TICK_DELTA, playerPosition)
+    }
+    val duration = System.nanoTime() - start
+    println("Level of detail, budget ${animalWorld.simulationBudgetMicros} us, threads: $maxThreads, " +
+            "tick: ${"%.3f".format(duration / 1_000_000.0 / MEASURED_TICKS)} ms")
+}
@@ -0,0 +1,19 @@
+@file:JvmName("AnimalMeshCompiler")
+package com.darkyen.paragrowth.animal
+
+import com.darkyen.paragrowth.render.MeshBlob
+import java.io.File
+
+/**
+ * Compiles OBJ models of animals into [ANIMAL_MESH_FILE], which [AnimalWorld] then maps instead of parsing the models on each start.
+ *
+ * Run with the assets folder as an argument (defaults to the working directory) after packing resources.
+ */
+fun main(args:Array<String>) {
+    val folder = File(if (args.isNotEmpty()) args[0] else ".")
+    val start = System.nanoTime()
+    val blob = MeshBlob.of(buildAnimalModels(folder))
+    val file = File(folder, ANIMAL_MESH_FILE)
+    blob.write(file)
+    println("Compiled $file (${file.length()} bytes) in ${(System.nanoTime() - start) / 1_000_000} ms")
+}
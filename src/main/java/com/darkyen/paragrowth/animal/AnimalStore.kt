@@ -0,0 +1,88 @@
+package com.darkyen.paragrowth.animal
+
+/**
+ * Committed state of all animals in [AnimalWorld], stored as struct-of-arrays and indexed by [Animal.id].
+ *
+ * Animals simulate into their own scratch state, possibly in parallel, and everything that looks at other animals
+ * (rendering, neighbor queries, formations) reads only from here. The store is written only by [AnimalWorld],
+ * between simulation steps, so the result does not depend on the order in which animals were simulated.
+ */
+class AnimalStore {
+
+    /** Amount of animals. Valid ids are in [0, size) */
+    var size = 0
+        private set
+
+    var x = FloatArray(16)
+        private set
+    var y = FloatArray(16)
+        private set
+    var z = FloatArray(16)
+        private set
+    /** Radians */
+    var heading = FloatArray(16)
+        private set
+    /** Units per second */
+    var velocity = FloatArray(16)
+        private set
+    /** Banking, waddling, etc. */
+    var roll = FloatArray(16)
+        private set
+    /** Looking up/down */
+    var pitch = FloatArray(16)
+        private set
+    /** How much are the movement attributes blended towards water movement, [0..1] */
+    var waterBlend = FloatArray(16)
+        private set
+    /** How deep does the animal sink when in water */
+    var submerge = FloatArray(16)
+        private set
+    /** Index of the model in [AnimalWorld] */
+    var model = IntArray(16)
+        private set
+
+    private fun ensureCapacity(capacity:Int) {
+        if (capacity <= x.size) {
+            return
+        }
+        val newCapacity = maxOf(capacity, x.size * 2)
+        x = x.copyOf(newCapacity)
+        y = y.copyOf(newCapacity)
+        z = z.copyOf(newCapacity)
+        heading = heading.copyOf(newCapacity)
+        velocity = velocity.copyOf(newCapacity)
+        roll = roll.copyOf(newCapacity)
+        pitch = pitch.copyOf(newCapacity)
+        waterBlend = waterBlend.copyOf(newCapacity)
+        submerge = submerge.copyOf(newCapacity)
+        model = model.copyOf(newCapacity)
+    }
+
+    /** Add an entry for new animal, its state is filled in on the first commit.
+     * @return id of the new animal */
+    fun add(model:Int, submerge:Float):Int {
+        val id = size++
+        ensureCapacity(size)
+        this.model[id] = model
+        this.submerge[id] = submerge
+        return id
+    }
+
+    /** Publish the scratch state of [animal]. */
+    fun commit(animal:Animal) {
+        val id = animal.id
+        val movement = animal.movement
+        x[id] = movement.x
+        y[id] = movement.y
+        z[id] = animal.positionZ
+        heading[id] = movement.heading
+        velocity[id] = movement.velocity
+        roll[id] = animal.roll
+        pitch[id] = animal.pitch
+        waterBlend[id] = animal.waterBlend
+    }
+
+    fun clear() {
+        size = 0
+    }
+}
@@ -1,6 +1,7 @@
 package com.darkyen.paragrowth.animal
 
 import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.files.FileHandle
 import com.badlogic.gdx.graphics.Camera
 import com.badlogic.gdx.graphics.GL20
 import com.badlogic.gdx.graphics.Texture
@@ -10,48 +11,358 @@ import com.badlogic.gdx.graphics.glutils.ImmediateModeRenderer
 import com.badlogic.gdx.math.*
 import com.badlogic.gdx.math.MathUtils.lerp
 import com.badlogic.gdx.math.collision.BoundingBox
+import com.badlogic.gdx.utils.Disposable
+import com.darkyen.paragrowth.Assets
 import com.darkyen.paragrowth.ParagrowthMain
 import com.darkyen.paragrowth.render.*
 import com.darkyen.paragrowth.terrain.TERRAIN_TIME_ATTRIBUTE
 import com.darkyen.paragrowth.terrain.WorldQuery
+import com.darkyen.paragrowth.terrain.waterAmount
 import com.darkyen.paragrowth.util.*
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
 import kotlin.math.sqrt
 
 private val ANIMAL_TRANSFORM_ATTRIBUTE = attributeKeyMatrix4("animal_transform", ModelAttributeLayer)
 private val ANIMAL_CENTER_ATTRIBUTE = attributeKeyVector3("animal_center", ModelAttributeLayer)
 private val ANIMAL_SUBMERGE_ATTRIBUTE = attributeKeyFloat("animal_submerge", ModelAttributeLayer)
 
+/** Typical radius of neighbor queries, used as the [SpatialGrid] cell size. */
+private const val NEIGHBOR_CELL_SIZE = 20f
+/** Animals closer than this to the player are considered to be aware of the player. */
+private const val PLAYER_AWARENESS_RADIUS = 20f
+/** Children further than this from their parent are lost and follow the nearest adult instead */
+private const val PARENT_LOST_DISTANCE = 40f
+/** Lost children look for a new parent at most this far */
+private const val PARENT_SEARCH_RADIUS = 30f
+/** Deer run away when a deer this close is aware of the player */
+private const val HERD_ALARM_RADIUS = 30f
+/** Maximum amount of animals simulated by a single worker task. */
+private const val SIMULATION_GRAIN = 256
+
+/** Animals closer to the player than this are simulated every tick */
+private const val LOD_NEAR_DISTANCE = 80f
+/** Animals closer to the player than this (and not near) run behavior at reduced rate, others only wander */
+private const val LOD_MID_DISTANCE = 250f
+/** Simulate mid-range animals every N ticks */
+private const val LOD_MID_INTERVAL = 4
+/** Simulate far animals every N ticks */
+private const val LOD_FAR_INTERVAL = 16
+/** How fast do far animals wander, relative to their max speed */
+private const val WANDER_HASTE = 0.3f
+private const val NEAR_TIMESTEP = 1f / 120f
+private const val MID_TIMESTEP = 1f / 30f
+
+/** Ducks sometimes look for a place in water or on the shore */
+private const val DUCK_MAX_HEIGHT = 0.5f
+/** Deer look for a place on land or on the shore */
+private const val DEER_MIN_HEIGHT = -0.5f
+/** Height ranges, pairs of min and max height, in which animals look for places, so that the terrain can prepare their fields */
+internal val ANIMAL_HEIGHT_RANGES = floatArrayOf(
+        Float.NEGATIVE_INFINITY, DUCK_MAX_HEIGHT,
+        DEER_MIN_HEIGHT, Float.POSITIVE_INFINITY)
+
+internal const val LOD_NEAR = 0
+internal const val LOD_MID = 1
+internal const val LOD_FAR = 2
+
+const val DUCK_MALE_MODEL = 0
+const val DUCK_FEMALE_MODEL = 1
+const val DUCK_BABY_MODEL = 2
+const val DEER_MODEL = 3
+
+/** Order must match *_MODEL constants */
+internal val MODEL_FILES = arrayOf(
+        "duck.obj",
+        "duck_female.obj",
+        "duck_baby.obj",
+        "deer.obj")
+
+/** Models of all animals, compiled from [MODEL_FILES] by `AnimalMeshCompiler` */
+internal const val ANIMAL_MESH_FILE = "animals.mesh"
+
+/** Parse models of all animals from [folder], in order of *_MODEL constants. Does not touch GL, so it can be called from any thread. */
+internal fun buildAnimalModels(folder:File):ModelBuilder {
+    // has to face towards positive X
+    val builder = ModelBuilder(ANIMAL_ATTRIBUTES)
+
+    for (model in MODEL_FILES) {
+        builder.loadObjModel(FileHandle(File(folder, model))) { x, y, z, material ->
+            vertex(x, y, z, material.diffuse.toFloatBits())
+        }
+        builder.modelEnd()
+    }
+
+    return builder
+}
+
+/** @return true if [ANIMAL_MESH_FILE] in [folder] exists and is not older than any model or its materials */
+internal fun isAnimalMeshUpToDate(folder:File):Boolean {
+    val compiled = File(folder, ANIMAL_MESH_FILE).lastModified()
+    return compiled != 0L && MODEL_FILES.all { model ->
+        compiled >= File(folder, model).lastModified()
+                && compiled >= File(folder, model.removeSuffix(".obj") + ".mtl").lastModified()
+    }
+}
+
+/** Map models of all animals from [ANIMAL_MESH_FILE] if it is up to date, otherwise build them.
+ * Does not touch GL, so it can be called from any thread. */
+internal fun loadAnimalModels(folder:File = Gdx.files.local(".").file()):MeshBlob {
+    if (isAnimalMeshUpToDate(folder)) {
+        val file = File(folder, ANIMAL_MESH_FILE)
+        try {
+            return MeshBlob.map(file)
+        } catch (e:IOException) {
+            Gdx.app.error("AnimalWorld", "Failed to map $file", e)
+        }
+    }
+    return MeshBlob.of(buildAnimalModels(folder))
+}
+
 /**
+ * Simulates and renders all animals.
+ *
+ * Each [update] is done in two phases. First, all animals run their behavior and steering, possibly in parallel
+ * on [pool]. This phase reads only the committed [store] and writes only into the animal's own scratch state.
+ * Then, the scratch state is committed into [store] and [neighbors], serially.
+ * Each animal has its own random generator, so the result does not depend on the amount of threads.
  *
+ * Not all animals are simulated each tick. Animals near the player are, animals further away are simulated less often,
+ * with larger timestep, and far away animals only [Animal.wander], see [levelOfDetail].
+ * Near and mid-range animals are found by [neighbors] queries around the player, far animals by a cursor,
+ * which visits only a slice of all animals each tick, so scheduling does not visit every animal every tick.
+ * When [simulationBudgetMicros] is set, animals that are not near are simulated only as many as fit into the budget,
+ * based on the measured cost of previous ticks. Each animal remembers when it was last simulated,
+ * and the time since then is simulated when it is simulated again.
  */
-class AnimalWorld(private val world:WorldQuery) : Renderable {
+class AnimalWorld(private val world:WorldQuery, private val pool:ForkJoinPool = ParagrowthMain.WORKER_POOL) : Renderable {
 
     private val animals = GdxArray<Animal>()
+    /** Committed state of [animals], ids are indices into [animals]. */
+    val store = AnimalStore()
+    /** Positions of [animals], ids are indices into [animals]. */
+    private val neighbors = SpatialGrid(NEIGHBOR_CELL_SIZE)
+    private var tick = 0
+
+    /** When false, whole simulation runs on the calling thread. */
+    var parallel = true
+    /** When false, all animals are simulated every tick, as if they were near the player. */
+    var levelOfDetail = true
+    /** How much time can be spent on simulation per tick, approximately. 0 = unlimited.
+     * Animals near the player are simulated regardless of the budget. */
+    var simulationBudgetMicros = 2000
+
+    /** Indices of animals simulated this tick */
+    private val scheduled = GdxIntArray()
+    /** Positions of [scheduled] animals, heights of the ground under them and how much it is in water */
+    private var groundXs = FloatArray(0)
+    private var groundYs = FloatArray(0)
+    private var groundHeights = FloatArray(0)
+    private var groundWater = FloatArray(0)
+    /** Where to continue with round-robin scheduling of far animals */
+    private var scheduleCursor = 0
+    /** Time simulated by all [update]s, see [Animal.simulatedTime] */
+    private var time = 0.0
+    /** Measured cost of simulating one animal, moving average */
+    private var nanosPerAnimal = 2000f
+
+    val animalCount:Int
+        get() = animals.size
+
+    // Inputs of the current step, shared by all animals
+    private val stepWorldDimensions = Rectangle()
+    private val stepPlayerPosition = Vector2()
+    private var stepDelta = 0f
 
     fun update(delta:Float, playerPosition:Vector2) {
-        val worldDimensions = world.getDimensions()
-        for (animal in animals) {
-            animal.update(worldDimensions, world, playerPosition, delta)
+        val tick = ++tick
+        time += delta
+        world.getDimensions(stepWorldDimensions)
+        stepPlayerPosition.set(playerPosition)
+        stepDelta = delta
+
+        neighbors.forEachWithin(playerPosition.x, playerPosition.y, PLAYER_AWARENESS_RADIUS) { id, _ ->
+            animals[id].playerNearbyTick = tick
+        }
+
+        schedule(playerPosition)
+        val scheduled = scheduled
+
+        // Phase 1: behavior and steering into scratch state
+        val simulationStart = System.nanoTime()
+        if (parallel && scheduled.size > SIMULATION_GRAIN) {
+            pool.invoke(SimulateTask(0, scheduled.size))
+        } else {
+            simulate(0, scheduled.size)
+        }
+        if (scheduled.size > 0) {
+            val nanos = (System.nanoTime() - simulationStart).toFloat() / scheduled.size
+            nanosPerAnimal = lerp(nanosPerAnimal, nanos, 0.1f)
+        }
+
+        // Ground at new positions, in one query
+        val count = scheduled.size
+        if (groundXs.size < count) {
+            val capacity = MathUtils.nextPowerOfTwo(count)
+            groundXs = FloatArray(capacity)
+            groundYs = FloatArray(capacity)
+            groundHeights = FloatArray(capacity)
+            groundWater = FloatArray(capacity)
+        }
+        val groundXs = groundXs
+        val groundYs = groundYs
+        for (i in 0 until count) {
+            val movement = animals[scheduled[i]].movement
+            groundXs[i] = movement.x
+            groundYs[i] = movement.y
+        }
+        world.getWaterAt(groundXs, groundYs, groundHeights, groundWater, count)
+
+        // Phase 2: commit
+        for (i in 0 until count) {
+            val animal = animals[scheduled[i]]
+            animal.setGround(groundHeights[i], groundWater[i])
+            store.commit(animal)
+            neighbors.move(animal.id, animal.movement.x, animal.movement.y)
+        }
+    }
+
+    /** Decide which animals to simulate this tick, into [scheduled]. */
+    private fun schedule(playerPosition:Vector2) {
+        val scheduled = scheduled
+        scheduled.clear()
+        val animalCount = animals.size
+
+        if (!levelOfDetail) {
+            for (i in 0 until animalCount) {
+                schedule(animals[i], LOD_NEAR)
+            }
+            return
+        }
+
+        val nearDistance2 = LOD_NEAR_DISTANCE * LOD_NEAR_DISTANCE
+        neighbors.forEachWithin(playerPosition.x, playerPosition.y, LOD_NEAR_DISTANCE) { id, _ ->
+            schedule(animals[id], LOD_NEAR)
+        }
+
+        var remaining = if (simulationBudgetMicros <= 0) {
+            Int.MAX_VALUE
+        } else {
+            (simulationBudgetMicros * 1000f / nanosPerAnimal).toInt() - scheduled.size
+        }
+
+        // Those waiting the longest are simulated first, when there is not enough budget for all
+        neighbors.forEachWithin(playerPosition.x, playerPosition.y, LOD_MID_DISTANCE) { id, distance2 ->
+            val animal = animals[id]
+            if (distance2 > nearDistance2 && remaining > 0 && tick - animal.simulatedTick >= LOD_MID_INTERVAL) {
+                schedule(animal, LOD_MID)
+                remaining--
+            }
+        }
+
+        // Each far animal is visited once per LOD_FAR_INTERVAL ticks, or less often when over budget
+        val store = store
+        val midDistance2 = LOD_MID_DISTANCE * LOD_MID_DISTANCE
+        var visits = minOf((animalCount + LOD_FAR_INTERVAL - 1) / LOD_FAR_INTERVAL, animalCount)
+        var i = scheduleCursor
+        while (visits > 0 && remaining > 0) {
+            if (i >= animalCount) {
+                i = 0
+            }
+            val animal = animals[i]
+            if (animal.scheduledTick != tick && playerPosition.dst2(store.x[i], store.y[i]) > midDistance2) {
+                schedule(animal, LOD_FAR)
+                remaining--
+            }
+            i++
+            visits--
         }
+        scheduleCursor = if (i >= animalCount) 0 else i
+    }
+
+    private fun schedule(animal:Animal, lod:Int) {
+        animal.lod = lod
+        animal.scheduledTick = tick
+        scheduled.add(animal.id)
+    }
+
+    private fun simulate(from:Int, to:Int) {
+        val scheduled = scheduled
+        for (i in from until to) {
+            val animal = animals[scheduled[i]]
+            val delta = (time - animal.simulatedTime).toFloat()
+            animal.simulatedTime = time
+            animal.simulatedTick = tick
+
+            when (animal.lod) {
+                LOD_NEAR -> {
+                    animal.movement.timestep = NEAR_TIMESTEP
+                    animal.update(stepWorldDimensions, stepPlayerPosition, delta)
+                }
+                LOD_MID -> {
+                    animal.movement.timestep = MID_TIMESTEP
+                    animal.update(stepWorldDimensions, stepPlayerPosition, delta)
+                }
+                else -> animal.wander(stepWorldDimensions, delta)
+            }
+        }
+    }
+
+    private inner class SimulateTask(private val from:Int, private val to:Int) : RecursiveAction() {
+        override fun compute() {
+            if (to - from <= SIMULATION_GRAIN) {
+                simulate(from, to)
+            } else {
+                val mid = (from + to) ushr 1
+                invokeAll(SimulateTask(from, mid), SimulateTask(mid, to))
+            }
+        }
+    }
+
+    private fun addAnimal(animal:Animal, model:Int) {
+        animal.id = neighbors.add(animal.movement.x, animal.movement.y)
+        assert(animal.id == animals.size)
+        animals.add(animal)
+        animal.simulatedTime = time
+        // Spread reduced rate simulation of animals evenly across ticks
+        animal.simulatedTick = tick - animal.id % LOD_MID_INTERVAL
+        val storeId = store.add(model, animal.waterSubmerge)
+        assert(storeId == animal.id)
+        store.commit(animal)
+    }
+
+    /** @return nearest animal within [radius] from [x], [y] that satisfies [accept], or null if there is none.
+     * Positions are those of the last commit, so it can be called from behaviors. */
+    private inline fun nearestAnimal(x:Float, y:Float, radius:Float, accept:(Animal) -> Boolean):Animal? {
+        val id = neighbors.nearest(x, y, radius) { accept(animals[it]) }
+        return if (id == -1) null else animals[id]
+    }
+
+    /** @return true if the player is within [radius] of [animal], see [PLAYER_AWARENESS_RADIUS] */
+    private fun isPlayerNearby(animal:Animal, radius:Float):Boolean {
+        return radius > PLAYER_AWARENESS_RADIUS || animal.playerNearbyTick == tick
     }
 
     private val render_quaternion = Quaternion()
     override fun render(batch: RenderBatch, camera: Camera) {
         val quaternion = render_quaternion
+        val store = store
 
-        for (animal in animals) {
+        for (i in 0 until store.size) {
             batch.render().apply {
-                set(animal.model)
+                set(models[store.model[i]])
                 shader = AnimalShader
                 val animalCenter = attributes[ANIMAL_CENTER_ATTRIBUTE]
-                animalCenter.set(animal.movement.x, animal.movement.y, animal.positionZ)
+                animalCenter.set(store.x[i], store.y[i], store.z[i])
                 attributes[ANIMAL_TRANSFORM_ATTRIBUTE].apply {
                     translate(animalCenter)
-                    rotate(quaternion.setFromAxisRad(Vector3.Z, animal.movement.heading))
-                    rotate(quaternion.setFromAxisRad(Vector3.Y, animal.pitch))
-                    rotate(quaternion.setFromAxisRad(Vector3.X, animal.roll))
+                    rotate(quaternion.setFromAxisRad(Vector3.Z, store.heading[i]))
+                    rotate(quaternion.setFromAxisRad(Vector3.Y, store.pitch[i]))
+                    rotate(quaternion.setFromAxisRad(Vector3.X, store.roll[i]))
                 }
-                attributes[ANIMAL_SUBMERGE_ATTRIBUTE][0] = animal.waterSubmerge
+                attributes[ANIMAL_SUBMERGE_ATTRIBUTE][0] = store.submerge[i]
 
                 // TODO(jp): Order
             }
@@ -59,78 +370,83 @@ class AnimalWorld(private val world:WorldQuery) : Renderable {
     }
 
     private val models = GdxArray<Model>()
+    private val modelWatches = GdxArray<Disposable>()
 
-    fun populateWithDucks(worldDimensions:Rectangle) {
+    fun populateWithDucks(worldDimensions:Rectangle, duckCount:Int = 20, deerCount:Int = 5) {
         // No ducks given, all custom.
+        loadModels()
+        for (file in MODEL_FILES) {
+            modelWatches.add(AssetWatcher.watch(Gdx.files.local(file)) {
+                disposeModels()
+                models.addAll(*loadAnimalModels().generateModels(ANIMAL_ATTRIBUTES))
+            })
+        }
 
-        val models = run {
-            // has to face towards positive X
-            val builder = ModelBuilder(ANIMAL_ATTRIBUTES)
-
-            for (model in arrayOf(
-                    "duck.obj",
-                    "duck_female.obj",
-                    "duck_baby.obj",
-                    "deer.obj"
-            )) {
-                builder.loadObjModel(Gdx.files.local(model)) { x, y, z, material ->
-                    vertex(x, y, z, material.diffuse.toFloatBits())
-                }
-                builder.modelEnd()
-            }
+        populate(worldDimensions, duckCount, deerCount, MathUtils.random.nextLong())
+    }
 
-            builder.generateModels(ANIMAL_ATTRIBUTES)
-        }
+    private fun loadModels() {
+        val blob = Assets.takeAnimalModels() ?: loadAnimalModels()
+        models.addAll(*blob.generateModels(ANIMAL_ATTRIBUTES))
+    }
 
-        this.models.addAll(*models)
+    private fun disposeModels() {
+        for (model in models) {
+            model.vao.dispose()
+            model.vao.indices?.dispose()
+            model.vao.bindings.forEach { it.buffer.dispose() }
+        }
+        models.clear()
+    }
 
-        val (duckMale, duckFemale, duckBaby, deer) = models
+    /** Spawn animals, without loading their models. Same [seed] produces the same animals. */
+    fun populate(worldDimensions:Rectangle, duckCount:Int, deerCount:Int, seed:Long) {
+        val random = RandomXS128(seed)
         val adultSubmerge = 0.4f
         val babySubmerge = 0.2f
 
-        for (i in 0 until 20) {
-            val female = MathUtils.randomBoolean()
+        for (i in 0 until duckCount) {
+            val female = random.nextBoolean()
 
-            val animal = Animal(if (female) duckFemale else duckMale, adultSubmerge, DUCK_WATER_MOVEMENT, DUCK_LAND_MOVEMENT, duckBehavior)
-            animal.movement.setPosition(worldDimensions.x + worldDimensions.width * MathUtils.random(), worldDimensions.y + worldDimensions.height * MathUtils.random())
+            val animal = Animal(adultSubmerge, DUCK_WATER_MOVEMENT, DUCK_LAND_MOVEMENT, duckBehavior, random.nextLong())
+            animal.movement.setPosition(worldDimensions.x + worldDimensions.width * random.nextFloat(), worldDimensions.y + worldDimensions.height * random.nextFloat())
             animal.positionZ = world.getHeightAt(animal.movement.x, animal.movement.y)
-            animals.add(animal)
+            addAnimal(animal, if (female) DUCK_FEMALE_MODEL else DUCK_MALE_MODEL)
 
             var childNumber = 0
-            while ((female && MathUtils.randomBoolean(0.5f)) || MathUtils.randomBoolean(0.1f)) {
-                val baby = Animal(duckBaby, babySubmerge, DUCK_WATER_MOVEMENT, DUCK_LAND_MOVEMENT, duckBehavior)
-                val position = Vector2(animal.movement.x, animal.movement.y).add(MathUtils.random(-10f, 10f), MathUtils.random(-10f, 10f))
-                baby.movement.setPosition(position.x, position.y)
+            while ((female && random.nextFloat() < 0.5f) || random.nextFloat() < 0.1f) {
+                val baby = Animal(babySubmerge, DUCK_WATER_MOVEMENT, DUCK_LAND_MOVEMENT, duckBehavior, random.nextLong())
+                baby.movement.setPosition(animal.movement.x + (random.nextFloat() * 20f - 10f), animal.movement.y + (random.nextFloat() * 20f - 10f))
+                baby.positionZ = world.getHeightAt(baby.movement.x, baby.movement.y)
                 baby.parent = animal
                 baby.childNumber = childNumber++
-                animals.add(baby)
+                addAnimal(baby, DUCK_BABY_MODEL)
             }
         }
 
-        for (i in 0 until 5) {
-            val deerAnimal = Animal(deer, 2.4f, DEER_WATER_MOVEMENT, DEER_LAND_MOVEMENT, deerBehavior)
-            deerAnimal.movement.setPosition(worldDimensions.x + worldDimensions.width * MathUtils.random(), worldDimensions.y + worldDimensions.height * MathUtils.random())
+        for (i in 0 until deerCount) {
+            val deerAnimal = Animal(2.4f, DEER_WATER_MOVEMENT, DEER_LAND_MOVEMENT, deerBehavior, random.nextLong())
+            deerAnimal.movement.setPosition(worldDimensions.x + worldDimensions.width * random.nextFloat(), worldDimensions.y + worldDimensions.height * random.nextFloat())
             deerAnimal.positionZ = world.getHeightAt(deerAnimal.movement.x, deerAnimal.movement.y)
-            animals.add(deerAnimal)
+            addAnimal(deerAnimal, DEER_MODEL)
         }
     }
 
     fun dispose() {
-        for (model in models) {
-            model.vao.dispose()
-            model.vao.indices?.dispose()
-            model.vao.bindings.forEach { it.buffer.dispose() }
-        }
+        disposeModels()
+        modelWatches.each { it.dispose() }
+        modelWatches.clear()
     }
 
     fun renderDebug(renderer: ImmediateModeRenderer) {
         val box = BoundingBox()
         val pos = Vector3()
+        val store = store
 
-        for (animal in animals) {
+        for (i in 0 until store.size) {
             val color = rgb(0f, 0f, 1f)
 
-            pos.set(animal.movement.x, animal.movement.y, animal.positionZ)
+            pos.set(store.x[i], store.y[i], store.z[i])
             box.inf().ext(pos, 2f)
             box.forEdges { x1, y1, z1, x2, y2, z2 ->
                 renderer.color(color)
@@ -141,6 +457,8 @@ class AnimalWorld(private val world:WorldQuery) : Renderable {
         }
     }
 
+    private fun Animal.randomRange(min:Float, max:Float):Float = min + random.nextFloat() * (max - min)
+
     private fun BehaviorBuilder.moveIntoArea(haste:Float, animalKey:Key<Animal>, areaKey:Key<Rectangle>, delta:FloatKey) = none {
         // Run towards world
         val animal = animalKey()
@@ -155,19 +473,29 @@ class AnimalWorld(private val world:WorldQuery) : Renderable {
         targetX = MathUtils.clamp(targetX, area.x, area.x + area.width)
         targetY = MathUtils.clamp(targetY, area.y, area.y + area.height)
 
-        animal.movement.moveTo(Vector2(targetX, targetY), haste, delta(), animal.movementAttributes, 1f)
+        animal.movement.moveTo(targetX, targetY, haste, delta(), animal.movementAttributes, 1f)
         return@none null
     }
 
-    private fun BehaviorBuilder.avoidPoint(distance:Float, haste:Float, animalKey:Key<Animal>, pointKey:Key<Vector2>, delta:FloatKey) = none {
+    /** Run away from the player, when closer than [distance], or when an animal of the same kind within [herdRadius] is aware of the player. */
+    private fun BehaviorBuilder.avoidPlayer(distance:Float, haste:Float, herdRadius:Float, animalKey:Key<Animal>, playerKey:Key<Vector2>, delta:FloatKey) = none {
         val animal = animalKey()
-        val point = pointKey()
+        val point = playerKey()
 
         val animalPosX = animal.movement.x
         val animalPosY = animal.movement.y
 
-        if (point.dst2(animalPosX, animalPosY) >= distance * distance) {
-            return@none true
+        val near = isPlayerNearby(animal, distance) && point.dst2(animalPosX, animalPosY) < distance * distance
+        if (!near) {
+            if (herdRadius <= 0f) {
+                return@none true
+            }
+            val alarmed = nearestAnimal(animalPosX, animalPosY, herdRadius) {
+                it !== animal && it.behaviorTemplate === animal.behaviorTemplate && it.playerNearbyTick == tick
+            }
+            if (alarmed == null) {
+                return@none true
+            }
         }
 
         animal.movement.move(angleRad(animalPosX - point.x, animalPosY - point.y), haste, delta(), animal.movementAttributes)
@@ -176,7 +504,19 @@ class AnimalWorld(private val world:WorldQuery) : Renderable {
 
     private fun BehaviorBuilder.createParentFollowFormationPoint(formationWidth:Int, rankOffset:Float, columnOffset:Float, animalKey:Key<Animal>, outPointKey:Key<Vector2>) = none {
         val animal = animalKey()
-        val parent = animal.parent ?: return@none false
+        var parent = animal.parent ?: return@none false
+
+        // Parent may be simulated concurrently, use its committed state
+        val store = store
+        if (Vector2.dst2(animal.movement.x, animal.movement.y, store.x[parent.id], store.y[parent.id]) > PARENT_LOST_DISTANCE * PARENT_LOST_DISTANCE) {
+            val adult = nearestAnimal(animal.movement.x, animal.movement.y, PARENT_SEARCH_RADIUS) {
+                it.parent == null && it.behaviorTemplate === animal.behaviorTemplate
+            }
+            if (adult != null) {
+                parent = adult
+                animal.parent = adult
+            }
+        }
 
         val rank = animal.childNumber / maxOf(formationWidth, 1)
         val column = animal.childNumber % maxOf(formationWidth, 1)
@@ -184,21 +524,22 @@ class AnimalWorld(private val world:WorldQuery) : Renderable {
         val rankWidth = maxOf(formationWidth - 1, 0) * columnOffset
         val offsetY = column * columnOffset - rankWidth * 0.5f
 
-        outPointKey().set(parent.movement.x, parent.movement.y).addRotated(offsetX, offsetY, parent.movement.heading)
+        outPointKey().set(store.x[parent.id], store.y[parent.id]).addRotated(offsetX, offsetY, store.heading[parent.id])
         true
     }
 
-    private fun BehaviorBuilder.pickRandomPointInArea(areaKey:Key<Rectangle>, outPointKey:Key<Vector2>) = none {
+    private fun BehaviorBuilder.pickRandomPointInArea(areaKey:Key<Rectangle>, outPointKey:Key<Vector2>, animalKey:Key<Animal>) = none {
         val area = areaKey()
-        outPointKey().set(area.width, area.height).scl(MathUtils.random(), MathUtils.random()).add(area.x, area.y)
+        val random = animalKey().random
+        outPointKey().set(area.width, area.height).scl(random.nextFloat(), random.nextFloat()).add(area.x, area.y)
         true
     }
 
     private fun BehaviorBuilder.pickRandomPointInAreaNearAnimal(areaKey:Key<Rectangle>, outPointKey:Key<Vector2>, near:Key<Animal>, minDistance:Float, maxDistance:Float) = none {
-        val distance = lerp(minDistance, maxDistance, sqrt(MathUtils.random()))
-        val angle = MathUtils.random(MathUtils.PI2)
-
         val nearAnimal = near()
+        val distance = lerp(minDistance, maxDistance, sqrt(nearAnimal.random.nextFloat()))
+        val angle = nearAnimal.random.nextFloat() * MathUtils.PI2
+
         outPointKey()
                 .set(nearAnimal.movement.x, nearAnimal.movement.y)
                 .addRotated(distance, 0f, angle)
@@ -228,7 +569,7 @@ class AnimalWorld(private val world:WorldQuery) : Renderable {
         return@none null
     }
 
-    private fun BehaviorBuilder.waitForAWhile(center:Float, spread:Float, delta:FloatKey) {
+    private fun BehaviorBuilder.waitForAWhile(center:Float, spread:Float, animalKey:Key<Animal>, delta:FloatKey) {
 
         val countdown = register(-1f)
 
@@ -237,7 +578,7 @@ class AnimalWorld(private val world:WorldQuery) : Renderable {
 
             if (cd < 0f) {
                 // Initial fill
-                cd = center + MathUtils.random(-spread, spread)
+                cd = center + animalKey().randomRange(-spread, spread)
             }
 
             cd -= delta()
@@ -247,7 +588,7 @@ class AnimalWorld(private val world:WorldQuery) : Renderable {
                 return@none null
             }
 
-            cd = center + MathUtils.random(-spread, spread)
+            cd = center + animalKey().randomRange(-spread, spread)
             countdown(cd)
             return@none true
         }
@@ -263,7 +604,7 @@ class AnimalWorld(private val world:WorldQuery) : Renderable {
             hotSequence(Sequence.AND)() {
                 moveIntoArea(1f, animal, worldDimensions, delta)
 
-                avoidPoint(15f, 1f, animal, playerPosition, delta)
+                avoidPlayer(15f, 1f, 0f, animal, playerPosition, delta)
 
                 enterIf(true) { animal().parent != null }() {
                     hotSequence(Sequence.AND)() {
@@ -277,11 +618,11 @@ class AnimalWorld(private val world:WorldQuery) : Renderable {
                     sequence(Sequence.AND)() {
                         val targetPoint = register { Vector2() }
                         pickRandomPointInAreaNearAnimal(worldDimensions, targetPoint, animal, 5f, 40f)
-                        enterIf(true){ MathUtils.randomBoolean(0.3f) }() {
-                            adjustPointToHeightRange(targetPoint, Float.NEGATIVE_INFINITY, 0.5f)
+                        enterIf(true){ animal().random.nextFloat() < 0.3f }() {
+                            adjustPointToHeightRange(targetPoint, Float.NEGATIVE_INFINITY, DUCK_MAX_HEIGHT)
                         }
                         moveToPoint(0.1f, 0.5f, animal, targetPoint, delta)
-                        waitForAWhile(7f, 5f, delta)
+                        waitForAWhile(7f, 5f, animal, delta)
                     }
                 }
             }
@@ -298,27 +639,42 @@ class AnimalWorld(private val world:WorldQuery) : Renderable {
             hotSequence(Sequence.AND)() {
                 moveIntoArea(1f, animal, worldDimensions, delta)
 
-                avoidPoint(20f, 0.9f, animal, playerPosition, delta)
+                avoidPlayer(20f, 0.9f, HERD_ALARM_RADIUS, animal, playerPosition, delta)
 
                 sequence(Sequence.AND)() {
                     val targetPoint = register { Vector2() }
                     pickRandomPointInAreaNearAnimal(worldDimensions, targetPoint, animal, 20f, 80f)
-                    adjustPointToHeightRange(targetPoint, -0.5f, Float.POSITIVE_INFINITY)
+                    adjustPointToHeightRange(targetPoint, DEER_MIN_HEIGHT, Float.POSITIVE_INFINITY)
                     moveToPoint(0.1f, 0.5f, animal, targetPoint, delta)
-                    waitForAWhile(7f, 5f, delta)
+                    waitForAWhile(7f, 5f, animal, delta)
                 }
             }
         }
     }
 }
 
-class AnimalAttributes : AgentAttributes() {
+class AnimalAttributes : AgentAttributes(AnimalAttributes.ATTRIBUTE_COUNT) {
+
+    init {
+        values[WADDLE] = 0.1f
+        values[STEPS] = 0f
+    }
+
     /** How much should the animal sway from right to left while walking */
-    var waddle:Float = 0.1f
+    var waddle:Float
+        get() = values[WADDLE]
+        set(value) { values[WADDLE] = value }
     /** How much should the animal sway from front to back while walking */
-    var steps:Float = 0f
+    var steps:Float
+        get() = values[STEPS]
+        set(value) { values[STEPS] = value }
+
+    companion object {
+        const val WADDLE = AgentAttributes.ATTRIBUTE_COUNT
+        const val STEPS = AgentAttributes.ATTRIBUTE_COUNT + 1
+        const val ATTRIBUTE_COUNT = AgentAttributes.ATTRIBUTE_COUNT + 2
+    }
 }
-private val ANIMAL_ATTRIBUTES_METHODS = createAgentAttributesMethods<AnimalAttributes>()
 
 val DUCK_WATER_MOVEMENT = AnimalAttributes().apply {
     maxAcceleration = 1f
@@ -368,16 +724,18 @@ val DEER_LAND_MOVEMENT = AnimalAttributes().apply {
     steps = 0.1f
 }
 
-class Animal(val model: Model, val waterSubmerge:Float,
+class Animal(val waterSubmerge:Float,
              private val waterMovement:AnimalAttributes,
              private val landMovement:AnimalAttributes,
-             behaviorTemplate:BehaviorTreeTemplate) {
+             internal val behaviorTemplate:BehaviorTreeTemplate,
+             seed:Long) {
+
+    /** Random source for behaviors. Each animal has its own, so that simulation is deterministic even when parallel. */
+    val random = RandomXS128(seed)
 
     private val behavior = BehaviorTree(behaviorTemplate, this, Rectangle(), Vector2())
 
-    val movementAttributes = AnimalAttributes().apply {
-        ANIMAL_ATTRIBUTES_METHODS.apply { set(waterMovement) }
-    }
+    val movementAttributes = AnimalAttributes().apply { set(waterMovement) }
 
     val movement = MovementAgent()
     var positionZ = 0f
@@ -386,28 +744,64 @@ class Animal(val model: Model, val waterSubmerge:Float,
     var roll = 0f
     /** Looking up/down */
     var pitch = 0f
+    /** How much are [movementAttributes] blended towards water movement */
+    var waterBlend = 0f
 
     private var animationTime = 0f
 
     var parent:Animal? = null
     var childNumber = -1
 
-    fun update(worldDimensions:Rectangle, world: WorldQuery, playerPosition:Vector2, delta:Float) {
-        animationTime += delta
-        if (animationTime > MathUtils.PI*1000f) {
-            animationTime -= MathUtils.PI*1000f
-        }
+    /** Index in [AnimalWorld], its [AnimalStore] and [SpatialGrid] */
+    internal var id = -1
+    /** Last tick in which the player was nearby, see [AnimalWorld.isPlayerNearby] */
+    internal var playerNearbyTick = -1
 
+    /** Level of detail of the simulation, LOD_ constants */
+    internal var lod = LOD_NEAR
+    /** [AnimalWorld] time and tick, up to which was this animal simulated */
+    internal var simulatedTime = 0.0
+    internal var simulatedTick = 0
+    /** Last tick in which was this animal scheduled for simulation */
+    internal var scheduledTick = -1
+
+    fun update(worldDimensions:Rectangle, playerPosition:Vector2, delta:Float) {
         behavior.floatStorage[0] = delta
         (behavior.storage[1] as Rectangle).set(worldDimensions)
         (behavior.storage[2] as Vector2).set(playerPosition)
 
-        behavior.act()
+        behavior.tick()
+
+        animate(delta)
+    }
+
+    /** Cheap approximation of [update] for animals far from the player: keep on going in roughly the same direction,
+     * without running the behavior. */
+    fun wander(worldDimensions:Rectangle, delta:Float) {
+        if (!worldDimensions.contains(movement.x, movement.y)) {
+            // Turn back
+            movement.heading = angleRad(worldDimensions.x + worldDimensions.width * 0.5f - movement.x,
+                    worldDimensions.y + worldDimensions.height * 0.5f - movement.y)
+        }
+        movement.coast(delta, (random.nextFloat() - 0.5f) * movementAttributes.maxTurnSpeed * 0.2f,
+                movementAttributes.maxSpeed * WANDER_HASTE, movementAttributes.maxAcceleration)
+
+        animate(delta)
+    }
 
-        val howMuchInWater = MathUtils.clamp(map(world.getHeightAt(movement.x, movement.y), -1f, 0f, 1f, 0f), 0f, 1f)
-        ANIMAL_ATTRIBUTES_METHODS.apply { movementAttributes.setToLerp(landMovement, waterMovement, howMuchInWater) }
+    /** Set height of the ground at the new position, after [update] or [wander], and how much it is in water, see [waterAmount]. */
+    fun setGround(z:Float, howMuchInWater:Float) {
+        positionZ = z
 
-        positionZ = world.getHeightAt(movement.x, movement.y)
+        movementAttributes.setToLerp(landMovement, waterMovement, howMuchInWater)
+        waterBlend = howMuchInWater
+    }
+
+    private fun animate(delta:Float) {
+        animationTime += delta
+        if (animationTime > MathUtils.PI*1000f) {
+            animationTime -= MathUtils.PI*1000f
+        }
 
         // Waddle
         roll = Math.sin(animationTime.toDouble() * 8f).toFloat() * movementAttributes.waddle
@@ -446,9 +840,7 @@ object AnimalShader: Shader(ANIMALS, "animal", ANIMAL_ATTRIBUTES) {
             uniform.set(attributes[TERRAIN_TIME_ATTRIBUTE][0])
         }
 
-        ParagrowthMain.assetManager.load("Water_001_DISP.png", Texture::class.java)
-        ParagrowthMain.assetManager.finishLoading()
-        val displacement = TextureDescriptor(ParagrowthMain.assetManager.get("Water_001_DISP.png", Texture::class.java), Texture.TextureFilter.Linear, Texture.TextureFilter.Linear, Texture.TextureWrap.Repeat, Texture.TextureWrap.Repeat)
+        val displacement = TextureDescriptor(Assets.waterDisplacement, Texture.TextureFilter.Linear, Texture.TextureFilter.Linear, Texture.TextureWrap.Repeat, Texture.TextureWrap.Repeat)
 
         globalUniform("u_displacement_texture") { uniform, _, _ ->
             uniform.set(displacement)
@@ -3,6 +3,14 @@ package com.darkyen.paragrowth.animal
 import com.darkyen.paragrowth.util.GdxArray
 import com.darkyen.paragrowth.util.GdxFloatArray
 import com.darkyen.paragrowth.util.GdxIntArray
+import java.util.IdentityHashMap
+
+/** [BehaviorTree.tick] result: behavior has not finished yet */
+const val STATUS_RUNNING = 0
+/** [BehaviorTree.tick] result: behavior finished successfully */
+const val STATUS_SUCCESS = 1
+/** [BehaviorTree.tick] result: behavior failed */
+const val STATUS_FAILURE = 2
 
 /**
  *
@@ -27,6 +35,11 @@ class BehaviorTree (template:BehaviorTreeTemplate) {
     val floatStorage = template.floatKeyDefaults.copyOf()
     private val rootNode = template.rootNode
 
+    private val program = template.program
+    // Cursor stack for tick(): node on each level and which of its children is being evaluated
+    private val stackNode = IntArray(program.maxDepth)
+    private val stackCursor = IntArray(program.maxDepth)
+
     operator fun <V> Key<V>.invoke():V {
         @Suppress("UNCHECKED_CAST")
         return storage[this@invoke.id] as V
@@ -59,13 +72,238 @@ class BehaviorTree (template:BehaviorTreeTemplate) {
     fun act():Boolean? {
         return rootNode.act()
     }
+
+    /** Same as [act], but runs the compiled [BehaviorProgram] without recursion or allocation.
+     * @return one of STATUS_ constants */
+    fun tick():Int {
+        val program = program
+        val opcodes = program.opcode
+        val params = program.param
+        val slots = program.slot
+        val childrenStart = program.childrenStart
+        val childCount = program.childCount
+        val stackNode = stackNode
+        val stackCursor = stackCursor
+        val intStorage = intStorage
+
+        var sp = 0
+        stackNode[0] = 0
+        stackCursor[0] = -1
+        // Result of the child that has just finished, or of the node that is finishing
+        var result = STATUS_RUNNING
+
+        while (true) {
+            val node = stackNode[sp]
+            val cursor = stackCursor[sp]
+            val count = childCount[node]
+            // Index of child to descend into, -1 = this node is done with [result]
+            var next = -1
+
+            when (opcodes[node]) {
+                OP_CALL -> {
+                    result = statusOf(program.nodes[node].act())
+                }
+                OP_INVERT -> {
+                    if (cursor == -1) {
+                        next = 0
+                    } else {
+                        result = when (result) {
+                            STATUS_SUCCESS -> STATUS_FAILURE
+                            STATUS_FAILURE -> STATUS_SUCCESS
+                            else -> STATUS_RUNNING
+                        }
+                    }
+                }
+                OP_ENTER_IF -> {
+                    val slot = slots[node]
+                    if (cursor == -1) {
+                        if (intStorage[slot] == 0 && !program.conditions[node]!!.invoke(this)) {
+                            result = if (params[node] != 0) STATUS_SUCCESS else STATUS_FAILURE
+                        } else {
+                            intStorage[slot] = 1
+                            next = 0
+                        }
+                    } else if (result != STATUS_RUNNING) {
+                        intStorage[slot] = 0
+                    }
+                }
+                OP_REPEAT_UNTIL -> {
+                    if (cursor == -1) {
+                        next = 0
+                    } else {
+                        val until = params[node]
+                        result = if (result == STATUS_RUNNING || until == UNTIL_NULL) {
+                            STATUS_RUNNING
+                        } else if ((result == STATUS_SUCCESS) == (until == UNTIL_TRUE)) {
+                            STATUS_SUCCESS
+                        } else {
+                            STATUS_RUNNING
+                        }
+                    }
+                }
+                OP_SEQUENCE -> {
+                    val and = params[node] == Sequence.AND.ordinal
+                    val slot = slots[node]
+                    var position = cursor
+                    if (position == -1) {
+                        position = intStorage[slot]
+                    } else if (result == STATUS_RUNNING) {
+                        intStorage[slot] = position
+                        position = -1
+                    } else if ((result == STATUS_SUCCESS) == and) {
+                        // Keep on trying
+                        position++
+                    } else {
+                        intStorage[slot] = 0
+                        position = -1
+                    }
+
+                    if (position != -1) {
+                        if (position >= count) {
+                            intStorage[slot] = 0
+                            result = if (and) STATUS_SUCCESS else STATUS_FAILURE
+                        } else {
+                            next = position
+                        }
+                    }
+                }
+                OP_HOT_SEQUENCE -> {
+                    val and = params[node] == Sequence.AND.ordinal
+                    if (cursor == -1 || (result != STATUS_RUNNING && (result == STATUS_SUCCESS) == and)) {
+                        val position = cursor + 1
+                        if (position >= count) {
+                            result = if (and) STATUS_SUCCESS else STATUS_FAILURE
+                        } else {
+                            next = position
+                        }
+                    }
+                }
+                OP_PARALLEL -> {
+                    val and = params[node] == Sequence.AND.ordinal
+                    val slot = slots[node]
+                    var mask = intStorage[slot]
+                    var finished = false
+                    if (cursor != -1 && result != STATUS_RUNNING) {
+                        if ((result == STATUS_SUCCESS) == and) {
+                            mask = mask or (1 shl cursor)
+                            intStorage[slot] = mask
+                        } else {
+                            intStorage[slot] = 0
+                            finished = true
+                        }
+                    }
+
+                    if (!finished) {
+                        var position = cursor + 1
+                        while (position < count && mask and (1 shl position) != 0) {
+                            position++
+                        }
+
+                        if (position < count) {
+                            next = position
+                        } else if (Integer.bitCount(mask) == count) {
+                            intStorage[slot] = 0
+                            result = if (and) STATUS_SUCCESS else STATUS_FAILURE
+                        } else {
+                            result = STATUS_RUNNING
+                        }
+                    }
+                }
+            }
+
+            if (next != -1) {
+                stackCursor[sp] = next
+                sp++
+                stackNode[sp] = program.children[childrenStart[node] + next]
+                stackCursor[sp] = -1
+            } else if (sp == 0) {
+                return result
+            } else {
+                sp--
+            }
+        }
+    }
+}
+
+private fun statusOf(result:Boolean?):Int {
+    return when (result) {
+        null -> STATUS_RUNNING
+        true -> STATUS_SUCCESS
+        false -> STATUS_FAILURE
+    }
 }
 
 typealias Behavior = BehaviorTree.(children:Array<BehaviorNode>) -> Boolean?
 typealias BehaviorOne = BehaviorTree.(child:BehaviorNode) -> Boolean?
 typealias BehaviorNone = BehaviorTree.() -> Boolean?
 
-class BehaviorNode internal constructor(internal val behavior:Behavior, internal val children:Array<BehaviorNode>)
+class BehaviorNode internal constructor(internal val behavior:Behavior, internal val children:Array<BehaviorNode>, internal val builtin:BuiltinOp?)
+
+/** Marks behaviors, which are implemented directly by [BehaviorTree.tick]. */
+internal class BuiltinOp(val opcode:Int, val param:Int, val slot:Int, val condition:(BehaviorTree.() -> Boolean)?)
+
+// Opcodes of BehaviorProgram
+/** Call [BehaviorNode.behavior], used for leaves and custom composites */
+private const val OP_CALL = 0
+private const val OP_INVERT = 1
+private const val OP_ENTER_IF = 2
+private const val OP_REPEAT_UNTIL = 3
+private const val OP_SEQUENCE = 4
+private const val OP_HOT_SEQUENCE = 5
+private const val OP_PARALLEL = 6
+
+private const val UNTIL_FALSE = 0
+private const val UNTIL_TRUE = 1
+private const val UNTIL_NULL = 2
+
+/**
+ * Behavior tree flattened into arrays, nodes are numbered in pre-order, root is 0.
+ * Built-in composites are interpreted by [BehaviorTree.tick] directly, only leaves and custom composites
+ * are called through their lambdas.
+ */
+class BehaviorProgram internal constructor(root:BehaviorNode) {
+    internal val nodes:Array<BehaviorNode>
+    internal val opcode:IntArray
+    internal val param:IntArray
+    internal val slot:IntArray
+    internal val conditions:Array<(BehaviorTree.() -> Boolean)?>
+    internal val childrenStart:IntArray
+    internal val childCount:IntArray
+    /** Indices of children of each node, starting at [childrenStart] */
+    internal val children:IntArray
+    /** Depth of the deepest node, root has depth 1 */
+    internal val maxDepth:Int
+
+    init {
+        val nodes = GdxArray<BehaviorNode>(BehaviorNode::class.java)
+        val childrenStart = GdxIntArray()
+        val children = GdxIntArray()
+        var maxDepth = 0
+
+        fun flatten(node:BehaviorNode, depth:Int):Int {
+            maxDepth = maxOf(maxDepth, depth)
+            val index = nodes.size
+            nodes.add(node)
+            childrenStart.add(0)
+
+            val childIndices = IntArray(node.children.size) { flatten(node.children[it], depth + 1) }
+            childrenStart[index] = children.size
+            children.addAll(childIndices, 0, childIndices.size)
+            return index
+        }
+        flatten(root, 1)
+
+        this.nodes = nodes.toArray()
+        this.opcode = IntArray(nodes.size) { nodes[it].builtin?.opcode ?: OP_CALL }
+        this.param = IntArray(nodes.size) { nodes[it].builtin?.param ?: 0 }
+        this.slot = IntArray(nodes.size) { nodes[it].builtin?.slot ?: -1 }
+        this.conditions = Array(nodes.size) { nodes[it].builtin?.condition }
+        this.childrenStart = childrenStart.toArray()
+        this.childCount = IntArray(nodes.size) { nodes[it].children.size }
+        this.children = children.toArray()
+        this.maxDepth = maxDepth
+    }
+}
 
 private val NO_CHILDREN = emptyArray<BehaviorNode>()
 
@@ -79,7 +317,9 @@ class BehaviorTreeTemplate internal constructor(
         internal val keyDefaults:Array<Any?>,
         internal val intKeyDefaults:IntArray,
         internal val floatKeyDefaults:FloatArray,
-        internal val rootNode:BehaviorNode)
+        internal val rootNode:BehaviorNode) {
+    internal val program = BehaviorProgram(rootNode)
+}
 
 class BehaviorBuilder internal constructor() {
 
@@ -88,6 +328,8 @@ class BehaviorBuilder internal constructor() {
     private val floatKeyDefaults = GdxFloatArray()
 
     private val beginStack = GdxArray<Behavior>()
+    private val beginBuiltins = GdxArray<BuiltinOp?>()
+    private val builtins = IdentityHashMap<Any, BuiltinOp>()
     private val doneStack = GdxArray<BehaviorNode>(BehaviorNode::class.java)
     private val doneStackIndices = GdxIntArray()
 
@@ -115,9 +357,17 @@ class BehaviorBuilder internal constructor() {
         return FloatKey(id)
     }
 
+    /** Mark [behavior] as built-in, see [BehaviorProgram]. */
+    internal fun <B:Any> builtin(behavior:B, opcode:Int, param:Int = 0, slot:Int = -1, condition:(BehaviorTree.() -> Boolean)? = null):B {
+        builtins[behavior] = BuiltinOp(opcode, param, slot, condition)
+        return behavior
+    }
+
+    /** @param key under which the behavior may have been registered as [builtin] */
     @PublishedApi
-    internal fun begin(act:Behavior) {
+    internal fun begin(act:Behavior, key:Any = act) {
         beginStack.add(act)
+        beginBuiltins.add(builtins.remove(key))
         doneStackIndices.add(doneStack.size)
     }
 
@@ -135,7 +385,7 @@ class BehaviorBuilder internal constructor() {
             }
         }
 
-        doneStack.add(BehaviorNode(beginStack.pop(), children))
+        doneStack.add(BehaviorNode(beginStack.pop(), children, beginBuiltins.pop()))
         return children.size
     }
 
@@ -154,7 +404,7 @@ class BehaviorBuilder internal constructor() {
 
     @JvmName("invokeOne")
     inline operator fun BehaviorOne.invoke(build:BehaviorBuilder.() -> Unit) {
-        begin { children -> this@invoke.invoke(this, children[0]) }
+        begin({ children -> this@invoke.invoke(this, children[0]) }, this@invoke)
         build(this@BehaviorBuilder)
         if (end() != 1) {
             throw IllegalArgumentException("Behavior ${this@invoke} can only have one argument")
@@ -172,9 +422,9 @@ class BehaviorBuilder internal constructor() {
         assert(doneStackIndices.size == 0 && beginStack.size == 0)
         val doneStack = doneStack
         val rootNode = when (doneStack.size) {
-            0 -> BehaviorNode({ true }, NO_CHILDREN)
+            0 -> BehaviorNode({ true }, NO_CHILDREN, null)
             1 -> doneStack[0]
-            else -> BehaviorNode({ true }, NO_CHILDREN)
+            else -> BehaviorNode({ true }, NO_CHILDREN, null)
         }
 
         if (doneStack.size == 1) {
@@ -195,18 +445,18 @@ fun behaviorTree(build:BehaviorBuilder.() -> Unit):BehaviorTreeTemplate {
 
 fun BehaviorBuilder.alwaysTrue() = none { true }
 
-fun BehaviorBuilder.invert() = one { child ->
+fun BehaviorBuilder.invert() = builtin(one { child ->
     when (child.act()) {
         true -> false
         false -> true
         null -> null
     }
-}
+}, OP_INVERT)
 
 fun BehaviorBuilder.enterIf(elseB:Boolean = false, condition:BehaviorTree.() -> Boolean):BehaviorOne {
     // 1 = entered, 0 = not entered
     val state = register(0)
-    return one behavior@{ child ->
+    return builtin(one behavior@{ child ->
         if (state() == 0 && !condition()) {
             // Do not enter, fail immediately
             return@behavior elseB
@@ -216,7 +466,7 @@ fun BehaviorBuilder.enterIf(elseB:Boolean = false, condition:BehaviorTree.() ->
         val result = child.act() ?: return@behavior null
         state(0)
         result
-    }
+    }, OP_ENTER_IF, if (elseB) 1 else 0, state.id, condition)
 }
 
 enum class Sequence {
@@ -226,7 +476,7 @@ enum class Sequence {
 
 fun BehaviorBuilder.parallel(type:Sequence):Behavior {
     val doneKey = register(0)
-    return many behavior@{ children ->
+    return builtin(many behavior@{ children ->
         assert(children.size <= 32)
         var childrenBitmask = doneKey()
 
@@ -250,14 +500,15 @@ fun BehaviorBuilder.parallel(type:Sequence):Behavior {
             doneKey(0)
             type == Sequence.AND
         } else {
+            doneKey(childrenBitmask)
             null
         }
-    }
+    }, OP_PARALLEL, type.ordinal, doneKey.id)
 }
 
 fun BehaviorBuilder.sequence(type:Sequence):Behavior {
     val nextKey = register(0)
-    return many behavior@{ children: Array<BehaviorNode> ->
+    return builtin(many behavior@{ children: Array<BehaviorNode> ->
         var next = nextKey()
         while (true) {
             if (next >= children.size) {
@@ -279,11 +530,11 @@ fun BehaviorBuilder.sequence(type:Sequence):Behavior {
 
         nextKey(next)
         null
-    }
+    }, OP_SEQUENCE, type.ordinal, nextKey.id)
 }
 
 /** Like [sequence], but always evaluates all possibilities. */
-fun BehaviorBuilder.hotSequence(type:Sequence) = many behavior@{ children ->
+fun BehaviorBuilder.hotSequence(type:Sequence) = builtin(many behavior@{ children ->
     for (child in children) {
         when (child.act()) {
             null -> return@behavior null
@@ -298,9 +549,9 @@ fun BehaviorBuilder.hotSequence(type:Sequence) = many behavior@{ children ->
         }
     }
     return@behavior type == Sequence.AND
-}
+}, OP_HOT_SEQUENCE, type.ordinal)
 
-fun BehaviorBuilder.repeatUntil(until:Boolean?) = one { child ->
+fun BehaviorBuilder.repeatUntil(until:Boolean?) = builtin(one { child ->
     val result = child.act()
     if (result == null || until == null) {
         null
@@ -309,4 +560,8 @@ fun BehaviorBuilder.repeatUntil(until:Boolean?) = one { child ->
     } else {
         null
     }
-}
+}, OP_REPEAT_UNTIL, when (until) {
+    false -> UNTIL_FALSE
+    true -> UNTIL_TRUE
+    null -> UNTIL_NULL
+})
@@ -0,0 +1,189 @@
+package com.darkyen.paragrowth.animal
+
+import com.badlogic.gdx.math.MathUtils
+import com.darkyen.paragrowth.util.GdxIntArray
+
+/**
+ * Spatial hash of 2D points, for answering "what is near this point" without visiting everything.
+ *
+ * Items are identified by the index returned from [add], which is stable until [clear].
+ * Each tick, items are moved with [move], which only touches the hash when the item crosses a cell boundary,
+ * so keeping the grid up to date is linear in the amount of items.
+ *
+ * Cells are hashed into a fixed table of buckets, so the extent of the world does not have to be known upfront.
+ * Queries are fastest when their radius is close to [cellSize].
+ */
+class SpatialGrid(val cellSize:Float, bucketCountHint:Int = 1024) {
+
+    private val invCellSize = 1f / cellSize
+
+    @PublishedApi
+    internal val bucketMask = MathUtils.nextPowerOfTwo(maxOf(bucketCountHint, 16)) - 1
+    @PublishedApi
+    internal val bucketHeads = IntArray(bucketMask + 1).apply { fill(-1) }
+
+    /** Amount of items in the grid. Valid ids are in [0, size) */
+    var size = 0
+        private set
+
+    @PublishedApi
+    internal var x = FloatArray(16)
+    @PublishedApi
+    internal var y = FloatArray(16)
+    @PublishedApi
+    internal var cellX = IntArray(16)
+    @PublishedApi
+    internal var cellY = IntArray(16)
+    @PublishedApi
+    internal var next = IntArray(16)
+    private var previous = IntArray(16)
+
+    fun x(id:Int):Float = x[id]
+
+    fun y(id:Int):Float = y[id]
+
+    @PublishedApi
+    internal fun cellOf(coordinate:Float):Int = MathUtils.floor(coordinate * invCellSize)
+
+    @PublishedApi
+    internal fun bucketOf(cellX:Int, cellY:Int):Int = ((cellX * 73856093) xor (cellY * 19349663)) and bucketMask
+
+    private fun ensureCapacity(capacity:Int) {
+        if (capacity <= x.size) {
+            return
+        }
+        val newCapacity = maxOf(capacity, x.size * 2)
+        x = x.copyOf(newCapacity)
+        y = y.copyOf(newCapacity)
+        cellX = cellX.copyOf(newCapacity)
+        cellY = cellY.copyOf(newCapacity)
+        next = next.copyOf(newCapacity)
+        previous = previous.copyOf(newCapacity)
+    }
+
+    private fun link(id:Int) {
+        val bucket = bucketOf(cellX[id], cellY[id])
+        val head = bucketHeads[bucket]
+        next[id] = head
+        previous[id] = -1
+        if (head != -1) {
+            previous[head] = id
+        }
+        bucketHeads[bucket] = id
+    }
+
+    private fun unlink(id:Int) {
+        val next = next[id]
+        val previous = previous[id]
+        if (previous == -1) {
+            bucketHeads[bucketOf(cellX[id], cellY[id])] = next
+        } else {
+            this.next[previous] = next
+        }
+        if (next != -1) {
+            this.previous[next] = previous
+        }
+    }
+
+    /** Add new item at given position.
+     * @return id of the new item */
+    fun add(x:Float, y:Float):Int {
+        val id = size++
+        ensureCapacity(size)
+        this.x[id] = x
+        this.y[id] = y
+        cellX[id] = cellOf(x)
+        cellY[id] = cellOf(y)
+        link(id)
+        return id
+    }
+
+    /** Update position of item with [id]. Cheap when the item stays in the same cell. */
+    fun move(id:Int, x:Float, y:Float) {
+        this.x[id] = x
+        this.y[id] = y
+        val newCellX = cellOf(x)
+        val newCellY = cellOf(y)
+        if (newCellX != cellX[id] || newCellY != cellY[id]) {
+            unlink(id)
+            cellX[id] = newCellX
+            cellY[id] = newCellY
+            link(id)
+        }
+    }
+
+    /** Remove all items. */
+    fun clear() {
+        bucketHeads.fill(-1)
+        size = 0
+    }
+
+    /** Call [action] for each item, whose distance from [x], [y] is at most [radius].
+     * Order of visited items is unspecified. */
+    inline fun forEachWithin(x:Float, y:Float, radius:Float, action:(id:Int, distance2:Float) -> Unit) {
+        val radius2 = radius * radius
+        val minCellX = cellOf(x - radius)
+        val maxCellX = cellOf(x + radius)
+        val minCellY = cellOf(y - radius)
+        val maxCellY = cellOf(y + radius)
+
+        if ((maxCellX - minCellX + 1).toLong() * (maxCellY - minCellY + 1).toLong() > bucketMask + 1) {
+            // Query covers more cells than there are buckets, it is cheaper to check everything
+            for (id in 0 until size) {
+                val dX = this.x[id] - x
+                val dY = this.y[id] - y
+                val distance2 = dX * dX + dY * dY
+                if (distance2 <= radius2) {
+                    action(id, distance2)
+                }
+            }
+            return
+        }
+
+        for (cY in minCellY..maxCellY) {
+            for (cX in minCellX..maxCellX) {
+                var id = bucketHeads[bucketOf(cX, cY)]
+                while (id != -1) {
+                    // Different cells may share a bucket, so check the cell to not report anything twice
+                    if (cellX[id] == cX && cellY[id] == cY) {
+                        val dX = this.x[id] - x
+                        val dY = this.y[id] - y
+                        val distance2 = dX * dX + dY * dY
+                        if (distance2 <= radius2) {
+                            action(id, distance2)
+                        }
+                    }
+                    id = next[id]
+                }
+            }
+        }
+    }
+
+    /** Collect ids of all items within [radius] from [x], [y] into [out].
+     * @return amount of found items */
+    fun queryWithin(x:Float, y:Float, radius:Float, out:GdxIntArray):Int {
+        val sizeBefore = out.size
+        forEachWithin(x, y, radius) { id, _ -> out.add(id) }
+        return out.size - sizeBefore
+    }
+
+    /** @return true if there is at least one item within [radius] from [x], [y] */
+    fun anyWithin(x:Float, y:Float, radius:Float):Boolean {
+        forEachWithin(x, y, radius) { _, _ -> return true }
+        return false
+    }
+
+    /** Find the nearest item within [radius] from [x], [y], for which [accept] returns true.
+     * @return id of the item or -1 if there is no such item */
+    inline fun nearest(x:Float, y:Float, radius:Float, accept:(id:Int) -> Boolean):Int {
+        var nearest = -1
+        var nearestDistance2 = Float.POSITIVE_INFINITY
+        forEachWithin(x, y, radius) { id, distance2 ->
+            if (distance2 < nearestDistance2 && accept(id)) {
+                nearest = id
+                nearestDistance2 = distance2
+            }
+        }
+        return nearest
+    }
+}
@@ -15,50 +15,91 @@ import kotlin.math.sqrt
  * For example, if heft value of speed and turning is both 1, the actor can't turn at max speed at all and has to slow down.
  * When it slows down to 70% of max speed, it can then turn with 30% of max turn speed, etc.
  */
-open class AgentAttributes {
+open class AgentAttributes protected constructor(attributeCount:Int) {
+
+    constructor():this(ATTRIBUTE_COUNT)
+
+    /** All attributes, packed. Indices are the constants in companion objects. */
+    @JvmField
+    val values = FloatArray(attributeCount)
+
+    init {
+        values[MAX_ACCELERATION] = 1f
+        values[MAX_DECELERATION] = 1f
+        values[AGILITY] = 0.5f
+        values[MAX_SPEED] = 1f
+        values[SPEED_HEFT] = 0.75f
+        values[MAX_TURN_SPEED] = 1f
+        values[TURN_HEFT] = 0.75f
+    }
+
     /** Units per second per second */
-    var maxAcceleration:Float = 1f
+    var maxAcceleration:Float
+        get() = values[MAX_ACCELERATION]
+        set(value) { values[MAX_ACCELERATION] = value }
     /** Units per second per second */
-    var maxDeceleration:Float = 1f
+    var maxDeceleration:Float
+        get() = values[MAX_DECELERATION]
+        set(value) { values[MAX_DECELERATION] = value }
     /** [0..1]: How much does haste affect acceleration?
      * 0 = completely linearly, agent uses N% of acceleration to reach N% of max speed
      * 1 = not at all, agent uses max acceleration even if it is trying to reach low speed */
-    var agility:Float = 0.5f
+    var agility:Float
+        get() = values[AGILITY]
+        set(value) { values[AGILITY] = value }
     /** Units per second */
-    var maxSpeed:Float = 1f
+    var maxSpeed:Float
+        get() = values[MAX_SPEED]
+        set(value) { values[MAX_SPEED] = value }
     /** [0..1]: how much does max speed occupy the agent to prevent steering? */
-    var speedHeft:Float = 0.75f
+    var speedHeft:Float
+        get() = values[SPEED_HEFT]
+        set(value) { values[SPEED_HEFT] = value }
     /** Radians per second */
-    var maxTurnSpeed:Float = 1f
+    var maxTurnSpeed:Float
+        get() = values[MAX_TURN_SPEED]
+        set(value) { values[MAX_TURN_SPEED] = value }
     /** [0..1]: how much does max turn speed occupy the agent to prevent linear movement? */
-    var turnHeft:Float = 0.75f
-}
-
-interface AgentAttributesMethods<A:AgentAttributes> {
-    fun A.setToLerp(a0:A, a1:A, progress:Float)
-    fun A.set(to:A)
-}
-
-inline fun <reified A:AgentAttributes> createAgentAttributesMethods():AgentAttributesMethods<A> {
-    val fields = A::class.java.fields
-
-    return object : AgentAttributesMethods<A> {
-        override fun A.setToLerp(a0: A, a1: A, progress: Float) {
-            for (field in fields) {
-                field.setFloat(this, lerp(field.getFloat(a0), field.getFloat(a1), progress))
-            }
+    var turnHeft:Float
+        get() = values[TURN_HEFT]
+        set(value) { values[TURN_HEFT] = value }
+
+    /** Set all attributes to linear interpolation between [a0] and [a1]. All must be of the same type. */
+    fun setToLerp(a0:AgentAttributes, a1:AgentAttributes, progress:Float) {
+        val values = values
+        val values0 = a0.values
+        val values1 = a1.values
+        assert(values.size == values0.size && values.size == values1.size)
+        for (i in values.indices) {
+            val v0 = values0[i]
+            values[i] = v0 + (values1[i] - v0) * progress
         }
+    }
 
-        override fun A.set(to: A) {
-            for (field in fields) {
-                field.setFloat(this, field.getFloat(to))
-            }
-        }
+    /** Set all attributes to the values of [to], which must be of the same type. */
+    fun set(to:AgentAttributes) {
+        assert(values.size == to.values.size)
+        System.arraycopy(to.values, 0, values, 0, values.size)
+    }
 
+    companion object {
+        const val MAX_ACCELERATION = 0
+        const val MAX_DECELERATION = 1
+        const val AGILITY = 2
+        const val MAX_SPEED = 3
+        const val SPEED_HEFT = 4
+        const val MAX_TURN_SPEED = 5
+        const val TURN_HEFT = 6
+        /** Amount of attributes in [AgentAttributes], first free index for subclasses. */
+        const val ATTRIBUTE_COUNT = 7
     }
 }
 
-class MovementAgent(private val timestep:Float = 1f / 120f) {
+/**
+ * Moves agent with a fixed [timestep], interpolating the state between the steps.
+ * [timestep] may be changed on the fly, for example to make distant agents cheaper to simulate.
+ */
+class MovementAgent(var timestep:Float = 1f / 120f) {
 
     private var timeAccumulator = 0f
     private var blend = 0f
@@ -115,6 +156,14 @@ class MovementAgent(private val timestep:Float = 1f / 120f) {
         }
     }
 
+    /** Scratch target for [moveTo] with coordinates. */
+    private val moveToTarget = Vector2()
+
+    /** Arrive at [targetX], [targetY], with zero velocity. */
+    fun moveTo(targetX:Float, targetY:Float, haste:Float, delta:Float, attributes:AgentAttributes, targetVelocity:Float = 0f) {
+        moveTo(moveToTarget.set(targetX, targetY), haste, delta, attributes, targetVelocity)
+    }
+
     private fun doMoveTo(target: Vector2, haste: Float, attributes: AgentAttributes, targetVelocity: Float) {
         /*
         We have some preferred deceleration to achieve ... comfortableDeceleration
@@ -154,6 +203,18 @@ class MovementAgent(private val timestep:Float = 1f / 120f) {
         }
     }
 
+    /** Keep on moving for [delta] seconds, while turning with [turnSpeed] and changing velocity towards [targetVelocity]
+     * with at most [maxAcceleration], in a single step. Cheap, but inaccurate for large [delta]. */
+    fun coast(delta:Float, turnSpeed:Float, targetVelocity:Float, maxAcceleration:Float) {
+        oldPosition.set(newPosition)
+        oldHeading = newHeading
+        oldVelocity = newVelocity
+        val acceleration = if (delta > 0f) clamp((targetVelocity - newVelocity) / delta, -maxAcceleration, maxAcceleration) else 0f
+        doMove(acceleration, turnSpeed, delta)
+        timeAccumulator = 0f
+        blend = 1f
+    }
+
     private fun doMove(targetHeading:Float, haste:Float, attributes:AgentAttributes, maxAcceleration:Float = Float.POSITIVE_INFINITY, turnTarget:Vector2? = null) {
         val requiredHeadingChange = angleDelta(newHeading, targetHeading)
         var requiredVelocity = attributes.maxSpeed * haste
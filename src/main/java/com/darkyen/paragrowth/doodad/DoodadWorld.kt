@@ -1,5 +1,6 @@
 package com.darkyen.paragrowth.doodad
 
+import com.badlogic.gdx.Gdx
 import com.badlogic.gdx.graphics.Camera
 import com.badlogic.gdx.graphics.Color
 import com.badlogic.gdx.graphics.GL20
@@ -8,6 +9,7 @@ import com.badlogic.gdx.math.MathUtils
 import com.badlogic.gdx.math.RandomXS128
 import com.badlogic.gdx.math.collision.BoundingBox
 import com.badlogic.gdx.utils.Disposable
+import com.badlogic.gdx.utils.LongMap
 import com.darkyen.paragrowth.WorldCharacteristics
 import com.darkyen.paragrowth.WorldSpecifics
 import com.darkyen.paragrowth.render.*
@@ -16,30 +18,59 @@ import org.lwjgl.opengl.GL15
 import java.nio.FloatBuffer
 
 /**
- *
+ * Doodads of a world, generated in patches.
+ * Either all at once, see [build], or for [WorldSpecifics.open] worlds around the player, see [stream].
  */
-class DoodadWorld private constructor(seed: Long, world: WorldSpecifics) : Disposable {
+class DoodadWorld private constructor(private val seed: Long, private val world: WorldSpecifics, streamed: Boolean) : Disposable {
 
     private val patches: GdxArray<DoodadPatch>
 
+    /** Context of the graph which builds this, when cancelled, this is disposed */
+    private val context = TaskContext.current()
+
     private var generatePatchTasks:GdxArray<Delayed<Int>>? = GdxArray()
 
+    /** Context of the graph for which are blends mapped, null when they are not, render thread only */
+    private var blendContext:TaskContext? = null
+    /** Computation of mapped blends */
+    private var blendTask:Task<Unit>? = null
+
+    private val doodadSet = Doodads.createDoodadSet(RandomXS128(seed), world.characteristics)
+
+    /** Patches around the player, when streamed */
+    private val ring:PatchRing? = if (streamed) PatchRing(PATCH_SIZE.toFloat(), PATCH_SIZE.toFloat(), STREAM_RADIUS, STREAM_RADIUS) else null
+    /** Generation of streamed patches, which are not loaded yet, by [patchKey] */
+    private val streamLoading = LongMap<Delayed<Unit>>()
+    /** Loaded streamed patches, by [patchKey], null if the patch has no doodads */
+    private val streamLoaded = LongMap<DoodadPatch?>()
+
     init {
+        if (streamed) {
+            patches = GdxArray(false, 16, DoodadPatch::class.java)
+            generatePatchTasks = null
+        } else {
+            patches = generateAllPatches()
+        }
+
+        context.token.onCancel {
+            Gdx.app.postRunnable(::dispose)
+        }
+    }
+
+    private fun generateAllPatches():GdxArray<DoodadPatch> {
         val minPatchX = MathUtils.floor(world.offsetX / PATCH_SIZE)
         val minPatchY = MathUtils.floor(world.offsetY / PATCH_SIZE)
         val maxPatchX = MathUtils.ceil((world.offsetX + world.sizeX()) / PATCH_SIZE)
         val maxPatchY = MathUtils.ceil((world.offsetY + world.sizeY()) / PATCH_SIZE)
 
-        this.patches = GdxArray(false,(maxPatchX - minPatchX) * (maxPatchY - minPatchY), DoodadPatch::class.java)
-
-        val doodadSet = Doodads.createDoodadSet(RandomXS128(seed), world.characteristics)
+        val patches = GdxArray(false,(maxPatchX - minPatchX) * (maxPatchY - minPatchY), DoodadPatch::class.java)
 
         for (x in minPatchX until maxPatchX) {
             for (y in minPatchY until maxPatchY) {
                 val instances = GdxArray<DoodadInstance>(DoodadInstance::class.java)
-                generatePatchTasks!!.add(offload {
+                generatePatchTasks!!.add(offload(context) {
                     buildPatch(seed + (x - minPatchX) + (y - minPatchY) * (maxPatchX - minPatchY), world, (x * PATCH_SIZE).toFloat(), (y * PATCH_SIZE).toFloat(), doodadSet, instances, world.characteristics)
-                }.map { builder ->
+                }.mapOnGlThread { builder ->
                     if (builder.indices.size == 0) {
                         0
                     } else {
@@ -50,18 +81,113 @@ class DoodadWorld private constructor(seed: Long, world: WorldSpecifics) : Dispo
                 })
             }
         }
+        return patches
+    }
+
+    /** Call each frame with the position of the player, when streamed, on the render thread. */
+    fun update(playerX:Float, playerY:Float) {
+        val ring = ring ?: return
+        if (ring.update(playerX, playerY)) {
+            val loading = streamLoading.entries().iterator()
+            while (loading.hasNext()) {
+                val entry = loading.next()
+                if (!ring.contains(patchKeyX(entry.key), patchKeyY(entry.key))) {
+                    entry.value.cancel()
+                    loading.remove()
+                }
+            }
+
+            // Patches just left behind are kept, in case the player turns back
+            val loaded = streamLoaded.entries().iterator()
+            while (loaded.hasNext()) {
+                val entry = loaded.next()
+                if (!ring.contains(patchKeyX(entry.key), patchKeyY(entry.key), 1)) {
+                    entry.value?.let { patch ->
+                        patches.removeValue(patch, true)
+                        patch.dispose()
+                    }
+                    loaded.remove()
+                }
+            }
+
+            ring.forEach { x, y ->
+                val key = patchKey(x, y)
+                if (!streamLoaded.containsKey(key) && !streamLoading.containsKey(key)) {
+                    streamLoading.put(key, streamPatch(ring, x, y))
+                }
+            }
+        }
+
+        // Polling moves done generation to GlJobs
+        val loading = streamLoading.entries().iterator()
+        while (loading.hasNext()) {
+            if (loading.next().value.poll() != null) {
+                loading.remove()
+            }
+        }
+    }
+
+    /** Block until all wanted streamed patches are loaded. Render thread only. */
+    fun finishLoading() {
+        for (entry in streamLoading.entries()) {
+            entry.value.get()
+        }
+        streamLoading.clear()
+    }
+
+    private fun streamPatch(ring:PatchRing, x:Int, y:Int):Delayed<Unit> {
+        val key = patchKey(x, y)
+        val baseX = x * PATCH_SIZE
+        val baseY = y * PATCH_SIZE
+
+        return TaskContext(CancellationToken(), Priority.VISIBLE).within {
+            val instances = GdxArray<DoodadInstance>(DoodadInstance::class.java)
+            offload(order = ring.order(x, y)) {
+                // Heights of the patch and one unit around it, for interpolation
+                val region = world.openRegion(baseX - 1, baseY - 1, PATCH_SIZE + 3, PATCH_SIZE + 3)
+                buildPatch(seed + key, region, baseX.toFloat(), baseY.toFloat(), doodadSet, instances, world.characteristics)
+            }.mapOnGlThread { builder -> completeStreamedPatch(key, builder, instances) }
+        }
+    }
+
+    private fun completeStreamedPatch(key:Long, builder:ModelBuilder, instances:GdxArray<DoodadInstance>) {
+        if (builder.indices.size == 0) {
+            streamLoaded.put(key, null)
+            return
+        }
+        val patch = completePatch(builder, instances)
+        patches.add(patch)
+        streamLoaded.put(key, patch)
     }
 
     private fun tryCompleteInitialization():Boolean {
         val generatePatchTasks = generatePatchTasks ?: return true
+        // Poll all, so that GL stages of all done patches get queued
+        var done = true
+        for (task in generatePatchTasks) {
+            if (task.poll() == null) {
+                done = false
+            }
+        }
+        if (!done) {
+            return false
+        }
         var totalDoodads = 0
         for (task in generatePatchTasks) {
-            totalDoodads += task.poll() ?: return false
+            totalDoodads += task.poll()!!
         }
         this.generatePatchTasks = null
         return true
     }
 
+    private val progress:Float
+        get() {
+            val generatePatchTasks = generatePatchTasks ?: return 1f
+            var progress = 0f
+            generatePatchTasks.each { progress += it.progress }
+            return progress / maxOf(generatePatchTasks.size, 1)
+        }
+
     private fun completeInitialization():Boolean {
         val generatePatchTasks = generatePatchTasks ?: return true
         var totalDoodads = 0
@@ -90,53 +216,66 @@ class DoodadWorld private constructor(seed: Long, world: WorldSpecifics) : Dispo
     }
 
     fun prepareBlendIn(from: WorldSpecifics):Delayed<DoodadWorld> {
-        patches.each { patch ->
-            patch.blendsMappedData = patch.blends.beginMappedAccess(GL15.GL_WRITE_ONLY).asFloatBuffer()
+        return prepareBlend(from)
+    }
+
+    fun prepareBlendOut(to:WorldSpecifics): Delayed<DoodadWorld> {
+        return prepareBlend(to)
+    }
+
+    /** Compute blends, which shift doodads under the terrain of [world]. Streamed doodads can't be blended. */
+    private fun prepareBlend(world:WorldSpecifics):Delayed<DoodadWorld> {
+        assert(ring == null)
+        val context = TaskContext.current()
+        context.token.onCancel {
+            Gdx.app.postRunnable { endBlend(context) }
         }
 
-        return offload {
+        return onGlThread(context) {
+            // Blending of a cancelled graph may still be in progress
+            endBlend()
             patches.each { patch ->
-                val blends = patch.blendsMappedData!!
-                for (doodad in patch.doodads) {
-                    val underZ = from.getHeight(doodad.position.x, doodad.position.y)
-                    val shift = underZ - doodad.position.z - doodad.blendVerticesHeight - 3f
-                    for (i in doodad.blendVerticesFrom until doodad.blendVerticesTo) {
-                        blends.put(i, shift)
+                patch.blendsMappedData = patch.blends.beginMappedAccess(GL15.GL_WRITE_ONLY).asFloatBuffer()
+            }
+            blendContext = context
+            this
+        }.then {
+            val blendTask = offload(context) {
+                patches.each { patch ->
+                    context.token.check()
+                    val blends = patch.blendsMappedData!!
+                    for (doodad in patch.doodads) {
+                        val worldZ = world.getHeight(doodad.position.x, doodad.position.y)
+                        val shift = worldZ - doodad.position.z - doodad.blendVerticesHeight - 3f
+
+                        for (i in doodad.blendVerticesFrom until doodad.blendVerticesTo) {
+                            blends.put(i, shift)
+                        }
                     }
                 }
-                patch.blendsMappedData = null
-            }
-        }.map {
-            patches.each { patch ->
-                patch.blends.endMappedAccess()
             }
+            this.blendTask = blendTask
+            blendTask
+        }.mapOnGlThread {
+            endBlend()
             this
         }
     }
 
-    fun prepareBlendOut(to:WorldSpecifics): Delayed<DoodadWorld> {
-        patches.each { patch ->
-            patch.blendsMappedData = patch.blends.beginMappedAccess(GL15.GL_WRITE_ONLY).asFloatBuffer()
+    /** Wait for the blend computation to stop, if any, and unmap blends.
+     * @param of end only blends mapped for this context, null to end any */
+    private fun endBlend(of:TaskContext? = null) {
+        val blendContext = blendContext ?: return
+        if (of != null && of !== blendContext) {
+            return
         }
+        this.blendContext = null
+        blendTask?.await()
+        blendTask = null
 
-        return offload {
-            patches.each { patch ->
-                val blends = patch.blendsMappedData!!
-                for (doodad in patch.doodads) {
-                    val newZ = to.getHeight(doodad.position.x, doodad.position.y)
-                    val shift = newZ - doodad.position.z - doodad.blendVerticesHeight - 3f
-
-                    for (i in doodad.blendVerticesFrom until doodad.blendVerticesTo) {
-                        blends.put(i, shift)
-                    }
-                }
-                patch.blendsMappedData = null
-            }
-        }.map {
-            patches.each { patch ->
-                patch.blends.endMappedAccess()
-            }
-            this
+        patches.each { patch ->
+            patch.blendsMappedData = null
+            patch.blends.endMappedAccess()
         }
     }
 
@@ -157,12 +296,14 @@ class DoodadWorld private constructor(seed: Long, world: WorldSpecifics) : Dispo
     }
 
     override fun dispose() {
-        patches.each { patch ->
-            patch.indices.dispose()
-            patch.vertices.dispose()
-            patch.blends.dispose()
-            patch.vao.dispose()
+        endBlend()
+        for (entry in streamLoading.entries()) {
+            entry.value.cancel()
         }
+        streamLoading.clear()
+        streamLoaded.clear()
+
+        patches.each { it.dispose() }
         patches.clear()
     }
 
@@ -177,11 +318,20 @@ class DoodadWorld private constructor(seed: Long, world: WorldSpecifics) : Dispo
         val boundingBox = BoundingBox()
 
         var blendsMappedData: FloatBuffer? = null
+
+        fun dispose() {
+            indices.dispose()
+            vertices.dispose()
+            blends.dispose()
+            vao.dispose()
+        }
     }
 
     companion object {
         private const val PATCH_SIZE = 256
         private const val DOODADS_PER_PATCH = 256
+        /** Streamed patches around the patch of the player, which are kept loaded, enough to cover the view distance */
+        private const val STREAM_RADIUS = 2
 
         private fun buildPatch(seed: Long, world: WorldSpecifics, baseX: Float, baseY: Float, doodadSet: GdxArray<Doodad>, instances:GdxArray<DoodadInstance>, characteristics: WorldCharacteristics): ModelBuilder {
             val random = RandomXS128(seed)
@@ -231,10 +381,22 @@ class DoodadWorld private constructor(seed: Long, world: WorldSpecifics) : Dispo
             return patch
         }
 
+        /** Doodads of an [WorldSpecifics.open] world, generated around the player, see [update]. */
+        fun stream(seed: Long, world: WorldSpecifics):DoodadWorld {
+            return DoodadWorld(seed, world, true)
+        }
+
         fun build(seed: Long, world: WorldSpecifics):Delayed<DoodadWorld> {
-            val dw = DoodadWorld(seed, world)
+            val dw = DoodadWorld(seed, world, false)
             return object : Delayed<DoodadWorld> {
+                override val context:TaskContext
+                    get() = dw.context
+
+                override val progress:Float
+                    get() = dw.progress
+
                 override fun poll(): DoodadWorld? {
+                    context.token.check()
                     return if (dw.tryCompleteInitialization()) {
                         dw
                     } else {
@@ -243,6 +405,7 @@ class DoodadWorld private constructor(seed: Long, world: WorldSpecifics) : Dispo
                 }
 
                 override fun get(): DoodadWorld {
+                    context.token.check()
                     dw.completeInitialization()
                     return dw
                 }
@@ -0,0 +1,58 @@
+package com.darkyen.paragrowth.font;
+
+import com.badlogic.gdx.graphics.Pixmap;
+import org.lwjgl.stb.STBTTFontinfo;
+import org.lwjgl.system.MemoryStack;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+import static org.lwjgl.stb.STBTruetype.*;
+import static org.lwjgl.system.MemoryStack.stackPush;
+
+/**
+ * Glyphs rendered as signed distance fields, which can be drawn crisp in any size.
+ *
+ * Distance is stored in the alpha channel, {@link #ON_EDGE} is the glyph outline, larger values are inside.
+ * Glyphs are always rendered in {@link #PIXEL_HEIGHT} and scaled to the font size.
+ */
+final class DistanceField {
+
+	/** Pixel height of the font in which are the glyphs rendered */
+	static final int PIXEL_HEIGHT = 64;
+	/** Pixels of the distance field around each glyph */
+	static final int PADDING = 6;
+	static final int ON_EDGE = 128;
+	/** Distance falls to zero at the end of the padding */
+	static final float PIXEL_DISTANCE_SCALE = ON_EDGE / (float) PADDING;
+
+	private DistanceField() {
+	}
+
+	/**
+	 * Render distance field of a single glyph, thread safe.
+	 * @param scale of the font, for {@link #PIXEL_HEIGHT} use {@code stbtt_ScaleForPixelHeight(fontInfo, PIXEL_HEIGHT)}
+	 * @param outOffset x and y offset of the pixmap from the glyph origin, in pixels
+	 * @return distance field pixmap, null if the glyph is empty */
+	static Pixmap rasterize(STBTTFontinfo fontInfo, float scale, int glyphIndex, int[] outOffset) {
+		if (stbtt_IsGlyphEmpty(fontInfo, glyphIndex)) return null;
+
+		try (MemoryStack stack = stackPush()) {
+			final IntBuffer w = stack.mallocInt(1);
+			final IntBuffer h = stack.mallocInt(1);
+			final IntBuffer xOff = stack.mallocInt(1);
+			final IntBuffer yOff = stack.mallocInt(1);
+			final ByteBuffer sdf = stbtt_GetGlyphSDF(fontInfo, scale, glyphIndex, PADDING, (byte) ON_EDGE, PIXEL_DISTANCE_SCALE, w, h, xOff, yOff);
+			if (sdf == null) return null;
+			outOffset[0] = xOff.get(0);
+			outOffset[1] = yOff.get(0);
+
+			final Pixmap pixmap = new Pixmap(w.get(0), h.get(0), Pixmap.Format.Alpha);
+			final ByteBuffer pixels = pixmap.getPixels();
+			pixels.put(sdf);
+			pixels.flip();
+			stbtt_FreeSDF(sdf);
+			return pixmap;
+		}
+	}
+}
@@ -10,8 +10,8 @@ import com.badlogic.gdx.utils.IntMap;
 @SuppressWarnings("WeakerAccess")
 public final class Font implements Disposable {
 
-    /** Textures of font's pages. */
-    public final Texture[] pages;
+    /** Textures of font's pages, replaced with a new array when pages are added or grow in {@link #update()}. */
+    public Texture[] pages;
     /** Typographic line height */
     public final int lineHeight;
     public final int lineGap;
@@ -19,12 +19,20 @@ public final class Font implements Disposable {
     public final int ascent;
     /** The distance from baseline to bottom */
     public final int descent;
-    /** Loaded glyphs */
+    /** Loaded glyphs, dynamic fonts add more on demand. Use {@link #getGlyph(int)} to look them up. */
     public final IntMap<Glyph> glyphs;
     /** The glyph to display for characters not in the font. May be null. */
     public final Glyph missingGlyph;
+    /**
+     * 0 for plain alpha fonts. For fonts whose pages are signed distance fields (in alpha, 0.5 is the edge),
+     * by how much the distance changes over one unit of this font's size.
+     * To antialias, smooth over {@code 0.5 +- distanceField / 2 / (screen pixels per unit)}.
+     */
+    public final float distanceField;
+    /** Rasterizes glyphs which are not loaded yet */
+    private final GlyphRasterizer rasterizer;
 
-    Font(Texture[] pages, int lineHeight, int lineGap, int ascent, int descent, IntMap<Glyph> glyphs) {
+    Font(Texture[] pages, int lineHeight, int lineGap, int ascent, int descent, IntMap<Glyph> glyphs, float distanceField, GlyphRasterizer rasterizer) {
         this.pages = pages;
         this.lineHeight = lineHeight;
         this.lineGap = lineGap;
@@ -32,11 +40,39 @@ public final class Font implements Disposable {
         this.descent = descent;
         this.glyphs = glyphs;
         this.missingGlyph = glyphs.get(0);
+        this.distanceField = distanceField;
+        this.rasterizer = rasterizer;
+    }
+
+    /**
+     * @return glyph for the code point or {@link #missingGlyph}.
+     * Glyphs which are not loaded yet are rasterized, they are drawable after the next {@link #update()}. */
+    public Glyph getGlyph(int codePoint) {
+        Glyph glyph = glyphs.get(codePoint);
+        if (glyph == null) {
+            glyph = rasterizer.rasterize(codePoint);
+            if (glyph != null) {
+                glyphs.put(codePoint, glyph);
+            }
+        }
+        return glyph == null ? missingGlyph : glyph;
+    }
+
+    /** Upload glyphs rasterized since the last update to {@link #pages}. Call on the GL thread before drawing. */
+    public void update() {
+        pages = rasterizer.update(pages);
+    }
+
+    /**
+     * @return number which changes whenever texture coordinates of already loaded glyphs change, because their page grew.
+     * Vertices made from older glyph coordinates must be made again. */
+    public int getVersion() {
+        return rasterizer.getVersion();
     }
 
     public boolean isWhitespace(int codepoint) {
         if (codepoint <= 0) return false;
-        final Glyph glyph = glyphs.get(codepoint, missingGlyph);
+        final Glyph glyph = getGlyph(codepoint);
         if (glyph == null) {
             return Character.isWhitespace(codepoint);
         } else {
@@ -44,6 +80,7 @@ public final class Font implements Disposable {
         }
     }
 
+    /** Distance field fonts are shared by all loaders of the same file and size, disposing one disposes it for all. */
     @Override
     public void dispose() {
         for (int i = 0; i < pages.length; i++) {
@@ -3,13 +3,10 @@ package com.darkyen.paragrowth.font;
 import com.badlogic.gdx.files.FileHandle;
 import com.badlogic.gdx.graphics.Pixmap;
 import com.badlogic.gdx.graphics.Texture;
-import com.badlogic.gdx.math.MathUtils;
-import com.badlogic.gdx.math.Rectangle;
-import com.badlogic.gdx.utils.Array;
 import com.badlogic.gdx.utils.IntMap;
+import com.badlogic.gdx.utils.ObjectMap;
 import org.lwjgl.stb.STBTTFontinfo;
 import org.lwjgl.system.MemoryStack;
-import org.lwjgl.system.MemoryUtil;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -43,122 +40,101 @@ public final class FontLoader {
 		}
 	}
 
-	public static Font loadFont (FileHandle font, int size, float scale) {
-		final STBTTFontinfo fontInfo = STBTTFontinfo.malloc();
-		final ByteBuffer fontByteData = loadFile(font);
-		if (!stbtt_InitFont(fontInfo, fontByteData, stbtt_GetFontOffsetForIndex(fontByteData, 0)))
-			throw new RuntimeException("Init failed");
-
-		final float ascent, descent, lineGap;
-		{
-			final IntBuffer ascentB = MemoryUtil.memAllocInt(1);
-			final IntBuffer descentB = MemoryUtil.memAllocInt(1);
-			final IntBuffer lineGapB = MemoryUtil.memAllocInt(1);
-			stbtt_GetFontVMetrics(fontInfo, ascentB, descentB, lineGapB);
-
-			final float metricScale = stbtt_ScaleForPixelHeight(fontInfo, size);
-
-			ascent = ascentB.get(0) * metricScale;
-			descent = descentB.get(0) * metricScale;
-			lineGap = lineGapB.get(0) * metricScale;
+	/** Printable ASCII characters, to preload into dynamic fonts */
+	public static final String ASCII;
+	static {
+		final StringBuilder ascii = new StringBuilder();
+		for (char c = ' '; c <= '~'; c++) {
+			ascii.append(c);
 		}
+		ASCII = ascii.toString();
+	}
 
-		final Array<GlyphData> glyphs = new Array<>();
-		final int padding = 1;
-
-		int glyphSurfaceArea = 0;
-		for (int codePoint = 0; codePoint < 0x10FFFF; codePoint++) {
-			final int glyphIndex = stbtt_FindGlyphIndex(fontInfo, codePoint);
-			if (glyphIndex == 0 && codePoint != 0) continue;
+	/**
+	 * Load font whose glyphs are rasterized only when they are first needed (see {@link Font#getGlyph(int)}).
+	 * @param size pixel height of the font
+	 * @param scale supersampling of the glyphs
+	 * @param preload characters to rasterize immediately, may be null */
+	public static Font loadDynamicFont(FileHandle font, int size, float scale, String preload) {
+		return loadDynamicFont(font, size, scale, false, preload);
+	}
 
-			final GlyphData glyph = GlyphData.create(fontInfo, codePoint, glyphIndex, size, scale);
-			glyphs.add(glyph);
-			if (glyph.pixmap != null) {
-				glyphSurfaceArea += (glyph.pixmap.getWidth() + padding) * (glyph.pixmap.getHeight() + padding);
+	/**
+	 * Load font whose glyphs are signed distance fields (see {@link Font#distanceField}),
+	 * rasterized only when they are first needed (see {@link Font#getGlyph(int)}).
+	 * Fonts of the same file and size are shared.
+	 * @param size pixel height of the font
+	 * @param preload characters to rasterize immediately, may be null */
+	public static Font loadDynamicDistanceFieldFont(FileHandle font, int size, String preload) {
+		final String key = font.path()+"@"+size;
+		synchronized (DYNAMIC_DISTANCE_FIELD_FONTS) {
+			Font result = DYNAMIC_DISTANCE_FIELD_FONTS.get(key);
+			if (result == null) {
+				result = loadDynamicFont(font, size, 1f, true, preload);
+				DYNAMIC_DISTANCE_FIELD_FONTS.put(key, result);
+			} else if (preload != null) {
+				preload.codePoints().forEach(result::getGlyph);
+				result.update();
 			}
+			return result;
 		}
+	}
 
-		glyphs.sort((a, b) -> {
-			if (a.pixmap == null && b.pixmap == null) {
-				return 0;
-			} else if (a.pixmap == null) {
-				return -1;
-			} else if (b.pixmap == null) {
-				return 1;
-			} else {
-				return PixmapPacker.SORT_COMPARATOR.compare(a.pixmap, b.pixmap);
+	/**
+	 * Like {@link #loadDynamicDistanceFieldFont(FileHandle, int, String)}, but the preloaded glyphs are only rasterized,
+	 * not uploaded, so that it can be called from any thread. Call {@link Font#update()} on the render thread before use.
+	 */
+	public static Font prepareDynamicDistanceFieldFont(FileHandle font, int size, String preload) {
+		final String key = font.path()+"@"+size;
+		synchronized (DYNAMIC_DISTANCE_FIELD_FONTS) {
+			Font result = DYNAMIC_DISTANCE_FIELD_FONTS.get(key);
+			if (result == null) {
+				result = loadDynamicFont(font, size, 1f, true, preload, false);
+				DYNAMIC_DISTANCE_FIELD_FONTS.put(key, result);
+			} else if (preload != null) {
+				preload.codePoints().forEach(result::getGlyph);
 			}
-		});
-
-		// Guess best texture size
-		glyphSurfaceArea += glyphSurfaceArea / 10;// Add 10% of packing garbage
-		final int pageSurfaceAreaPower = findPower(MathUtils.nextPowerOfTwo(glyphSurfaceArea));
-		final int pageHeightPower = pageSurfaceAreaPower / 2;
-		final int pageWidthPower = pageSurfaceAreaPower - pageHeightPower;
-		final int pageWidth = Math.max(64, 1 << pageWidthPower);
-		final int pageHeight = Math.max(64, 1 << pageHeightPower);
-
-		final PixmapPacker packer = new PixmapPacker(pageWidth, pageHeight, Pixmap.Format.Alpha, padding);
-
-		for (GlyphData glyph : glyphs) {
-			final Pixmap pixmap = glyph.pixmap;
-			if (pixmap == null) continue;
-			final PixmapPacker.Page page = packer.pack(pixmap, glyph.packed);
-			glyph.page = page.index;
+			return result;
 		}
+	}
 
-		{
-			final int pageCount = packer.pages.size;
-			final Texture[] fontPages = new Texture[pageCount];
-			for (int i = 0; i < pageCount; i++) {
-				fontPages[i] = new Texture(packer.pages.get(i).image, Pixmap.Format.RGBA8888, false);
-			}
-
-			final IntMap<Glyph> fontGlyphs = new IntMap<>();
-			for (GlyphData glyph : glyphs) {
-				final int codePoint = glyph.codePoint;
-				final int pageIndex = glyph.page;
-
-				final int pX = (int) glyph.packed.x;
-				final int pY = (int) glyph.packed.y;
-				final int pWidth = (int) glyph.packed.width;
-				final int pHeight = (int) glyph.packed.height;
-
-				final int xOffset = glyph.pixmapXOff;
-				final int yOffset = glyph.pixmapYOff;
-				final int xAdvance = Math.round(glyph.advanceWidth);
-				final int leftSideBearing = Math.round(glyph.leftSideBearing);
-
-				final Texture page = fontPages[pageIndex];
-
-				final Glyph fontGlyph = new Glyph(codePoint, pageIndex,
-						pX / (float) page.getWidth(), pY / (float) page.getHeight(),
-						(pX + pWidth) / (float) page.getWidth(), (pY + pHeight) / (float) page.getHeight(),
-						glyph.width, glyph.height,
-						xOffset, yOffset, xAdvance, leftSideBearing);
+	private static final ObjectMap<String, Font> DYNAMIC_DISTANCE_FIELD_FONTS = new ObjectMap<>();
 
-				fontGlyphs.put(codePoint, fontGlyph);
-			}
+	private static Font loadDynamicFont(FileHandle font, int size, float scale, boolean distanceField, String preload) {
+		return loadDynamicFont(font, size, scale, distanceField, preload, true);
+	}
 
-			final int fontLineGap = Math.round(lineGap);
-			final int fontAscent = Math.round(ascent);
-			final int fontDescent = -Math.abs(Math.round(descent));//Just to make sure it is negative
-			final int fontLineHeight = fontAscent - fontDescent + fontLineGap;
+	private static Font loadDynamicFont(FileHandle font, int size, float scale, boolean distanceField, String preload, boolean update) {
+		final GlyphRasterizer rasterizer = new GlyphRasterizer(loadFile(font), size, scale, distanceField);
+		final float[] vMetrics = rasterizer.getVMetrics();
+		final int fontLineGap = Math.round(vMetrics[2]);
+		final int fontAscent = Math.round(vMetrics[0]);
+		final int fontDescent = -Math.abs(Math.round(vMetrics[1]));//Just to make sure it is negative
+		final int fontLineHeight = fontAscent - fontDescent + fontLineGap;
+
+		final IntMap<Glyph> glyphs = new IntMap<>();
+		final Glyph missingGlyph = rasterizer.rasterize(0);
+		if (missingGlyph != null) {
+			glyphs.put(0, missingGlyph);
+		}
 
-			return new Font(fontPages, fontLineHeight, fontLineGap, fontAscent, fontDescent, fontGlyphs);
+		final Font result = new Font(new Texture[0], fontLineHeight, fontLineGap, fontAscent, fontDescent, glyphs, rasterizer.getDistanceField(), rasterizer);
+		if (preload != null) {
+			preload.codePoints().forEach(result::getGlyph);
+		}
+		if (update) {
+			result.update();
 		}
+		return result;
 	}
 
-	private static final class GlyphData {
+	static final class GlyphData {
 		int codePoint;
 		float advanceWidth, leftSideBearing;
 		float width, height;
 		int pixmapXOff, pixmapYOff;
 		Pixmap pixmap;
 
-		int page = 0;
-		final Rectangle packed = new Rectangle();
-
 		static GlyphData create(STBTTFontinfo fontInfo, int codePoint, int glyphIndex, int size, float scale) {
 			final GlyphData result = new GlyphData();
 			result.codePoint = codePoint;
@@ -201,13 +177,4 @@ public final class FontLoader {
 			return result;
 		}
 	}
-
-	private static int findPower(int number) {
-    	int power = 0;
-    	while (number != 0) {
-    		number >>= 1;
-    		power++;
-		}
-		return power;
-	}
 }
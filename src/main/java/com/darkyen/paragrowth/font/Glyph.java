@@ -8,7 +8,8 @@ public final class Glyph {
     public final int codePoint;
     public final int pageIndex;
     public final float width, height;
-    public final float u, v, u2, v2;
+    /** Texture coordinates on the page, which change when the page grows, see {@link Font#getVersion()} */
+    public float u, v, u2, v2;
 
     public final int xOffset, yOffset;
     public final int xAdvance, leftSideBearing;
@@ -17,6 +17,8 @@ import com.darkyen.paragrowth.util.ColorKt;
 public final class GlyphLayout {
 
 	private static final char C_OPEN = '{', C_CLOSE = '}';
+	/** Longest markup tag which can contain a line break, {@code {#rrggbbaa}} */
+	private static final int MAX_MARKUP_LENGTH = 11;
 
 	private final Font font;
 	private final boolean markupEnabled;
@@ -26,6 +28,15 @@ public final class GlyphLayout {
 	public float width, height;
 	public int lines = 0;
 
+	// Parameters of the last setText, for updateText
+	private boolean incrementalValid = false;
+	private int laidOutLength;
+	private float laidOutColor;
+	private float laidOutTargetWidth;
+	private int laidOutHAlign;
+	/** Scratch for updateText */
+	private final Array<GlyphRun> tailRuns = new Array<>();
+
 	public GlyphLayout (Font font, boolean markupEnabled) {
 		this.font = font;
 		this.markupEnabled = markupEnabled;
@@ -39,14 +50,7 @@ public final class GlyphLayout {
 	private GlyphRun pushRun (float targetWidth, GlyphRun previous, float color, boolean forceNewLine) {
 		final Array<GlyphRun> runs = this.runs;
 		// Place previous to the correct spot
-		if (previous == null) {
-			// First one, clear runs
-			CHAR_RUN_POOL.freeAll(runs);
-			runs.clear();
-
-			height = font.lineHeight;
-			lines = 1;
-		} else {
+		if (previous != null) {
 			GlyphRun wrapped = null;
 
 			final IntArray prevCodePoints = previous.codepoints;
@@ -64,8 +68,6 @@ public final class GlyphLayout {
 				if (forceNewLine || previous.hasLinebreak()) {
 					previous.x = 0;
 					previous.lineIndex++;
-					height += font.lineHeight;
-					lines++;
 				} else if (previous.hasTab()) {
 					previous.x = getTabPositionOf(font, previous.x);
 				}
@@ -142,10 +144,67 @@ public final class GlyphLayout {
 			assert start >= 0;
 			assert start <= end;
 			assert end <= str.length();
+
+			CHAR_RUN_POOL.freeAll(runs);
+			runs.clear();
+			colorStack.clear();
 		}
 
+		layout(str, start, end, color, targetWidth, null, 0);
+		colorStack.clear();
+		updateSize();
+
+		incrementalValid = start == 0 && (hAlign & Align.left) != 0;
+		laidOutLength = end;
+		laidOutColor = color;
+		laidOutTargetWidth = targetWidth;
+		laidOutHAlign = hAlign;
+
+		// Align runs to center or right of targetWidth.
+		final Array<GlyphRun> runs = this.runs;
+		final int runsSize = runs.size;
+
+		if ((hAlign & Align.left) == 0) { // Not left aligned, so must be center or right aligned.
+			final float alignTargetWidth = targetWidth == Float.POSITIVE_INFINITY ? width : targetWidth;
+			final boolean center = (hAlign & Align.center) != 0;
+			float lineWidth = 0;
+			int currentLine = -1;
+			int lineStart = 0;
+			for (int i = 0; i < runsSize; i++) {
+				final GlyphRun r = runs.get(i);
+				if (r.lineIndex != currentLine) {
+					currentLine = r.lineIndex;
+					float shift = alignTargetWidth - lineWidth;
+					if (center) shift /= 2;
+					while (lineStart < i)
+						runs.get(lineStart++).x += shift;
+					lineWidth = 0;
+				}
+				lineWidth = Math.max(lineWidth, r.x + r.width);
+			}
+			float shift = alignTargetWidth - lineWidth;
+			if (center) shift /= 2;
+			while (lineStart < runsSize)
+				runs.get(lineStart++).x += shift;
+		}
+	}
+
+	/**
+	 * Lay out [start, end) of str into new runs after the current ones, starting with the current {@link #colorStack}.
+	 * @param tail runs which start with a line break, from an old layout, may be null
+	 * @param resyncFrom lay out at least until this index, before stopping on a line break of tail
+	 * @return index of run in tail, on whose line break the layout stopped, because from there it would be the same as tail,
+	 * or -1 if the layout got to the end */
+	private int layout (CharSequence str, int start, int end, float color, float targetWidth, Array<GlyphRun> tail, int resyncFrom) {
+		int tailIndex = 0;
 		final FloatArray colorStack = this.colorStack;
-		GlyphRun run = pushRun(targetWidth, null, color, false);
+		GlyphRun run = pushRun(targetWidth, null, colorStack.size == 0 ? color : colorStack.peek(), false);
+		if (start < end && str.charAt(start) == '\n') {
+			// Paragraph start, otherwise set below
+			run.sourceStart = start;
+			run.colorStackAtStart.clear();
+			run.colorStackAtStart.addAll(colorStack);
+		}
 
 		for (int i = start; i < end; i++) {
 			final int c;
@@ -213,13 +272,31 @@ public final class GlyphLayout {
 				continue;
 			}
 
-			if (c == '\n' || c == '\t') {
+			if (c == '\n' && tail != null && i >= resyncFrom) {
+				while (tailIndex < tail.size && tail.get(tailIndex).sourceStart < i) {
+					tailIndex++;
+				}
+				if (tailIndex < tail.size && tail.get(tailIndex).sourceStart == i
+						&& colorStackEquals(tail.get(tailIndex).colorStackAtStart)) {
+					// Same line break in the same state, the rest would be laid out the same
+					CHAR_RUN_POOL.free(pushRun(targetWidth, run, color, false));
+					return tailIndex;
+				}
+			}
+
+			if ((c == '\n' || c == '\t') && (i != start || c != '\n')) {
 				// Crate new run
 				if (colorStack.size == 0) {
 					run = pushRun(targetWidth, run, color, false);
 				} else {
 					run = pushRun(targetWidth, run, colorStack.peek(), false);
 				}
+				if (c == '\n') {
+					// Remember where the paragraph starts, for updateText
+					run.sourceStart = i;
+					run.colorStackAtStart.clear();
+					run.colorStackAtStart.addAll(colorStack);
+				}
 			}
 
 			run.pushCodepoint(c);
@@ -227,35 +304,97 @@ public final class GlyphLayout {
 
 		// Push last run
 		CHAR_RUN_POOL.free(pushRun(targetWidth, run, color, false));
-		colorStack.clear();
+		return -1;
+	}
 
-		// Align runs to center or right of targetWidth.
+	/**
+	 * Update the layout after an edit of the text, which was last laid out by {@link #setText(CharSequence, float, float, int)}.
+	 * Layout starts again from the paragraph (part after a line break) in which the edit starts, and stops on the first
+	 * line break after the edit, which is in the same markup state as before. Old runs after it are reused.
+	 * Falls back to full {@link #setText(CharSequence, float, float, int)} for other than left alignment.
+	 * Must be laid out by {@link #setText(CharSequence, float, float, int)} first.
+	 *
+	 * @param str whole text, after the edit
+	 * @param editStart index where the edit starts
+	 * @param removed how many characters were removed at editStart
+	 * @param inserted how many characters were inserted at editStart */
+	public void updateText (CharSequence str, int editStart, int removed, int inserted) {
+		if (!incrementalValid || laidOutLength - removed + inserted != str.length()) {
+			setText(str, laidOutColor, laidOutTargetWidth, laidOutHAlign);
+			return;
+		}
+		final int delta = inserted - removed;
 		final Array<GlyphRun> runs = this.runs;
-		final int runsSize = runs.size;
 
-		if ((hAlign & Align.left) == 0) { // Not left aligned, so must be center or right aligned.
-			final float alignTargetWidth = targetWidth == Float.POSITIVE_INFINITY ? width : targetWidth;
-			final boolean center = (hAlign & Align.center) != 0;
-			float lineWidth = 0;
-			int currentLine = -1;
-			int lineStart = 0;
-			for (int i = 0; i < runsSize; i++) {
-				final GlyphRun r = runs.get(i);
-				if (r.lineIndex != currentLine) {
-					currentLine = r.lineIndex;
-					float shift = alignTargetWidth - lineWidth;
-					if (center) shift /= 2;
-					while (lineStart < i)
-						runs.get(lineStart++).x += shift;
-					lineWidth = 0;
-				}
-				lineWidth = Math.max(lineWidth, r.x + r.width);
+		// First affected paragraph starts on the last line break before the edit, which no markup tag can reach
+		int firstRun = 0;
+		int from = 0;
+		for (int i = runs.size - 1; i > 0; i--) {
+			final GlyphRun run = runs.get(i);
+			if (run.hasLinebreak() && run.sourceStart + MAX_MARKUP_LENGTH < editStart) {
+				firstRun = i;
+				from = run.sourceStart;
+				break;
 			}
-			float shift = alignTargetWidth - lineWidth;
-			if (center) shift /= 2;
-			while (lineStart < runsSize)
-				runs.get(lineStart++).x += shift;
 		}
+		colorStack.clear();
+		if (firstRun != 0) {
+			colorStack.addAll(runs.get(firstRun).colorStackAtStart);
+		}
+
+		// Old paragraphs after the edit are candidates for reuse, the rest is discarded
+		final Array<GlyphRun> tail = this.tailRuns;
+		for (int i = firstRun; i < runs.size; i++) {
+			final GlyphRun run = runs.get(i);
+			if (run.hasLinebreak() && run.sourceStart >= editStart + removed) {
+				run.sourceStart += delta;
+				tail.add(run);
+			} else if (tail.size > 0) {
+				tail.add(run);
+			} else {
+				CHAR_RUN_POOL.free(run);
+			}
+		}
+		runs.size = firstRun;
+
+		final int resync = layout(str, from, str.length(), laidOutColor, laidOutTargetWidth, tail, editStart + inserted);
+		if (resync == -1) {
+			CHAR_RUN_POOL.freeAll(tail);
+		} else {
+			for (int i = 0; i < resync; i++) {
+				CHAR_RUN_POOL.free(tail.get(i));
+			}
+			// Shift the reused lines, line break always starts the line after the last run
+			final int lineShift = (runs.size == 0 ? 0 : runs.peek().lineIndex) + 1 - tail.get(resync).lineIndex;
+			for (int i = resync; i < tail.size; i++) {
+				final GlyphRun run = tail.get(i);
+				run.lineIndex += lineShift;
+				runs.add(run);
+			}
+		}
+		tail.clear();
+		colorStack.clear();
+
+		width = 0f;
+		for (GlyphRun run : runs) {
+			width = Math.max(width, run.x + run.width);
+		}
+		updateSize();
+		laidOutLength = str.length();
+	}
+
+	private boolean colorStackEquals (FloatArray other) {
+		final FloatArray colorStack = this.colorStack;
+		if (colorStack.size != other.size) return false;
+		for (int i = 0; i < colorStack.size; i++) {
+			if (colorStack.get(i) != other.get(i)) return false;
+		}
+		return true;
+	}
+
+	private void updateSize () {
+		lines = runs.size == 0 ? 1 : runs.peek().lineIndex + 1;
+		height = lines * font.lineHeight;
 	}
 
 	private void pushColorStack (float r, float g, float b, float a) {
@@ -499,6 +638,7 @@ public final class GlyphLayout {
 
     /** @param x/y where upper left corner of the text should be drawn */
 	public void draw (Batch batch, float x, float y) {
+		font.update();
 		for (GlyphRun run : runs) {
 			batch.setColor(run.color);
 
@@ -561,6 +701,7 @@ public final class GlyphLayout {
 		height = 0;
 
 		lines = 0;
+		incrementalValid = false;
 	}
 
 	private static Pool<GlyphRun> CHAR_RUN_POOL = Pools.get(GlyphRun.class);
@@ -578,6 +719,9 @@ public final class GlyphLayout {
 		boolean isWrapOverflow = false;
 		/** On which line this run is? */
 		int lineIndex = -1;
+		/** For runs which start with a line break: index of the line break in the text and color stack before it */
+		int sourceStart;
+		final FloatArray colorStackAtStart = new FloatArray(4);
 
 		// Set by computeSize
 		/** Glyphs to be drawn at corresponding positions. May contain nulls. */
@@ -678,7 +822,7 @@ public final class GlyphLayout {
 				final int ch = codepoints.get(i);
 				Glyph glyph = null;
 				if (!isSpecialDiscardChar(ch)) {
-					glyph = font.glyphs.get(ch, font.missingGlyph);
+					glyph = font.getGlyph(ch);
 				}
 
 				final float xAdvance;
@@ -709,6 +853,8 @@ public final class GlyphLayout {
 			glyphXPos.clear();
 			isWrapOverflow = false;
 			lineIndex = -1;
+			sourceStart = 0;
+			colorStackAtStart.clear();
 		}
 	}
 
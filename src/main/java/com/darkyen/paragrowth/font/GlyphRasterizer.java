@@ -0,0 +1,274 @@
+package com.darkyen.paragrowth.font;
+
+import com.badlogic.gdx.Gdx;
+import com.badlogic.gdx.graphics.GL20;
+import com.badlogic.gdx.graphics.Pixmap;
+import com.badlogic.gdx.graphics.Texture;
+import com.badlogic.gdx.math.Rectangle;
+import com.badlogic.gdx.utils.Array;
+import com.badlogic.gdx.utils.BufferUtils;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.IntSet;
+import org.lwjgl.stb.STBTTFontinfo;
+import org.lwjgl.system.MemoryStack;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.stb.STBTruetype.*;
+import static org.lwjgl.system.MemoryStack.stackPush;
+
+/**
+ * Rasterizes glyphs of a dynamic {@link Font} when they are first needed.
+ *
+ * Glyphs are packed into pages, which grow up to {@link #MAX_PAGE_SIZE} when they are full, before a new page is added.
+ * Growing a page changes texture coordinates of its glyphs, see {@link #getVersion()}.
+ * Textures are not touched until {@link #update(Texture[])}, which uploads only the regions which changed since then,
+ * so all glyphs rasterized during a frame are uploaded together.
+ * Not thread safe.
+ */
+final class GlyphRasterizer {
+
+	/** Initial size of each page, in pixels */
+	static final int PAGE_SIZE = 1024;
+	/** Size to which pages grow before another page is added */
+	static final int MAX_PAGE_SIZE = 4096;
+
+	private final STBTTFontinfo fontInfo;
+	/** Referenced by fontInfo, must stay alive */
+	@SuppressWarnings({"FieldCanBeLocal", "unused"})
+	private final ByteBuffer fontData;
+	private final int size;
+	/** Supersampling of bitmap glyphs, ignored for distance fields */
+	private final float scale;
+	private final boolean distanceField;
+
+	private final PixmapPacker packer = new PixmapPacker(PAGE_SIZE, PAGE_SIZE, Pixmap.Format.Alpha, 1, PixmapPacker.Strategy.MAX_RECTS, MAX_PAGE_SIZE);
+	/** Glyphs with pixels, whose texture coordinates are rescaled when their page grows */
+	private final Array<Glyph> packedGlyphs = new Array<>();
+	/** Width and height of each page, in which the texture coordinates of its glyphs are */
+	private final IntArray pageSizes = new IntArray();
+	private int version = 0;
+	/** Code points which are not in the font */
+	private final IntSet missing = new IntSet();
+
+	/** minX, minY, maxX, maxY (exclusive) of changed pixels for each page, empty if min >= max */
+	private final IntArray dirty = new IntArray();
+	private ByteBuffer staging = BufferUtils.newByteBuffer(64 * 64 * 4);
+	/** For querying of the unpack alignment, which is restored after upload */
+	private final IntBuffer unpackAlignment = BufferUtils.newIntBuffer(16);
+
+	GlyphRasterizer(ByteBuffer fontData, int size, float scale, boolean distanceField) {
+		this.fontData = fontData;
+		this.size = size;
+		this.scale = scale;
+		this.distanceField = distanceField;
+		fontInfo = STBTTFontinfo.malloc();
+		if (!stbtt_InitFont(fontInfo, fontData, stbtt_GetFontOffsetForIndex(fontData, 0)))
+			throw new RuntimeException("Init failed");
+	}
+
+	/** @return ascent, descent and line gap in the font size */
+	float[] getVMetrics() {
+		try (MemoryStack stack = stackPush()) {
+			final IntBuffer ascent = stack.mallocInt(1);
+			final IntBuffer descent = stack.mallocInt(1);
+			final IntBuffer lineGap = stack.mallocInt(1);
+			stbtt_GetFontVMetrics(fontInfo, ascent, descent, lineGap);
+			final float metricScale = stbtt_ScaleForPixelHeight(fontInfo, size);
+			return new float[]{ascent.get(0) * metricScale, descent.get(0) * metricScale, lineGap.get(0) * metricScale};
+		}
+	}
+
+	/** @return change of the distance value over one unit of the font size, 0 if not distance field */
+	float getDistanceField() {
+		return distanceField ? DistanceField.PIXEL_DISTANCE_SCALE / 255f / (size / (float) DistanceField.PIXEL_HEIGHT) : 0f;
+	}
+
+	/** @return number which changes whenever texture coordinates of already rasterized glyphs change */
+	int getVersion() {
+		return version;
+	}
+
+	/** @return rasterized glyph, null if the font does not have it */
+	Glyph rasterize(int codePoint) {
+		if (missing.contains(codePoint)) return null;
+		final int glyphIndex = stbtt_FindGlyphIndex(fontInfo, codePoint);
+		if (glyphIndex == 0 && codePoint != 0) {
+			missing.add(codePoint);
+			return null;
+		}
+
+		final Pixmap pixmap;
+		final float width, height;
+		final int xOffset, yOffset, xAdvance, leftSideBearing;
+		if (distanceField) {
+			final int[] offset = new int[2];
+			pixmap = DistanceField.rasterize(fontInfo, stbtt_ScaleForPixelHeight(fontInfo, DistanceField.PIXEL_HEIGHT), glyphIndex, offset);
+			final float pixelScale = size / (float) DistanceField.PIXEL_HEIGHT;
+			width = pixmap == null ? 0f : pixmap.getWidth() * pixelScale;
+			height = pixmap == null ? 0f : pixmap.getHeight() * pixelScale;
+			xOffset = Math.round(offset[0] * pixelScale);
+			yOffset = Math.round(offset[1] * pixelScale);
+
+			try (MemoryStack stack = stackPush()) {
+				final IntBuffer advanceWidthBuf = stack.mallocInt(1);
+				final IntBuffer leftSideBearingBuf = stack.mallocInt(1);
+				stbtt_GetGlyphHMetrics(fontInfo, glyphIndex, advanceWidthBuf, leftSideBearingBuf);
+				final float unitScale = stbtt_ScaleForPixelHeight(fontInfo, size);
+				xAdvance = Math.round(advanceWidthBuf.get(0) * unitScale);
+				leftSideBearing = Math.round(leftSideBearingBuf.get(0) * unitScale);
+			}
+		} else {
+			final FontLoader.GlyphData data = FontLoader.GlyphData.create(fontInfo, codePoint, glyphIndex, size, scale);
+			pixmap = data.pixmap;
+			width = data.width;
+			height = data.height;
+			xOffset = data.pixmapXOff;
+			yOffset = data.pixmapYOff;
+			xAdvance = Math.round(data.advanceWidth);
+			leftSideBearing = Math.round(data.leftSideBearing);
+		}
+
+		int pageIndex = 0;
+		float u = 0f, v = 0f, u2 = 0f, v2 = 0f;
+		if (pixmap != null) {
+			final Rectangle packed = new Rectangle();
+			final PixmapPacker.Page page = packer.pack(pixmap, packed);
+			pixmap.dispose();
+			pageIndex = page.index;
+			final int pageWidth = page.image.getWidth();
+			final int pageHeight = page.image.getHeight();
+			resizePage(pageIndex, pageWidth, pageHeight);
+
+			final int x = (int) packed.x;
+			final int y = (int) packed.y;
+			final int x2 = x + (int) packed.width;
+			final int y2 = y + (int) packed.height;
+			markDirty(pageIndex, x, y, x2, y2);
+
+			u = x / (float) pageWidth;
+			v = y / (float) pageHeight;
+			u2 = x2 / (float) pageWidth;
+			v2 = y2 / (float) pageHeight;
+		}
+
+		final Glyph glyph = new Glyph(codePoint, pageIndex, u, v, u2, v2, width, height, xOffset, yOffset, xAdvance, leftSideBearing);
+		if (pixmap != null) {
+			packedGlyphs.add(glyph);
+		}
+		return glyph;
+	}
+
+	/** Rescale texture coordinates of glyphs on the page, if it has grown. */
+	private void resizePage(int page, int width, int height) {
+		final IntArray pageSizes = this.pageSizes;
+		if (pageSizes.size <= page * 2) {
+			pageSizes.add(width);
+			pageSizes.add(height);
+			return;
+		}
+		final int oldWidth = pageSizes.get(page * 2);
+		final int oldHeight = pageSizes.get(page * 2 + 1);
+		if (oldWidth == width && oldHeight == height) return;
+		pageSizes.set(page * 2, width);
+		pageSizes.set(page * 2 + 1, height);
+
+		final float uScale = oldWidth / (float) width;
+		final float vScale = oldHeight / (float) height;
+		for (Glyph glyph : packedGlyphs) {
+			if (glyph.pageIndex != page) continue;
+			glyph.u *= uScale;
+			glyph.u2 *= uScale;
+			glyph.v *= vScale;
+			glyph.v2 *= vScale;
+		}
+		version++;
+	}
+
+	private void markDirty(int page, int x, int y, int x2, int y2) {
+		final IntArray dirty = this.dirty;
+		while (dirty.size <= page * 4) {
+			dirty.add(Integer.MAX_VALUE);
+			dirty.add(Integer.MAX_VALUE);
+			dirty.add(0);
+			dirty.add(0);
+		}
+		final int i = page * 4;
+		dirty.set(i, Math.min(dirty.get(i), x));
+		dirty.set(i + 1, Math.min(dirty.get(i + 1), y));
+		dirty.set(i + 2, Math.max(dirty.get(i + 2), x2));
+		dirty.set(i + 3, Math.max(dirty.get(i + 3), y2));
+	}
+
+	/**
+	 * Upload glyphs rasterized since the last update. Must be called on the GL thread.
+	 * @param pages current textures
+	 * @return pages, or a new array with new textures for new pages. Textures of grown pages are replaced. */
+	Texture[] update(Texture[] pages) {
+		final int pageCount = packer.pages.size;
+		if (pages.length < pageCount) {
+			pages = Arrays.copyOf(pages, pageCount);
+		}
+		for (int i = 0; i < pageCount; i++) {
+			final Pixmap image = packer.pages.get(i).image;
+			final Texture texture = pages[i];
+			if (texture != null && texture.getWidth() == image.getWidth() && texture.getHeight() == image.getHeight()) continue;
+			if (texture != null) {
+				texture.dispose();
+			}
+			pages[i] = new Texture(image, Pixmap.Format.RGBA8888, false);
+			pages[i].setFilter(Texture.TextureFilter.Linear, Texture.TextureFilter.Linear);
+			clearDirty(i);
+		}
+
+		final IntArray dirty = this.dirty;
+		for (int page = 0; page * 4 < dirty.size; page++) {
+			final int i = page * 4;
+			final int minX = dirty.get(i), minY = dirty.get(i + 1);
+			final int maxX = dirty.get(i + 2), maxY = dirty.get(i + 3);
+			if (minX >= maxX || minY >= maxY) continue;
+			clearDirty(page);
+			upload(pages[page], packer.pages.get(page).image, minX, minY, maxX - minX, maxY - minY);
+		}
+		return pages;
+	}
+
+	private void clearDirty(int page) {
+		final int i = page * 4;
+		if (i >= dirty.size) return;
+		dirty.set(i, Integer.MAX_VALUE);
+		dirty.set(i + 1, Integer.MAX_VALUE);
+		dirty.set(i + 2, 0);
+		dirty.set(i + 3, 0);
+	}
+
+	/** Upload region of alpha pixmap to RGBA texture, like {@link Texture} converts it when created. */
+	private void upload(Texture texture, Pixmap pixmap, int x, int y, int width, int height) {
+		final int bytes = width * height * 4;
+		if (staging.capacity() < bytes) {
+			staging = BufferUtils.newByteBuffer(Math.max(bytes, staging.capacity() * 2));
+		}
+		final ByteBuffer staging = this.staging;
+		staging.clear();
+
+		final ByteBuffer alpha = pixmap.getPixels();
+		final int stride = pixmap.getWidth();
+		for (int row = y; row < y + height; row++) {
+			final int rowStart = row * stride;
+			for (int column = x; column < x + width; column++) {
+				staging.put((byte) 0xFF).put((byte) 0xFF).put((byte) 0xFF).put(alpha.get(rowStart + column));
+			}
+		}
+		staging.flip();
+
+		texture.bind();
+		// Other uploads must not inherit the alignment
+		unpackAlignment.clear();
+		Gdx.gl.glGetIntegerv(GL20.GL_UNPACK_ALIGNMENT, unpackAlignment);
+		Gdx.gl.glPixelStorei(GL20.GL_UNPACK_ALIGNMENT, 1);
+		Gdx.gl.glTexSubImage2D(GL20.GL_TEXTURE_2D, 0, x, y, width, height, GL20.GL_RGBA, GL20.GL_UNSIGNED_BYTE, staging);
+		Gdx.gl.glPixelStorei(GL20.GL_UNPACK_ALIGNMENT, unpackAlignment.get(0));
+	}
+}
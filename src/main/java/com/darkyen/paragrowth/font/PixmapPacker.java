@@ -32,9 +32,13 @@ import java.util.Comparator;
  */
 @SuppressWarnings("WeakerAccess")
 final class PixmapPacker implements Disposable {
+    /** Size of new pages */
     public final int pageWidth, pageHeight;
     public final Format pageFormat;
     public final int padding;
+    public final Strategy strategy;
+    /** When a page is full, its size is doubled up to this size before a new page is added. 0 to never grow pages. */
+    public final int maxPageSize;
     /**
      * The default <code>color</code> of the whole {@link PixmapPacker.Page} when a new one created. Helps to avoid texture
      * bleeding or to highlight the page for debugging.
@@ -49,10 +53,20 @@ final class PixmapPacker implements Disposable {
      * @param padding the number of blank pixels to insert between pixmaps.
      */
     public PixmapPacker(int pageWidth, int pageHeight, Format pageFormat, int padding) {
+        this(pageWidth, pageHeight, pageFormat, padding, Strategy.SKYLINE, 0);
+    }
+
+    /**
+     * @param padding the number of blank pixels to insert between pixmaps.
+     * @param maxPageSize see {@link #maxPageSize}
+     */
+    public PixmapPacker(int pageWidth, int pageHeight, Format pageFormat, int padding, Strategy strategy, int maxPageSize) {
         this.pageWidth = pageWidth;
         this.pageHeight = pageHeight;
         this.pageFormat = pageFormat;
         this.padding = padding;
+        this.strategy = strategy;
+        this.maxPageSize = maxPageSize;
     }
 
     /**
@@ -61,6 +75,17 @@ final class PixmapPacker implements Disposable {
      */
     public static final Comparator<Pixmap> SORT_COMPARATOR = (o1, o2) -> o1.getHeight() - o2.getHeight();
 
+    /** Larger images first, best for {@link Strategy#MAX_RECTS}. */
+    public static final Comparator<Pixmap> MAX_RECTS_SORT_COMPARATOR = (o1, o2) -> {
+        final int side = Math.max(o2.getWidth(), o2.getHeight()) - Math.max(o1.getWidth(), o1.getHeight());
+        return side != 0 ? side : Math.min(o2.getWidth(), o2.getHeight()) - Math.min(o1.getWidth(), o1.getHeight());
+    };
+
+    /** @return comparator in which the images should be sorted for the {@link #strategy} */
+    public Comparator<Pixmap> sortComparator() {
+        return strategy == Strategy.MAX_RECTS ? MAX_RECTS_SORT_COMPARATOR : SORT_COMPARATOR;
+    }
+
     /**
      * Inserts the pixmap.
      *
@@ -71,11 +96,42 @@ final class PixmapPacker implements Disposable {
      */
     public Page pack(final Pixmap image, final Rectangle rect) {
         rect.set(0, 0, image.getWidth(), image.getHeight());
-        if (rect.getWidth() > pageWidth || rect.getHeight() > pageHeight) {
+        final int maxWidth = Math.max(pageWidth, maxPageSize), maxHeight = Math.max(pageHeight, maxPageSize);
+        if (rect.getWidth() > maxWidth || rect.getHeight() > maxHeight) {
             throw new GdxRuntimeException("Page size too small for pixmap.");
         }
 
-        final Page page = skylinePack(this, rect);
+        Page page = null;
+        for (int i = 0, n = pages.size; i < n && page == null; i++) {
+            if (pack(pages.get(i), rect)) {
+                page = pages.get(i);
+            }
+        }
+        if (page == null && pages.size > 0) {
+            // Grow the last page until it fits
+            final Page last = pages.peek();
+            while (last.grow(this)) {
+                if (pack(last, rect)) {
+                    page = last;
+                    break;
+                }
+            }
+        }
+        while (page == null) {
+            // Fit in new page, which grows if it is too small
+            final Page newPage = new Page(pages.size, this);
+            pages.add(newPage);
+            do {
+                if (pack(newPage, rect)) {
+                    page = newPage;
+                    break;
+                }
+            } while (newPage.grow(this));
+            if (page == null) {
+                throw new GdxRuntimeException("Page size too small for pixmap.");
+            }
+        }
+
         page.dirty = true;
         page.image.setBlending(Blending.None);
         page.image.drawPixmap(image, (int) rect.x, (int) rect.y);
@@ -83,6 +139,10 @@ final class PixmapPacker implements Disposable {
         return page;
     }
 
+    private boolean pack(Page page, Rectangle rect) {
+        return strategy == Strategy.MAX_RECTS ? maxRectsPack(page, rect) : skylinePack(page, rect);
+    }
+
     /**
      * Disposes any pixmap pages which don't have a texture. Page pixmaps that have a texture will not be disposed until their
      * texture is disposed.
@@ -98,52 +158,116 @@ final class PixmapPacker implements Disposable {
      *
      * @author Nathan Sweet
      */
-    private Page skylinePack(PixmapPacker packer, Rectangle rect) {
-        int padding = packer.padding;
-        int pageWidth = packer.pageWidth - padding * 2, pageHeight = packer.pageHeight - padding * 2;
+    private boolean skylinePack(Page page, Rectangle rect) {
+        int padding = this.padding;
+        int pageWidth = page.image.getWidth() - padding * 2, pageHeight = page.image.getHeight() - padding * 2;
         int rectWidth = (int) rect.width + padding, rectHeight = (int) rect.height + padding;
-        for (int i = 0, n = packer.pages.size; i < n; i++) {
-            Page page = packer.pages.get(i);
-            Row bestRow = null;
-            // Fit in any row before the last.
-            for (int ii = 0, nn = page.rows.size - 1; ii < nn; ii++) {
-                Row row = page.rows.get(ii);
-                if (row.x + rectWidth >= pageWidth) continue;
-                if (row.y + rectHeight >= pageHeight) continue;
-                if (rectHeight > row.height) continue;
-                if (bestRow == null || row.height < bestRow.height) bestRow = row;
+        Row bestRow = null;
+        // Fit in any row before the last.
+        for (int ii = 0, nn = page.rows.size - 1; ii < nn; ii++) {
+            Row row = page.rows.get(ii);
+            if (row.x + rectWidth >= pageWidth) continue;
+            if (row.y + rectHeight >= pageHeight) continue;
+            if (rectHeight > row.height) continue;
+            if (bestRow == null || row.height < bestRow.height) bestRow = row;
+        }
+        if (bestRow == null) {
+            // Fit in last row, increasing height.
+            Row row = page.rows.peek();
+            if (row.y + rectHeight >= pageHeight) return false;
+            if (row.x + rectWidth < pageWidth) {
+                row.height = Math.max(row.height, rectHeight);
+                bestRow = row;
+            } else {
+                // Fit in new row.
+                if (row.y + row.height + rectHeight >= pageHeight) return false;
+                bestRow = new Row();
+                bestRow.x = padding;
+                bestRow.y = row.y + row.height;
+                bestRow.height = rectHeight;
+                page.rows.add(bestRow);
             }
-            if (bestRow == null) {
-                // Fit in last row, increasing height.
-                Row row = page.rows.peek();
-                if (row.y + rectHeight >= pageHeight) continue;
-                if (row.x + rectWidth < pageWidth) {
-                    row.height = Math.max(row.height, rectHeight);
-                    bestRow = row;
-                } else {
-                    // Fit in new row.
-                    bestRow = new Row();
-                    bestRow.y = row.y + row.height;
-                    bestRow.height = rectHeight;
-                    page.rows.add(bestRow);
+        }
+        rect.x = bestRow.x;
+        rect.y = bestRow.y;
+        bestRow.x += rectWidth;
+        return true;
+    }
+
+    /**
+     * Does bin packing by keeping all maximal free rectangles and placing each image into the free rectangle,
+     * whose shorter leftover side is the shortest (best short side fit). Denser than {@link #skylinePack(Page, Rectangle)},
+     * especially for images of different sizes.
+     *
+     * @author Jukka Jylanki (algorithm)
+     */
+    private boolean maxRectsPack(Page page, Rectangle rect) {
+        final int rectWidth = (int) rect.width + padding, rectHeight = (int) rect.height + padding;
+        final Array<FreeRect> free = page.free;
+
+        FreeRect best = null;
+        int bestShortSide = Integer.MAX_VALUE, bestLongSide = Integer.MAX_VALUE;
+        for (int i = 0; i < free.size; i++) {
+            final FreeRect f = free.get(i);
+            if (f.width < rectWidth || f.height < rectHeight) continue;
+            final int leftoverX = f.width - rectWidth, leftoverY = f.height - rectHeight;
+            final int shortSide = Math.min(leftoverX, leftoverY), longSide = Math.max(leftoverX, leftoverY);
+            if (shortSide < bestShortSide || (shortSide == bestShortSide && longSide < bestLongSide)) {
+                best = f;
+                bestShortSide = shortSide;
+                bestLongSide = longSide;
+            }
+        }
+        if (best == null) return false;
+
+        final int x = best.x, y = best.y;
+        rect.x = x;
+        rect.y = y;
+
+        // Split all free rectangles which intersect the placed one
+        final int x2 = x + rectWidth, y2 = y + rectHeight;
+        final int originalSize = free.size;
+        for (int i = 0; i < originalSize; i++) {
+            final FreeRect f = free.get(i);
+            final int fx2 = f.x + f.width, fy2 = f.y + f.height;
+            if (x >= fx2 || x2 <= f.x || y >= fy2 || y2 <= f.y) continue;
+
+            if (y > f.y) free.add(new FreeRect(f.x, f.y, f.width, y - f.y));
+            if (y2 < fy2) free.add(new FreeRect(f.x, y2, f.width, fy2 - y2));
+            if (x > f.x) free.add(new FreeRect(f.x, f.y, x - f.x, f.height));
+            if (x2 < fx2) free.add(new FreeRect(x2, f.y, fx2 - x2, f.height));
+            f.width = 0;// Removed below
+        }
+        pruneFreeRects(free);
+        return true;
+    }
+
+    /** Remove empty free rectangles and those which are contained in another one. */
+    private static void pruneFreeRects(Array<FreeRect> free) {
+        for (int i = free.size - 1; i >= 0; i--) {
+            final FreeRect a = free.get(i);
+            if (a.width <= 0 || a.height <= 0) {
+                free.removeIndex(i);
+                continue;
+            }
+            for (int j = 0; j < free.size; j++) {
+                if (i == j) continue;
+                final FreeRect b = free.get(j);
+                if (a.x >= b.x && a.y >= b.y && a.x + a.width <= b.x + b.width && a.y + a.height <= b.y + b.height
+                        && b.width > 0 && b.height > 0) {
+                    free.removeIndex(i);
+                    break;
                 }
             }
-            rect.x = bestRow.x;
-            rect.y = bestRow.y;
-            bestRow.x += rectWidth;
-            return page;
         }
-        // Fit in new page.
-        Page page = new Page(packer.pages.size, packer);
-        packer.pages.add(page);
-        Row row = new Row();
-        row.x = padding + rectWidth;
-        row.y = padding;
-        row.height = rectHeight;
-        page.rows.add(row);
-        rect.x = padding;
-        rect.y = padding;
-        return page;
+    }
+
+    /** Strategy of placing images into pages. */
+    public enum Strategy {
+        /** Rows of images, fast, good for images of similar heights */
+        SKYLINE,
+        /** MaxRects with best short side fit, denser */
+        MAX_RECTS
     }
 
     /**
@@ -153,8 +277,10 @@ final class PixmapPacker implements Disposable {
      */
     public static class Page {
         public final int index;
-        public final Pixmap image;
+        /** Replaced by a larger pixmap when the page grows */
+        public Pixmap image;
         private final Array<Row> rows = new Array<>();
+        private final Array<FreeRect> free = new Array<>();
         public boolean dirty = false;
 
         /**
@@ -165,10 +291,62 @@ final class PixmapPacker implements Disposable {
             image = new Pixmap(packer.pageWidth, packer.pageHeight, packer.pageFormat);
             image.setColor(packer.transparentColor);
             image.fill();
+
+            final Row row = new Row();
+            row.x = packer.padding;
+            row.y = packer.padding;
+            rows.add(row);
+            free.add(new FreeRect(packer.padding, packer.padding, packer.pageWidth - packer.padding, packer.pageHeight - packer.padding));
+        }
+
+        /** Double the shorter side of the page, keeping what is already packed.
+         * @return false if it is already at {@link PixmapPacker#maxPageSize} */
+        boolean grow(PixmapPacker packer) {
+            final int width = image.getWidth(), height = image.getHeight();
+            final boolean growWidth = width <= height;
+            final int newWidth = growWidth ? width * 2 : width;
+            final int newHeight = growWidth ? height : height * 2;
+            if (Math.max(newWidth, newHeight) > packer.maxPageSize) return false;
+
+            final Pixmap grown = new Pixmap(newWidth, newHeight, packer.pageFormat);
+            grown.setColor(packer.transparentColor);
+            grown.fill();
+            grown.setBlending(Blending.None);
+            grown.drawPixmap(image, 0, 0);
+            image.dispose();
+            image = grown;
+            dirty = true;
+
+            // Free rectangles touching the old edge extend into the new space
+            for (FreeRect f : free) {
+                if (growWidth && f.x + f.width == width) {
+                    f.width += newWidth - width;
+                } else if (!growWidth && f.y + f.height == height) {
+                    f.height += newHeight - height;
+                }
+            }
+            if (growWidth) {
+                free.add(new FreeRect(width, packer.padding, newWidth - width, newHeight - packer.padding));
+            } else {
+                free.add(new FreeRect(packer.padding, height, newWidth - packer.padding, newHeight - height));
+            }
+            pruneFreeRects(free);
+            return true;
         }
     }
 
     private static class Row {
         int x, y, height;
     }
+
+    private static class FreeRect {
+        int x, y, width, height;
+
+        FreeRect(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
 }
@@ -0,0 +1,45 @@
+package com.darkyen.paragrowth.game
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.Screen
+import com.badlogic.gdx.ScreenAdapter
+import com.badlogic.gdx.graphics.GL20
+import com.darkyen.paragrowth.ParagrowthMain
+import com.darkyen.paragrowth.util.Delayed
+import com.darkyen.paragrowth.util.GlJobs
+
+/**
+ * Shows progress of [loading], then switches to the screen created by [next].
+ *
+ * The progress bar is drawn only by clearing, because nothing else is loaded yet.
+ */
+class LoadingState(private val loading:Delayed<*>, private val next:() -> Screen) : ScreenAdapter() {
+
+    override fun render(delta: Float) {
+        GlJobs.drain()
+        if (loading.poll() != null) {
+            ParagrowthMain.INSTANCE.setScreen(next())
+            return
+        }
+
+        val gl = Gdx.gl
+        gl.glClearColor(0.1f, 0.1f, 0.1f, 1f)
+        gl.glClear(GL20.GL_COLOR_BUFFER_BIT)
+
+        val width = Gdx.graphics.backBufferWidth
+        val height = Gdx.graphics.backBufferHeight
+        val barWidth = width / 2
+        val barHeight = maxOf(height / 100, 4)
+        val barX = (width - barWidth) / 2
+        val barY = (height - barHeight) / 2
+
+        gl.glEnable(GL20.GL_SCISSOR_TEST)
+        gl.glScissor(barX, barY, barWidth, barHeight)
+        gl.glClearColor(0.25f, 0.25f, 0.25f, 1f)
+        gl.glClear(GL20.GL_COLOR_BUFFER_BIT)
+        gl.glScissor(barX, barY, (barWidth * loading.progress).toInt(), barHeight)
+        gl.glClearColor(0.9f, 0.9f, 0.9f, 1f)
+        gl.glClear(GL20.GL_COLOR_BUFFER_BIT)
+        gl.glDisable(GL20.GL_SCISSOR_TEST)
+    }
+}
@@ -9,8 +9,6 @@ import com.badlogic.gdx.graphics.GL20.GL_FRONT_AND_BACK
 import com.badlogic.gdx.graphics.PerspectiveCamera
 import com.badlogic.gdx.graphics.glutils.ImmediateModeRenderer
 import com.badlogic.gdx.graphics.glutils.ImmediateModeRenderer20
-import com.badlogic.gdx.math.MathUtils
-import com.badlogic.gdx.math.Rectangle
 import com.badlogic.gdx.math.Vector2
 import com.badlogic.gdx.scenes.scene2d.Stage
 import com.badlogic.gdx.scenes.scene2d.ui.Label
@@ -19,6 +17,7 @@ import com.badlogic.gdx.utils.viewport.ScreenViewport
 import com.darkyen.paragrowth.ParagrowthMain
 import com.darkyen.paragrowth.WorldCharacteristics
 import com.darkyen.paragrowth.WorldSpecifics
+import com.darkyen.paragrowth.animal.ANIMAL_HEIGHT_RANGES
 import com.darkyen.paragrowth.animal.AnimalWorld
 import com.darkyen.paragrowth.doodad.DoodadWorld
 import com.darkyen.paragrowth.input.GameInput
@@ -26,14 +25,15 @@ import com.darkyen.paragrowth.render.RenderBatch
 import com.darkyen.paragrowth.skybox.Skybox
 import com.darkyen.paragrowth.terrain.TERRAIN_TIME_ATTRIBUTE
 import com.darkyen.paragrowth.terrain.TerrainPatchwork
-import com.darkyen.paragrowth.terrain.WorldQuery
+import com.darkyen.paragrowth.terrain.BlendedWorldQuery
+import com.darkyen.paragrowth.terrain.StreamingTerrain
+import com.darkyen.paragrowth.terrain.Terrain
+import com.darkyen.paragrowth.terrain.generator.Noise
 import com.darkyen.paragrowth.util.*
 import com.darkyen.paragrowth.words.Words
 import org.lwjgl.opengl.GL11.*
 import org.lwjgl.opengl.GL32
 import org.lwjgl.opengl.GL32.GL_DEPTH_CLAMP
-import kotlin.math.cos
-import kotlin.math.sin
 
 /**
  * @author Darkyen
@@ -56,7 +56,7 @@ class WanderState(worldCharacteristics: WorldCharacteristics) : ScreenAdapter()
     private val skyboxRenderable: Skybox
 
     private var nextWorldAlpha = 0f
-    private var terrain: TerrainPatchwork
+    private var terrain: Terrain
     private var nextTerrain: TerrainPatchwork? = null
     private var doodads: DoodadWorld
     private var nextDoodads: DoodadWorld? = null
@@ -64,7 +64,7 @@ class WanderState(worldCharacteristics: WorldCharacteristics) : ScreenAdapter()
     private val animalWorld: AnimalWorld
     private val words: Words
 
-    private val worldQuery: WorldQuery
+    private val worldQuery: BlendedWorldQuery
 
     //Input
     private val gameInput: GameInput
@@ -102,85 +102,44 @@ class WanderState(worldCharacteristics: WorldCharacteristics) : ScreenAdapter()
         hudStage.addActor(hudTable)
 
         //Terrain generation
-        val worldSpecifics = WorldSpecifics(worldCharacteristics, 0f, 0f, false)
-        terrain = TerrainPatchwork.build(worldSpecifics).get()
-        doodads = DoodadWorld.build(worldCharacteristics.seed, worldSpecifics).get()
-        skyboxRenderable.lowColor = worldSpecifics.lowSkyboxColor
-        skyboxRenderable.highColor = worldSpecifics.highSkyboxColor
-
-        worldQuery = object : WorldQuery {
-            override fun getHeightAt(x: Float, y: Float): Float {
-                val base = terrain.heightAt(x, y)
-                val blend = nextTerrain?.heightAt(x, y) ?: base
-                val alpha = modelBatch.attributes.getBlendAt(x, y)
-                return MathUtils.lerp(base, blend, alpha)
+        val worldSpecifics = WorldSpecifics(worldCharacteristics, 0f, 0f, false, open = OPEN_WORLD)
+        worldSpecifics.findInitialPosition(worldCam.position)
+        if (OPEN_WORLD) {
+            val position = worldCam.position
+            terrain = StreamingTerrain(worldSpecifics, ANIMAL_HEIGHT_RANGES).apply {
+                update(position.x, position.y)
+                finishLoading()
             }
-
-            override fun getDimensions(): Rectangle {
-                val blend = modelBatch.attributes[WORLD_BLEND_ATTRIBUTE][0]
-
-                val x = terrain.worldSpec.offsetX
-                val y = terrain.worldSpec.offsetY
-                val nextX = nextTerrain?.worldSpec?.offsetX ?: x
-                val nextY = nextTerrain?.worldSpec?.offsetY ?: y
-
-                val width = terrain.worldSpec.noise.sizeX.toFloat()
-                val height = terrain.worldSpec.noise.sizeY.toFloat()
-                val nextWidth = nextTerrain?.worldSpec?.noise?.sizeX?.toFloat() ?: width
-                val nextHeight = nextTerrain?.worldSpec?.noise?.sizeY?.toFloat() ?: height
-
-                return Rectangle(MathUtils.lerp(x, nextX, blend),
-                        MathUtils.lerp(y, nextY, blend),
-                        MathUtils.lerp(width, nextWidth, blend),
-                        MathUtils.lerp(height, nextHeight, blend))
-            }
-
-            override fun adjustPointToHeightRange(point: Vector2, minHeight: Float, maxHeight: Float):Boolean {
-                val terrain = nextTerrain ?: terrain
-                if (terrain.heightAt(point.x, point.y) in minHeight..maxHeight) {
-                    return true
-                }
-
-                var xOff = 1f
-                var yOff = 0f
-                val cos = cos(5f * MathUtils.degreesToRadians)
-                val sin = sin(5f * MathUtils.degreesToRadians)
-
-                for (i in 0..100) {
-                    val x = point.x + xOff
-                    val y = point.y + yOff
-                    if (terrain.fastHeightAt(x, y) in minHeight..maxHeight) {
-                        point.set(x, y)
-                        return true
-                    }
-
-                    val newOffX = (xOff * cos - yOff * sin) * 1.1f
-                    val newOffY = (xOff * sin + yOff * cos) * 1.1f
-                    xOff = newOffX
-                    yOff = newOffY
-                }
-
-                return false
+            doodads = DoodadWorld.stream(worldCharacteristics.seed, worldSpecifics).apply {
+                update(position.x, position.y)
+                finishLoading()
             }
+        } else {
+            terrain = TerrainPatchwork.build(worldSpecifics, ANIMAL_HEIGHT_RANGES).get()
+            doodads = DoodadWorld.build(worldCharacteristics.seed, worldSpecifics).get()
         }
+        skyboxRenderable.lowColor = worldSpecifics.lowSkyboxColor
+        skyboxRenderable.highColor = worldSpecifics.highSkyboxColor
+
+        worldQuery = BlendedWorldQuery(terrain)
 
         cameraController = HeightmapPersonController(worldCam, worldQuery)
         gameInput = GameInput(*cameraController.INPUT)
         gameInput.build()
 
-        worldSpecifics.findInitialPosition(worldCam.position)
-
         animalWorld = AnimalWorld(worldQuery)
         animalWorld.populateWithDucks(worldQuery.getDimensions())
 
         words = Words { words, text ->
-            if (developingNextWorld == null) {
+            // Open worlds, whose terrain is streamed, don't develop next worlds
+            if (developingNextWorld == null && terrain is TerrainPatchwork) {
                 words.enabled = false
-                developingNextWorld = startDevelopingNextWorld {
-                    WorldCharacteristics.fromText(text)
-                }
+                // Collected text is up to date now, later it will change
+                developingNextWorld = startDevelopingNextWorld(text.characteristics)
             }
         }
+        // Open worlds don't change to the next world
+        words.enabled = !OPEN_WORLD
     }
 
     override fun show() {
@@ -194,15 +153,33 @@ class WanderState(worldCharacteristics: WorldCharacteristics) : ScreenAdapter()
     }
 
     private var developingNextWorld:Delayed<Pair<TerrainPatchwork, DoodadWorld>>? = null
+    /** Whether [developingNextWorld] was started by [HeightmapPersonController.CYCLE_TERRAIN_DEBUG] */
+    private var developingDebugWorld = false
 
-    private fun startDevelopingNextWorld(characteristics:() -> WorldCharacteristics): Delayed<Pair<TerrainPatchwork, DoodadWorld>> {
+    private val prefetcher = WorldPrefetcher()
+    private val prefetchGuesses = GdxArray<WorldCharacteristics>()
+    /** Time until guesses of [prefetcher] are updated */
+    private var prefetchCountdown = 0f
+
+    private fun startDevelopingNextWorld(characteristics:WorldCharacteristics): Delayed<Pair<TerrainPatchwork, DoodadWorld>> {
         val centerX = worldCam.position.x
         val centerY = worldCam.position.y
 
+        // Other guesses were wrong
+        val noise = prefetcher.take(characteristics)
+        prefetcher.clear()
+
+        return TaskContext(CancellationToken(), Priority.VISIBLE).within {
+            developNextWorld(centerX, centerY, characteristics, noise)
+        }
+    }
+
+    private fun developNextWorld(centerX:Float, centerY:Float, characteristics:WorldCharacteristics, noise:Task<Noise>?): Delayed<Pair<TerrainPatchwork, DoodadWorld>> {
         val worldCharacteristics = offload {
-            WorldSpecifics(characteristics(), centerX, centerY, true)
+            // Loads the heightfield now, unless it was already prefetched
+            WorldSpecifics(characteristics, centerX, centerY, true, noise?.get())
         }
-        val terrainPatchwork = worldCharacteristics.then { TerrainPatchwork.build(it) }
+        val terrainPatchwork = worldCharacteristics.then { TerrainPatchwork.build(it, ANIMAL_HEIGHT_RANGES) }
         val blendOut = worldCharacteristics.then { doodads.prepareBlendOut(it) }
         val doodadWorld = worldCharacteristics
                 .then { DoodadWorld.build(it.characteristics.seed, it) }
@@ -234,18 +211,32 @@ class WanderState(worldCharacteristics: WorldCharacteristics) : ScreenAdapter()
 
                 words.enabled = true
             }
-        } else if (cameraController.CYCLE_TERRAIN_DEBUG.isPressed) {
+        } else if (cameraController.CYCLE_TERRAIN_DEBUG.isPressed && !OPEN_WORLD) {
             if (developingNextWorld == null) {
-                developingNextWorld = startDevelopingNextWorld {
-                    WorldCharacteristics.random(System.currentTimeMillis())
-                }
+                developingNextWorld = startDevelopingNextWorld(WorldCharacteristics.random(System.currentTimeMillis()))
+                developingDebugWorld = true
             }
+        } else if (developingDebugWorld && developingNextWorld != null) {
+            // Cycling was turned off before the world was done, nobody waits for it anymore
+            developingNextWorld?.cancel()
+            developingNextWorld = null
+            developingDebugWorld = false
         }
 
+        // Patches of open worlds around the player
+        terrain.update(worldCam.position.x, worldCam.position.y)
+        doodads.update(worldCam.position.x, worldCam.position.y)
+
+        // GL work of background generation, spread over frames
+        GlJobs.drain()
+
         developingNextWorld?.poll()?.let { (newTerrain, newDoodads) ->
             this.developingNextWorld = null
+            this.developingDebugWorld = false
             this.nextTerrain = newTerrain
             this.nextDoodads = newDoodads
+            val terrain = terrain
+            check(terrain is TerrainPatchwork) { "Only finite worlds blend to next worlds, not ${terrain.javaClass.simpleName}" }
             terrain.blendTo(newTerrain)
             modelBatch.attributes.setBlendWalls(worldCam)
             skyboxRenderable.lowColorBlend = newTerrain.worldSpec.lowSkyboxColor
@@ -265,12 +256,23 @@ class WanderState(worldCharacteristics: WorldCharacteristics) : ScreenAdapter()
 
         // Before camera controller update
         modelBatch.attributes.setBlend(nextWorldAlpha)
+        worldQuery.update(terrain, this.nextTerrain, modelBatch.attributes, worldCam.position.x, worldCam.position.y)
 
         run {
             cameraController.update(delta)
             val playerPosition = Vector2(worldCam.position.x, worldCam.position.y)
             animalWorld.update(delta, playerPosition)
             words.update(delta, playerPosition, worldQuery)
+
+            if (words.enabled && developingNextWorld == null) {
+                prefetchCountdown -= delta
+                if (prefetchCountdown <= 0f) {
+                    prefetchCountdown = PREFETCH_INTERVAL
+                    prefetchGuesses.clear()
+                    words.guessNextCharacteristics(playerPosition, PREFETCH_GUESSES, prefetchGuesses)
+                    prefetcher.guess(prefetchGuesses)
+                }
+            }
         }
 
         // Used for skybox and for objects too close to camera
@@ -312,6 +314,13 @@ class WanderState(worldCharacteristics: WorldCharacteristics) : ScreenAdapter()
                     .append("\nZ: ").append(worldCam.position.z)
                     .append("\nRendered: ").append(rendered)
                     .append("\nWords: ").append(words.placedWords.size)
+            developingNextWorld?.let {
+                stats.append("\nNext world: ").append((it.progress * 100f).toInt()).append('%')
+            }
+            stats.append("\nGL jobs: ").append(GlJobs.depth)
+                    .append(" (peak ").append(GlJobs.peakDepth)
+                    .append("), ran ").append(GlJobs.lastDrainJobs)
+                    .append(" in ").append("%.2f".format(GlJobs.lastDrainMillis)).append(" ms")
 
             statsLabel.setText(stats)
 
@@ -326,11 +335,26 @@ class WanderState(worldCharacteristics: WorldCharacteristics) : ScreenAdapter()
     }
 
     override fun dispose() {
+        // Releases everything the next world has already allocated
+        developingNextWorld?.cancel()
+        developingNextWorld = null
+        prefetcher.clear()
+
         hudStage.dispose()
         skyboxRenderable.dispose()
         terrain.dispose()
         nextTerrain?.dispose()
         doodads.dispose()
+        nextDoodads?.dispose()
         animalWorld.dispose()
     }
+
+    private companion object {
+        /** Whether the world has no edges and is generated around the player, instead of all at once */
+        private val OPEN_WORLD = System.getenv("PARAGROWTH_OPEN_WORLD") != null
+        /** Seconds between updates of prefetch guesses */
+        private const val PREFETCH_INTERVAL = 0.5f
+        /** Amount of closest words, whose worlds are prefetched */
+        private const val PREFETCH_GUESSES = 3
+    }
 }
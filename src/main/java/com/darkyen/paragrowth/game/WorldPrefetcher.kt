@@ -0,0 +1,60 @@
+package com.darkyen.paragrowth.game
+
+import com.badlogic.gdx.utils.ObjectMap
+import com.darkyen.paragrowth.WorldCharacteristics
+import com.darkyen.paragrowth.WorldSpecifics
+import com.darkyen.paragrowth.terrain.generator.Noise
+import com.darkyen.paragrowth.util.*
+
+/**
+ * Speculatively loads heightfields of worlds, which will likely be developed next,
+ * so that developing the next world does not have to wait for its heightfield.
+ *
+ * Guesses are loaded with [Priority.PREFETCH], so they take only cores which visible work does not need.
+ * Guesses, which are not guessed anymore, are evicted and their loading is cancelled, if it did not start yet.
+ * Render thread only.
+ */
+class WorldPrefetcher {
+
+    /** Heightfield loads by the seed and size of the world, like [WorldSpecifics.loadNoise] is cached */
+    private val prefetched = ObjectMap<NoiseKey, Task<Noise>>()
+
+    /** Prefetch heightfields of [guesses] and evict all other guesses. */
+    fun guess(guesses:GdxArray<WorldCharacteristics>) {
+        val entries = prefetched.entries().iterator()
+        while (entries.hasNext()) {
+            val entry = entries.next()
+            if (!guesses.any { NoiseKey(it) == entry.key }) {
+                entry.value.cancel()
+                entries.remove()
+            }
+        }
+
+        guesses.each { characteristics ->
+            val key = NoiseKey(characteristics)
+            if (!prefetched.containsKey(key)) {
+                prefetched.put(key, offload(TaskContext(CancellationToken(), Priority.PREFETCH)) {
+                    WorldSpecifics.loadNoise(characteristics)
+                })
+            }
+        }
+    }
+
+    /** @return heightfield load of the world, if it was guessed, which is then no longer owned by this */
+    fun take(characteristics:WorldCharacteristics):Task<Noise>? {
+        return prefetched.remove(NoiseKey(characteristics))
+    }
+
+    /** Evict all guesses. */
+    fun clear() {
+        for (entry in prefetched.entries()) {
+            entry.value.cancel()
+        }
+        prefetched.clear()
+    }
+}
+
+/** Identifies the heightfield of [WorldSpecifics.loadNoise] */
+private data class NoiseKey(val seed:Long, val size:Int) {
+    constructor(characteristics:WorldCharacteristics) : this(characteristics.seed, WorldSpecifics.worldSize(characteristics))
+}
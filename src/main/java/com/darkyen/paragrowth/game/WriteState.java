@@ -4,13 +4,14 @@ import com.badlogic.gdx.Gdx;
 import com.badlogic.gdx.Input;
 import com.badlogic.gdx.InputProcessor;
 import com.badlogic.gdx.ScreenAdapter;
-import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.graphics.GL20;
 import com.badlogic.gdx.graphics.g2d.SpriteBatch;
+import com.badlogic.gdx.graphics.glutils.ShaderProgram;
 import com.badlogic.gdx.math.Rectangle;
 import com.badlogic.gdx.scenes.scene2d.utils.Drawable;
 import com.badlogic.gdx.utils.Align;
 import com.badlogic.gdx.utils.viewport.ScreenViewport;
+import com.darkyen.paragrowth.IncrementalTextAnalyzer;
 import com.darkyen.paragrowth.ParagrowthMain;
 import com.darkyen.paragrowth.TextAnalyzer;
 import com.darkyen.paragrowth.WorldCharacteristics;
@@ -26,16 +27,16 @@ import java.util.Random;
  */
 public final class WriteState extends ScreenAdapter implements InputProcessor {
 
-    private static final Font FONT2 = FontLoader.loadFont(Gdx.files.local("Avara.ttf"), 50, 2f);
-    private static final GlyphLayout FONT2_GLYPHS = new GlyphLayout(FONT2, true);
-    private static final Font FONT = FontLoader.loadFont(Gdx.files.local("Avara.ttf"), 50, 1f);
-    private static final GlyphLayout FONT_GLYPHS = new GlyphLayout(FONT, true);
+    /** Distance field font, so that it is sharp on any screen density */
+    private static final Font FONT = FontLoader.loadDynamicDistanceFieldFont(Gdx.files.local("Avara.ttf"), 50, FontLoader.ASCII);
 
     private final ScreenViewport viewport = new ScreenViewport();
 
     private final SpriteBatch batch = ParagrowthMain.batch();
-    private GlyphLayout glyphLayout = FONT_GLYPHS;
-    private final StringBuilder text = new StringBuilder();
+    private final GlyphLayout glyphLayout = new GlyphLayout(FONT, true);
+    /** Screen pixels per unit of the viewport */
+    private float pixelDensity = 1f;
+    private final IncrementalTextAnalyzer text = new IncrementalTextAnalyzer();
     private int caret = 0;
     private long lastTypeTime = 0;
     private static final long KEEP_ON_AFTER_TYPING_MS = 700;
@@ -43,7 +44,7 @@ public final class WriteState extends ScreenAdapter implements InputProcessor {
     private Drawable caretDrawable;
 
     private void updateGlyphLayout() {
-        glyphLayout.setText(text, ColorKt.getWhite(), viewport.getWorldWidth() * 0.8f, Align.left);
+        glyphLayout.setText(text.getText(), ColorKt.getWhite(), viewport.getWorldWidth() * 0.8f, Align.left);
     }
 
     @Override
@@ -68,7 +69,12 @@ public final class WriteState extends ScreenAdapter implements InputProcessor {
         batch.begin();
         final float textX = viewport.getWorldWidth() * 0.1f;
         final float textY = Math.max(viewport.getWorldHeight() * 0.9f, viewport.getWorldHeight() * 0.1f + glyphLayout.height);
+        final ShaderProgram batchShader = batch.getShader();
+        final ShaderProgram distanceFieldShader = ParagrowthMain.distanceFieldBatchShader();
+        batch.setShader(distanceFieldShader);
+        distanceFieldShader.setUniformf("u_smoothing", FONT.distanceField * 0.5f / pixelDensity);
         glyphLayout.draw(batch, textX, textY);
+        batch.setShader(batchShader);
 
         final long now = System.currentTimeMillis();
         if (((now - lastTypeTime) % 1000) < 500 || (lastTypeTime + KEEP_ON_AFTER_TYPING_MS) >= now) {
@@ -82,7 +88,7 @@ public final class WriteState extends ScreenAdapter implements InputProcessor {
     @Override
     public void resize(int width, int height) {
         viewport.update(width, height, true);
-        glyphLayout = Gdx.graphics.getBackBufferWidth() > Gdx.graphics.getWidth() ? FONT2_GLYPHS : FONT_GLYPHS;
+        pixelDensity = Gdx.graphics.getBackBufferWidth() / (float) Gdx.graphics.getWidth();
 
         updateGlyphLayout();
     }
@@ -99,25 +105,25 @@ public final class WriteState extends ScreenAdapter implements InputProcessor {
     }
 
     private void insert(char c) {
-        text.insert(caret, c);
+        text.insert(caret, String.valueOf(c));
+        glyphLayout.updateText(text.getText(), caret, 0, 1);
         setCaret(caret + 1);
-        updateGlyphLayout();
     }
 
     private void backspace() {
         if (caret > 0) {
-            text.deleteCharAt(caret - 1);
+            text.delete(caret - 1, caret);
+            glyphLayout.updateText(text.getText(), caret - 1, 1, 0);
             setCaret(caret - 1);
         }
-        updateGlyphLayout();
     }
 
     private void delete() {
         if (caret < text.length()) {
-            text.deleteCharAt(caret);
+            text.delete(caret, caret + 1);
+            glyphLayout.updateText(text.getText(), caret, 1, 0);
             setCaret(caret);
         }
-        updateGlyphLayout();
     }
 
     @Override
@@ -139,41 +145,27 @@ public final class WriteState extends ScreenAdapter implements InputProcessor {
             setCaret(caret + 1);
             return true;
         } else if (keycode == Input.Keys.ESCAPE) {
-            final WorldCharacteristics c = text.length() == 0 ? WorldCharacteristics.random(0) : WorldCharacteristics.fromText(text);
+            final WorldCharacteristics c = text.length() == 0 ? WorldCharacteristics.random(0) : text.getCharacteristics();
             ParagrowthMain.INSTANCE.setScreen(new WanderState(c));
             return true;
         } else if (keycode == Input.Keys.F3) {
-            System.out.println(WorldCharacteristics.fromText(text));
+            System.out.println(text.getCharacteristics());
         } else if (keycode == Input.Keys.F4) {
+            final CharSequence text = this.text.getText();
             final StringBuilder newText = new StringBuilder();
-            final TextAnalyzer.Words words = new TextAnalyzer.Words(text);
-            final TextAnalyzer analyzer = TextAnalyzer.get();
-
-            while (true) {
-                final int mark = words.mark();
-                final Color color = analyzer.getColor(words, new Random());
-                final int postColor = words.mark();
-                if (color == null) {
-                    assert mark == postColor;
-                    final String next = words.next();
-                    if (next == null) {
-                        break;
-                    }
-                    newText.append(next).append(' ');
-                } else {
-                    newText.append('{').append('#').append(color.toString()).append('}');
-                    words.rollback(mark);
-                    while (words.mark() < postColor) {
-                        newText.append(words.next()).append(' ');
-                    }
-                    newText.append("{}");
-                }
-            }
-
-            text.setLength(0);
-            text.append(newText);
+            final int[] copied = {0};
+            TextAnalyzer.get().findColors(text, new Random(), (start, end, color) -> {
+                newText.append(text, copied[0], start);
+                newText.append('{').append('#').append(color.toString()).append('}');
+                newText.append(text, start, end);
+                newText.append("{}");
+                copied[0] = end;
+            });
+            newText.append(text, copied[0], text.length());
+
+            this.text.set(newText);
             updateGlyphLayout();
-            setCaret(text.length());
+            setCaret(newText.length());
         }
         return false;
     }
@@ -0,0 +1,129 @@
+package com.darkyen.paragrowth.render
+
+import com.badlogic.gdx.graphics.GL20
+import com.badlogic.gdx.utils.BufferUtils
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+
+/**
+ * Models of a [ModelBuilder] in a compact binary form, which can be saved by [write] and later mapped by [map],
+ * instead of building the models again.
+ *
+ * All values are little endian. After a header (magic, version, floats per vertex, vertex count, index count, model count)
+ * come ints: index count at the end of each model, then floats: interleaved vertices and finally shorts: indices.
+ * Vertices and indices are uploaded straight from the mapped file, without copying.
+ */
+class MeshBlob private constructor(private val data:ByteBuffer) {
+
+    val vertexFloats:Int
+    private val vertexCount:Int
+    private val indexCount:Int
+    private val modelCount:Int
+
+    init {
+        data.order(ByteOrder.LITTLE_ENDIAN)
+        val size = data.limit()
+        if (size < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+            throw IllegalArgumentException("Not a mesh blob")
+        }
+        vertexFloats = data.getInt(8)
+        vertexCount = data.getInt(12)
+        indexCount = data.getInt(16)
+        modelCount = data.getInt(20)
+        if (vertexFloats < 1 || vertexCount < 0 || indexCount < 0 || modelCount < 0
+                || HEADER_SIZE + 4L * modelCount + 4L * vertexFloats * vertexCount + 2L * indexCount != size.toLong()) {
+            throw IllegalArgumentException("Mesh blob is corrupted")
+        }
+    }
+
+    private val verticesStart:Int
+        get() = HEADER_SIZE + modelCount * 4
+
+    private val indicesStart:Int
+        get() = verticesStart + vertexCount * vertexFloats * 4
+
+    private fun slice(offset:Int, length:Int):ByteBuffer {
+        val slice = data.duplicate()
+        slice.limit(offset + length)
+        slice.position(offset)
+        return slice.slice()
+    }
+
+    /** Upload to new buffers and create models of it, in the order in which they were built. Render thread only. */
+    fun generateModels(vertexAttributes:VertexAttributes):Array<Model> {
+        assert(vertexAttributes.getByteSize(4) / 4 == vertexFloats)
+        check(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) { "Mesh blobs can be uploaded only on little endian platforms" }
+
+        val vertices = GlBuffer(GL20.GL_STATIC_DRAW)
+        vertices.setData(slice(verticesStart, vertexCount * vertexFloats * 4), GL20.GL_FLOAT)
+        val indices = GlBuffer(GL20.GL_STATIC_DRAW)
+        indices.setData(slice(indicesStart, indexCount * 2), GL20.GL_UNSIGNED_SHORT)
+
+        return generateModels(vertices, indices, vertexAttributes, modelCount) { data.getInt(HEADER_SIZE + it * 4) }
+    }
+
+    /** Save, so that it can be mapped by [map]. */
+    fun write(file:File) {
+        // Write to a temporary file first, so that nobody can map it incomplete
+        val temporary = File.createTempFile("mesh", ".tmp", file.absoluteFile.parentFile)
+        try {
+            FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).use { channel ->
+                val data = data.duplicate()
+                data.position(0)
+                while (data.hasRemaining()) {
+                    channel.write(data)
+                }
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } finally {
+            temporary.delete()
+        }
+    }
+
+    companion object {
+        private const val MAGIC = 0x4853454D // "MESH" in little endian
+        private const val VERSION = 1
+        private const val HEADER_SIZE = 24
+
+        /** Create from models built by [builder], in memory. */
+        fun of(builder:ModelBuilder):MeshBlob {
+            val vertices = builder.vertices
+            val indices = builder.indices
+            val modelEnds = builder.modelEnds
+            val data = BufferUtils.newByteBuffer(HEADER_SIZE + modelEnds.size * 4 + vertices.size * 4 + indices.size * 2)
+            data.order(ByteOrder.LITTLE_ENDIAN)
+            data.putInt(MAGIC).putInt(VERSION)
+                    .putInt(builder.vertexFloats).putInt(vertices.size / builder.vertexFloats)
+                    .putInt(indices.size).putInt(modelEnds.size)
+            for (i in 0 until modelEnds.size) {
+                data.putInt(modelEnds[i])
+            }
+            for (i in 0 until vertices.size) {
+                data.putFloat(vertices[i])
+            }
+            for (i in 0 until indices.size) {
+                data.putShort(indices[i])
+            }
+            data.flip()
+            return MeshBlob(data)
+        }
+
+        /** Map blob previously saved by [write]. Nothing is loaded to the heap. */
+        @Throws(IOException::class)
+        fun map(file:File):MeshBlob {
+            FileChannel.open(file.toPath(), StandardOpenOption.READ).use { channel ->
+                try {
+                    return MeshBlob(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()))
+                } catch (e:IllegalArgumentException) {
+                    throw IOException("Invalid mesh blob $file", e)
+                }
+            }
+        }
+    }
+}
@@ -62,36 +62,16 @@ class ModelBuilder(val vertexFloats:Int) {
         return buffer
     }
 
-    private val models = GdxIntArray()
+    /** Amount of indices at the end of each model, see [modelEnd] */
+    val modelEnds = GdxIntArray()
 
     fun modelEnd() {
-        models.add(indices.size)
+        modelEnds.add(indices.size)
     }
 
     fun generateModels(vertexAttributes:VertexAttributes):Array<Model> {
-        assert(models.size > 0)
-
-        val vertices = createVertexBuffer()
-        val indices = createIndexBuffer()
-        val vao = run {
-            var offset = 0
-            val stride = vertexAttributes.getByteSize(4) / 4
-
-            GlVertexArrayObject(indices, vertexAttributes,
-                    *Array(vertexAttributes.attributes.size) { i ->
-                        val binding = GlVertexArrayObject.Binding(vertices, stride, offset)
-                        offset += vertexAttributes.attributes[i].byteSize / 4
-                        binding
-                    }
-            )
-        }
-
-        var indexOffset = 0
-        return Array(models.size) {
-            val model = Model(vao,  models[it] - indexOffset, indexOffset)
-            indexOffset = models[it]
-            model
-        }
+        assert(modelEnds.size > 0)
+        return generateModels(createVertexBuffer(), createIndexBuffer(), vertexAttributes, modelEnds.size) { modelEnds[it] }
     }
 
     fun computeBoundingBox3D(offset:Int, stride:Int, out:BoundingBox) {
@@ -118,4 +98,30 @@ class ModelBuilder(val vertexFloats:Int) {
 
         return max
     }
+}
+
+/** Create models whose vertices are interleaved in [vertices], as described by [vertexAttributes],
+ * and which use consecutive ranges of [indices], each ending at [modelEnd] of its index. */
+internal fun generateModels(vertices:GlBuffer, indices:GlBuffer, vertexAttributes:VertexAttributes,
+                            modelCount:Int, modelEnd:(Int) -> Int):Array<Model> {
+    val vao = run {
+        var offset = 0
+        val stride = vertexAttributes.getByteSize(4) / 4
+
+        GlVertexArrayObject(indices, vertexAttributes,
+                *Array(vertexAttributes.attributes.size) { i ->
+                    val binding = GlVertexArrayObject.Binding(vertices, stride, offset)
+                    offset += vertexAttributes.attributes[i].byteSize / 4
+                    binding
+                }
+        )
+    }
+
+    var indexOffset = 0
+    return Array(modelCount) {
+        val end = modelEnd(it)
+        val model = Model(vao, end - indexOffset, indexOffset)
+        indexOffset = end
+        model
+    }
 }
\ No newline at end of file
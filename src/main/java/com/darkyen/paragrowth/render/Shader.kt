@@ -12,14 +12,14 @@ import com.badlogic.gdx.math.Matrix3
 import com.badlogic.gdx.math.Matrix4
 import com.badlogic.gdx.math.Vector2
 import com.badlogic.gdx.math.Vector3
-import com.badlogic.gdx.utils.ObjectIntMap
+import com.badlogic.gdx.utils.Disposable
+import com.darkyen.paragrowth.util.AssetWatcher
 import com.darkyen.paragrowth.util.GdxArray
 import com.darkyen.paragrowth.util.alpha
 import com.darkyen.paragrowth.util.blue
 import com.darkyen.paragrowth.util.green
 import com.darkyen.paragrowth.util.red
 import com.darkyen.paragrowth.util.stack
-import java.io.File
 
 typealias LocalSetter = (uniform: Shader.Uniform, camera:Camera, renderable: RenderModel) -> Unit
 typealias GlobalSetter = (uniform: Shader.Uniform, camera:Camera, attributes:Attributes) -> Unit
@@ -41,6 +41,10 @@ abstract class Shader(val order:Int,
     private val fragmentShaderFile: FileHandle = Gdx.files.local("${fragmentShaderName}_frag.glsl")
     private var fragmentShader = 0
 
+    /** For hotswapping, see [AssetWatcher] */
+    private var vertexShaderWatch: Disposable? = null
+    private var fragmentShaderWatch: Disposable? = null
+
     private val uniforms = GdxArray<Uniform>()
     private val globalUniforms = GdxArray<Uniform>()
     private val localUniforms = GdxArray<Uniform>()
@@ -114,12 +118,18 @@ abstract class Shader(val order:Int,
 
             compile()
 
-            synchronized(reloadedShaders) {
-                reloadedShaders.add(this)
+            if (vertexShaderWatch == null) {
+                vertexShaderWatch = AssetWatcher.watch(vertexShaderFile, ::reload)
+                fragmentShaderWatch = AssetWatcher.watch(fragmentShaderFile, ::reload)
             }
         }
     }
 
+    private fun reload() {
+        compile()
+        println("$name reloaded (${System.currentTimeMillis()})")
+    }
+
     private var context: RenderContext? = null
     private var camera: Camera? = null
 
@@ -178,9 +188,10 @@ abstract class Shader(val order:Int,
         uniforms.clear()
         localUniforms.clear()
         globalUniforms.clear()
-        synchronized(reloadedShaders) {
-            reloadedShaders.remove(this)
-        }
+        vertexShaderWatch?.dispose()
+        vertexShaderWatch = null
+        fragmentShaderWatch?.dispose()
+        fragmentShaderWatch = null
     }
 
     /** Called after shader is activated. Modify [context] with values which are common for all rendered objects. */
@@ -272,6 +283,11 @@ abstract class Shader(val order:Int,
             Gdx.gl30.glUniform4f(location, v1, v2, v3, v4)
         }
 
+        /** Set [count] vec4 elements of an array uniform */
+        fun set4(values: FloatArray, count: Int) {
+            Gdx.gl30.glUniform4fv(location, count, values, 0)
+        }
+
         fun set(value: Int) {
             Gdx.gl30.glUniform1i(location, value)
         }
@@ -370,43 +386,5 @@ abstract class Shader(val order:Int,
 
             return shader
         }
-
-        private val reloadedShaders = HashSet<Shader>()
-
-        init {
-            Thread({
-                val lastSeen = ObjectIntMap<File>()
-
-                while (true) {
-                    synchronized(reloadedShaders) {
-                        for (shader in reloadedShaders) {
-                            val frag = shader.fragmentShaderFile.file()
-                            val vert = shader.vertexShaderFile.file()
-                            val fragTime = frag.lastModified().toInt()
-                            val vertTime = vert.lastModified().toInt()
-                            val oldFragTime = lastSeen.get(frag, 0)
-                            val oldVertTime = lastSeen.get(vert, 0)
-
-                            if (oldFragTime == 0 || oldVertTime == 0) {
-                                lastSeen.put(frag, fragTime)
-                                lastSeen.put(vert, vertTime)
-                            } else if (oldFragTime != fragTime || oldVertTime != vertTime) {
-                                lastSeen.put(frag, fragTime)
-                                lastSeen.put(vert, vertTime)
-                                Gdx.app.postRunnable {
-                                    shader.compile()
-                                    println("${shader.name} reloaded (${System.currentTimeMillis()})")
-                                }
-                            }
-                        }
-                    }
-
-                    Thread.sleep(2000)
-                }
-            }, "ShaderAutoReloader").apply {
-                isDaemon = true
-                start()
-            }
-        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,40 @@
+package com.darkyen.paragrowth.render
+
+import com.badlogic.gdx.utils.BufferUtils
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Pool of off-heap blocks of equal size, into which background work generates data of [GlBuffer]s,
+ * before it is uploaded on the render thread.
+ *
+ * Freed blocks are kept for reuse, up to [maxPooled], so that generating the same kind of data again does not allocate.
+ * Blocks which are never freed are simply collected, so abandoned work does not leak.
+ * Thread safe.
+ */
+class StagingPool(val blockBytes:Int, private val maxPooled:Int) {
+
+    private val pool = ConcurrentLinkedQueue<ByteBuffer>()
+    private val pooled = AtomicInteger()
+
+    /** @return cleared block of [blockBytes] in native order */
+    fun obtain():ByteBuffer {
+        val block = pool.poll()
+        if (block != null) {
+            pooled.decrementAndGet()
+            block.clear()
+            return block
+        }
+        return BufferUtils.newByteBuffer(blockBytes)
+    }
+
+    /** Return block obtained from this, it must not be used anymore. */
+    fun free(block:ByteBuffer) {
+        if (pooled.incrementAndGet() <= maxPooled) {
+            pool.add(block)
+        } else {
+            pooled.decrementAndGet()
+        }
+    }
+}
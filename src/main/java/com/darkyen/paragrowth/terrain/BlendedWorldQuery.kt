@@ -0,0 +1,198 @@
+package com.darkyen.paragrowth.terrain
+
+import com.badlogic.gdx.math.MathUtils
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.math.Vector2
+import com.badlogic.gdx.math.Vector3
+import com.darkyen.paragrowth.render.Attributes
+import com.darkyen.paragrowth.util.WORLD_BLEND_ATTRIBUTE
+import com.darkyen.paragrowth.util.WORLD_BLEND_LEFT_ATTR
+import com.darkyen.paragrowth.util.WORLD_BLEND_RIGHT_ATTR
+import com.darkyen.paragrowth.util.getBlendAt
+import kotlin.math.abs
+
+/**
+ * Queries the world, while it may be blending from one terrain to the next.
+ *
+ * Heights of both terrains are sampled on a grid around the player, so that the many queries near the player cost
+ * two bilinear lookups, instead of two triangle lookups in patches. The grid is resampled only when the player
+ * moves too far from its center, when the terrains change or when their heights under the grid change
+ * (see [Terrain.heightsChangedSince]), queries outside of it go to the terrains.
+ * Blend of the terrains is copied from [Attributes] once per frame in [update].
+ *
+ * Queries are thread safe between [update]s.
+ */
+class BlendedWorldQuery(private var terrain:Terrain) : WorldQuery {
+
+    private var nextTerrain:Terrain? = null
+
+    private var blend = 0f
+    private val blendEdgeLeft = Vector3()
+    private val blendEdgeRight = Vector3()
+
+    private var gridValid = false
+    /** [Terrain.version]s of the terrains, at which the grid was last known to match their heights */
+    private var gridTerrainVersion = 0
+    private var gridNextTerrainVersion = 0
+    /** World position of the first sample */
+    private var gridX = 0f
+    private var gridY = 0f
+    /** Area covered by the samples */
+    private val gridArea = Rectangle()
+    private val terrainHeights = FloatArray(GRID_SAMPLES * GRID_SAMPLES)
+    private val nextTerrainHeights = FloatArray(GRID_SAMPLES * GRID_SAMPLES)
+
+    /** Call each frame before the queries, with the terrains and the blend attributes of the frame. */
+    fun update(terrain:Terrain, nextTerrain:Terrain?, attributes:Attributes, playerX:Float, playerY:Float) {
+        if (terrain !== this.terrain || nextTerrain !== this.nextTerrain
+                || terrain.heightsChangedSince(gridTerrainVersion, gridArea)
+                || (nextTerrain != null && nextTerrain.heightsChangedSince(gridNextTerrainVersion, gridArea))) {
+            this.terrain = terrain
+            this.nextTerrain = nextTerrain
+            gridValid = false
+        } else {
+            // Changes elsewhere don't matter, the grid is as good as sampled now
+            gridTerrainVersion = terrain.version
+            gridNextTerrainVersion = nextTerrain?.version ?: 0
+        }
+
+        blend = attributes[WORLD_BLEND_ATTRIBUTE][0]
+        blendEdgeLeft.set(attributes[WORLD_BLEND_LEFT_ATTR])
+        blendEdgeRight.set(attributes[WORLD_BLEND_RIGHT_ATTR])
+
+        val half = GRID_SAMPLES / 2 * GRID_STEP
+        if (!gridValid || abs(gridX + half - playerX) > RESAMPLE_DISTANCE || abs(gridY + half - playerY) > RESAMPLE_DISTANCE) {
+            resample(MathUtils.floor(playerX / GRID_STEP) * GRID_STEP - half, MathUtils.floor(playerY / GRID_STEP) * GRID_STEP - half)
+        }
+    }
+
+    private fun resample(gridX:Float, gridY:Float) {
+        this.gridX = gridX
+        this.gridY = gridY
+        gridArea.set(gridX, gridY, (GRID_SAMPLES - 1) * GRID_STEP, (GRID_SAMPLES - 1) * GRID_STEP)
+        gridValid = true
+
+        val terrain = terrain
+        val nextTerrain = nextTerrain
+        gridTerrainVersion = terrain.version
+        gridNextTerrainVersion = nextTerrain?.version ?: 0
+        var i = 0
+        for (y in 0 until GRID_SAMPLES) {
+            val worldY = gridY + y * GRID_STEP
+            for (x in 0 until GRID_SAMPLES) {
+                val worldX = gridX + x * GRID_STEP
+                terrainHeights[i] = terrain.heightAt(worldX, worldY)
+                if (nextTerrain != null) {
+                    nextTerrainHeights[i] = nextTerrain.heightAt(worldX, worldY)
+                }
+                i++
+            }
+        }
+    }
+
+    override fun getHeightAt(x: Float, y: Float): Float {
+        val gridX = (x - this.gridX) * (1f / GRID_STEP)
+        val gridY = (y - this.gridY) * (1f / GRID_STEP)
+        val nextTerrain = nextTerrain
+
+        val base:Float
+        val next:Float
+        if (gridValid && gridX >= 0f && gridY >= 0f && gridX < GRID_SAMPLES - 1 && gridY < GRID_SAMPLES - 1) {
+            val ix = gridX.toInt()
+            val iy = gridY.toInt()
+            val fx = gridX - ix
+            val fy = gridY - iy
+            val i = iy * GRID_SAMPLES + ix
+            base = bilinear(terrainHeights, i, fx, fy)
+            if (nextTerrain == null) {
+                return base
+            }
+            next = bilinear(nextTerrainHeights, i, fx, fy)
+        } else {
+            base = terrain.heightAt(x, y)
+            if (nextTerrain == null) {
+                return base
+            }
+            next = nextTerrain.heightAt(x, y)
+        }
+
+        return MathUtils.lerp(base, next, getBlendAt(x, y, blend, blendEdgeLeft, blendEdgeRight))
+    }
+
+    /** Like [getHeightAt] for each point, but the grid and the blend are looked up once for all of them. */
+    override fun getHeightsAt(xs:FloatArray, ys:FloatArray, out:FloatArray, count:Int) {
+        val terrain = terrain
+        val nextTerrain = nextTerrain
+        val terrainHeights = terrainHeights
+        val nextTerrainHeights = nextTerrainHeights
+        val gridValid = gridValid
+        val originX = gridX
+        val originY = gridY
+        val blend = blend
+        val blendEdgeLeft = blendEdgeLeft
+        val blendEdgeRight = blendEdgeRight
+        val gridEnd = (GRID_SAMPLES - 1).toFloat()
+
+        for (p in 0 until count) {
+            val x = xs[p]
+            val y = ys[p]
+            val gridX = (x - originX) * (1f / GRID_STEP)
+            val gridY = (y - originY) * (1f / GRID_STEP)
+
+            if (gridValid && gridX >= 0f && gridY >= 0f && gridX < gridEnd && gridY < gridEnd) {
+                val ix = gridX.toInt()
+                val iy = gridY.toInt()
+                val fx = gridX - ix
+                val fy = gridY - iy
+                val i = iy * GRID_SAMPLES + ix
+                val base = bilinear(terrainHeights, i, fx, fy)
+                out[p] = if (nextTerrain == null) base
+                else MathUtils.lerp(base, bilinear(nextTerrainHeights, i, fx, fy), getBlendAt(x, y, blend, blendEdgeLeft, blendEdgeRight))
+            } else {
+                val base = terrain.heightAt(x, y)
+                out[p] = if (nextTerrain == null) base
+                else MathUtils.lerp(base, nextTerrain.heightAt(x, y), getBlendAt(x, y, blend, blendEdgeLeft, blendEdgeRight))
+            }
+        }
+    }
+
+    @Suppress("NOTHING_TO_INLINE")
+    private inline fun bilinear(heights:FloatArray, i:Int, fx:Float, fy:Float):Float {
+        val bottom = MathUtils.lerp(heights[i], heights[i + 1], fx)
+        val top = MathUtils.lerp(heights[i + GRID_SAMPLES], heights[i + GRID_SAMPLES + 1], fx)
+        return MathUtils.lerp(bottom, top, fy)
+    }
+
+    override fun getDimensions(out:Rectangle): Rectangle {
+        val nextTerrain = nextTerrain
+        val blend = blend
+
+        terrain.getDimensions(out)
+        if (nextTerrain == null) {
+            return out
+        }
+        val next = nextTerrain.getDimensions(Rectangle())
+
+        return out.set(MathUtils.lerp(out.x, next.x, blend),
+                MathUtils.lerp(out.y, next.y, blend),
+                MathUtils.lerp(out.width, next.width, blend),
+                MathUtils.lerp(out.height, next.height, blend))
+    }
+
+    override fun adjustPointToHeightRange(point: Vector2, minHeight: Float, maxHeight: Float):Boolean {
+        val terrain = nextTerrain ?: terrain
+        if (terrain.heightAt(point.x, point.y) in minHeight..maxHeight) {
+            return true
+        }
+        return terrain.heightRangeField(minHeight, maxHeight).adjust(point)
+    }
+
+    private companion object {
+        /** Samples along each side of the grid */
+        private const val GRID_SAMPLES = 129
+        /** Distance between samples, about the distance between terrain vertices */
+        private const val GRID_STEP = 1f
+        /** How far can the player move from the center of the grid, before it is resampled */
+        private const val RESAMPLE_DISTANCE = 16f
+    }
+}
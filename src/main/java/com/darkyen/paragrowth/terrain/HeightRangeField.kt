@@ -0,0 +1,103 @@
+package com.darkyen.paragrowth.terrain
+
+import com.badlogic.gdx.math.MathUtils
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.math.Vector2
+import com.darkyen.paragrowth.util.TaskContext
+
+/** Heights of the terrain, from which is [HeightRangeField] built. */
+interface HeightSource {
+    /** @return height of the terrain at given point, -1 (water) where there is no terrain */
+    fun heightAt(x: Float, y: Float): Float
+}
+
+/**
+ * For each cell of a grid over an area of the terrain, the nearest cell whose center is in a height range,
+ * so that a point can be moved into the range with one lookup, instead of searching around it.
+ *
+ * Built by two sweeps which propagate the nearest valid cell from the neighbors, which is nearest
+ * in all but a few degenerate cases. Immutable and thread safe after construction.
+ * Construction checks the token of [TaskContext.current] after each row, so that a build which is not needed anymore stops early.
+ */
+class HeightRangeField(terrain:HeightSource, area:Rectangle, val minHeight:Float, val maxHeight:Float) {
+
+    private val originX = area.x
+    private val originY = area.y
+    private val sizeX = MathUtils.ceil(area.width / CELL_SIZE)
+    private val sizeY = MathUtils.ceil(area.height / CELL_SIZE)
+
+    /** Index of the nearest cell in range, -1 if there is none */
+    private val nearest = IntArray(sizeX * sizeY)
+
+    init {
+        val token = TaskContext.current().token
+        for (y in 0 until sizeY) {
+            token.check()
+            for (x in 0 until sizeX) {
+                val i = y * sizeX + x
+                val height = terrain.heightAt(originX + (x + 0.5f) * CELL_SIZE, originY + (y + 0.5f) * CELL_SIZE)
+                nearest[i] = if (height in minHeight..maxHeight) i else -1
+            }
+        }
+
+        for (y in 0 until sizeY) {
+            token.check()
+            for (x in 0 until sizeX) {
+                propagate(x, y, x - 1, y)
+                propagate(x, y, x - 1, y - 1)
+                propagate(x, y, x, y - 1)
+                propagate(x, y, x + 1, y - 1)
+            }
+        }
+
+        for (y in sizeY - 1 downTo 0) {
+            token.check()
+            for (x in sizeX - 1 downTo 0) {
+                propagate(x, y, x + 1, y)
+                propagate(x, y, x + 1, y + 1)
+                propagate(x, y, x, y + 1)
+                propagate(x, y, x - 1, y + 1)
+            }
+        }
+    }
+
+    /** Take the nearest cell of neighbor at [fromX], [fromY], if it is nearer to [x], [y] than the current one. */
+    private fun propagate(x:Int, y:Int, fromX:Int, fromY:Int) {
+        if (fromX < 0 || fromY < 0 || fromX >= sizeX || fromY >= sizeY) {
+            return
+        }
+        val candidate = nearest[fromY * sizeX + fromX]
+        if (candidate < 0) {
+            return
+        }
+        val i = y * sizeX + x
+        val current = nearest[i]
+        if (current < 0 || distance2(x, y, candidate) < distance2(x, y, current)) {
+            nearest[i] = candidate
+        }
+    }
+
+    private fun distance2(x:Int, y:Int, cell:Int):Int {
+        val dx = cell % sizeX - x
+        val dy = cell / sizeX - y
+        return dx * dx + dy * dy
+    }
+
+    /** Move [point] to the center of the nearest cell in range. Points outside of the terrain use the nearest edge cell.
+     * @return false if no cell is in range and [point] was not changed */
+    fun adjust(point:Vector2):Boolean {
+        val x = MathUtils.clamp(MathUtils.floor((point.x - originX) / CELL_SIZE), 0, sizeX - 1)
+        val y = MathUtils.clamp(MathUtils.floor((point.y - originY) / CELL_SIZE), 0, sizeY - 1)
+        val cell = nearest[y * sizeX + x]
+        if (cell < 0) {
+            return false
+        }
+        point.set(originX + (cell % sizeX + 0.5f) * CELL_SIZE, originY + (cell / sizeX + 0.5f) * CELL_SIZE)
+        return true
+    }
+
+    private companion object {
+        /** Size of the grid cells, in world units */
+        private const val CELL_SIZE = 4f
+    }
+}
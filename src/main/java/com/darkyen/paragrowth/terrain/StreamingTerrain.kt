@@ -0,0 +1,426 @@
+package com.darkyen.paragrowth.terrain
+
+import com.badlogic.gdx.graphics.Camera
+import com.badlogic.gdx.graphics.GL20
+import com.badlogic.gdx.graphics.GL30
+import com.badlogic.gdx.math.MathUtils
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.math.collision.BoundingBox
+import com.badlogic.gdx.utils.LongMap
+import com.darkyen.paragrowth.WorldSpecifics
+import com.darkyen.paragrowth.render.*
+import com.darkyen.paragrowth.terrain.TerrainPatchwork.Companion.STAGING
+import com.darkyen.paragrowth.terrain.TerrainPatchwork.Companion.indexBuffer
+import com.darkyen.paragrowth.util.*
+import java.nio.ByteBuffer
+
+/**
+ * Terrain of an [WorldSpecifics.open] world, which has no edges.
+ *
+ * Only patches in a [PatchRing] around the player are kept. They live in a fixed amount of patch-sized slots
+ * of a single vertex buffer, so memory does not grow, no matter how far the player walks.
+ * Patches which the player approaches are generated in the background, those in the direction of movement first,
+ * and when there is no free slot for one, the loaded patch furthest behind the player, which is not wanted anymore, is unloaded.
+ * Patches which are not loaded yet are drawn as ocean and their height is -1.
+ *
+ * Patches change only on the render thread, in [update] and in [GlJobs], queries are thread safe between those.
+ * Height range fields of [heightRanges] (pairs of min and max height) and of ranges queried so far are rebuilt
+ * in the background after the heights change.
+ */
+class StreamingTerrain(override val worldSpec: WorldSpecifics, heightRanges:FloatArray = FloatArray(0)) : Terrain {
+
+    private val ring = PatchRing(PATCH_WIDTH, PATCH_HEIGHT, RADIUS_X, RADIUS_Y)
+
+    private val slotCount = ring.size + SPARE_SLOTS
+    private val oceanSlot = slotCount
+
+    private val vertexBuffer:GlBuffer = GlBuffer(GL20.GL_STATIC_DRAW).apply {
+        reserve((slotCount + 1 /* ocean */) * TERRAIN_PATCH_VERTEX_COUNT * TERRAIN_PATCH_VERTEX_SIZE, GL30.GL_FLOAT)
+    }
+    private val vao:GlVertexArrayObject = GlVertexArrayObject(indexBuffer, TERRAIN_PATCH_ATTRIBUTES,
+            GlVertexArrayObject.Binding(vertexBuffer, TERRAIN_PATCH_VERTEX_SIZE, 0), // xyz
+            GlVertexArrayObject.Binding(vertexBuffer, TERRAIN_PATCH_VERTEX_SIZE, 3), // color
+            GlVertexArrayObject.Binding(vertexBuffer, TERRAIN_PATCH_VERTEX_SIZE, 4) // normal
+    )
+
+    /** Slots of [vertexBuffer] without a patch */
+    private val freeSlots = GdxIntArray(slotCount).apply {
+        for (slot in slotCount - 1 downTo 0) {
+            add(slot)
+        }
+    }
+
+    private class LoadedPatch(val patch:TerrainPatch, val slot:Int)
+
+    /** Loaded patches, by [patchKey] */
+    private val patches = LongMap<LoadedPatch>()
+    /** Generation and upload of wanted patches, which are not loaded yet, by [patchKey] */
+    private val loading = LongMap<Delayed<Unit>>()
+
+    private val oceanPatch:TerrainPatch = run {
+        val staging = STAGING.obtain()
+        val heightMap = FloatArray(PATCH_SIZE * PATCH_SIZE)
+        generateTerrainPatchVertices(0f, 0f, { _, _ -> -1f }, { _, _ -> worldSpec.waterColor }, { _, _, _ -> }, staging.asFloatBuffer(), heightMap)
+        upload(staging, oceanSlot)
+        TerrainPatch(0f, 0f, heightMap, Model(vao, TERRAIN_PATCH_INDEX_COUNT, 0, oceanSlot * TERRAIN_PATCH_VERTEX_COUNT))
+    }
+
+    @Volatile
+    override var version = 0
+        private set
+    /** Patches were loaded or unloaded, or the ring moved, since [version] last changed */
+    private var heightsChanged = false
+    /** [version] in which each patch was last loaded or unloaded, by [patchKey]. Patches far outside of the ring are forgotten. */
+    private val patchVersions = LongMap<Int>()
+    /** Latest [version] of the forgotten [patchVersions] */
+    private var forgottenVersion = 0
+
+    /** Follow the player, see [Terrain.update]. */
+    override fun update(playerX:Float, playerY:Float) {
+        if (ring.update(playerX, playerY)) {
+            // Area of the height range fields moves with the ring
+            heightsChanged = true
+            forgetPatchVersions()
+
+            // Patches which are not wanted anymore are not worth generating
+            val entries = loading.entries().iterator()
+            while (entries.hasNext()) {
+                val entry = entries.next()
+                if (!ring.contains(patchKeyX(entry.key), patchKeyY(entry.key))) {
+                    entry.value.cancel()
+                    entries.remove()
+                }
+            }
+
+            ring.forEach { x, y ->
+                val key = patchKey(x, y)
+                if (!patches.containsKey(key) && !loading.containsKey(key)) {
+                    loading.put(key, load(x, y))
+                }
+            }
+        }
+
+        // Polling moves done generation to GlJobs
+        val entries = loading.entries().iterator()
+        while (entries.hasNext()) {
+            if (entries.next().value.poll() != null) {
+                entries.remove()
+            }
+        }
+
+        val fields = heightRangeFieldsTask?.poll()
+        if (fields != null) {
+            publishHeightRangeFields(fields)
+            heightRangeFieldsTask = null
+        }
+        // Patches completed in GlJobs since the last update are committed together
+        commitHeights()
+    }
+
+    /** Block until all wanted patches are loaded, for example when the player appears in the world. Render thread only. */
+    fun finishLoading() {
+        for (entry in loading.entries()) {
+            entry.value.get()
+        }
+        loading.clear()
+
+        commitHeights()
+        val fieldsTask = heightRangeFieldsTask
+        if (fieldsTask != null) {
+            publishHeightRangeFields(fieldsTask.get())
+            heightRangeFieldsTask = null
+        }
+    }
+
+    /** Change [version] once for all patches loaded and unloaded since the last call, and rebuild height range fields for them. */
+    private fun commitHeights() {
+        if (!heightsChanged) {
+            return
+        }
+        heightsChanged = false
+        version++
+        rebuildHeightRangeFields()
+    }
+
+    private fun load(x:Int, y:Int):Delayed<Unit> {
+        val key = patchKey(x, y)
+        val xOffset = x * PATCH_WIDTH
+        val yOffset = y * PATCH_HEIGHT
+
+        return TaskContext(CancellationToken(), Priority.VISIBLE).within {
+            offload(order = ring.order(x, y)) {
+                val region = worldSpec.openRegion(
+                        MathUtils.floor(xOffset) - REGION_MARGIN, MathUtils.floor(yOffset) - REGION_MARGIN,
+                        MathUtils.ceil(PATCH_WIDTH) + 2 * REGION_MARGIN, MathUtils.ceil(PATCH_HEIGHT) + 2 * REGION_MARGIN)
+                val staging = STAGING.obtain()
+                val heightMap = FloatArray(PATCH_SIZE * PATCH_SIZE)
+                val colorQuery = region.queryColors()
+                generateTerrainPatchVertices(xOffset, yOffset, region::getHeight, colorQuery::getColor, region::getNormal, staging.asFloatBuffer(), heightMap)
+                staging to heightMap
+            }.mapOnGlThread { (staging, heightMap) -> complete(key, xOffset, yOffset, staging, heightMap) }
+        }
+    }
+
+    /** Upload generated patch into a slot */
+    private fun complete(key:Long, xOffset:Float, yOffset:Float, staging:ByteBuffer, heightMap:FloatArray) {
+        val slot = obtainSlot()
+        upload(staging, slot)
+        val model = Model(vao, TERRAIN_PATCH_INDEX_COUNT, 0, slot * TERRAIN_PATCH_VERTEX_COUNT)
+        patches.put(key, LoadedPatch(TerrainPatch(xOffset, yOffset, heightMap, model), slot))
+        patchChanged(key)
+    }
+
+    /** Heights of patch [key] changed, to be committed in the next [version]. */
+    private fun patchChanged(key:Long) {
+        heightsChanged = true
+        patchVersions.put(key, version + 1)
+    }
+
+    /** Forget [patchVersions] of patches which are neither loaded nor wanted. */
+    private fun forgetPatchVersions() {
+        val entries = patchVersions.entries().iterator()
+        while (entries.hasNext()) {
+            val entry = entries.next()
+            if (!patches.containsKey(entry.key) && !ring.contains(patchKeyX(entry.key), patchKeyY(entry.key))) {
+                forgottenVersion = maxOf(forgottenVersion, entry.value)
+                entries.remove()
+            }
+        }
+    }
+
+    /** Only patches loaded or unloaded since [sinceVersion], which touch [area], count as changed. */
+    override fun heightsChangedSince(sinceVersion:Int, area:Rectangle):Boolean {
+        if (sinceVersion == version) {
+            return false
+        }
+        // Heights at patch edges are interpolated from vertices of the neighbors
+        val lowX = MathUtils.floor((area.x - X_STEP) / PATCH_WIDTH)
+        val highX = MathUtils.floor((area.x + area.width + X_STEP) / PATCH_WIDTH)
+        val lowY = MathUtils.floor((area.y - Y_STEP) / PATCH_HEIGHT)
+        val highY = MathUtils.floor((area.y + area.height + Y_STEP) / PATCH_HEIGHT)
+        for (y in lowY..highY) {
+            for (x in lowX..highX) {
+                val changedVersion = patchVersions.get(patchKey(x, y)) ?: forgottenVersion
+                if (changedVersion > sinceVersion) {
+                    return true
+                }
+            }
+        }
+        return false
+    }
+
+    /** @return free slot, unloading a patch which is not wanted, if there is none */
+    private fun obtainSlot():Int {
+        if (freeSlots.size > 0) {
+            return freeSlots.pop()
+        }
+
+        // Any key is a valid patch, so whether one was found must be tracked separately
+        var found = false
+        var unloadKey = 0L
+        var unloadOrder = -1f
+        for (entry in patches.entries()) {
+            val order = ring.order(patchKeyX(entry.key), patchKeyY(entry.key))
+            if (order > unloadOrder && !ring.contains(patchKeyX(entry.key), patchKeyY(entry.key))) {
+                found = true
+                unloadKey = entry.key
+                unloadOrder = order
+            }
+        }
+        // Can't happen, there are more slots than wanted patches, so some loaded patch is not wanted
+        if (!found) {
+            throw IllegalStateException("No slot to unload")
+        }
+        val unloaded = patches.remove(unloadKey)
+        patchChanged(unloadKey)
+        return unloaded.slot
+    }
+
+    private fun upload(staging:ByteBuffer, slot:Int) {
+        vertexBuffer.setSubData(slot * TERRAIN_PATCH_VERTEX_COUNT * TERRAIN_PATCH_VERTEX_SIZE, staging)
+        STAGING.free(staging)
+    }
+
+    private fun heightAtVertex(x: Int, y: Int): Float {
+        val patchX = Math.floorDiv(x, PATCH_UNIT_SIZE)
+        val patchY = Math.floorDiv(y, PATCH_UNIT_SIZE)
+        val patch = patches.get(patchKey(patchX, patchY)) ?: return -1f
+
+        val inPatchX = Math.floorMod(x, PATCH_UNIT_SIZE)
+        val inPatchY = Math.floorMod(y, PATCH_UNIT_SIZE)
+        return patch.patch.heightMap[inPatchY * PATCH_SIZE + inPatchX]
+    }
+
+    override fun heightAt(x: Float, y: Float): Float {
+        return terrainHeightAt(x, y, ::heightAtVertex)
+    }
+
+    /** Area of the wanted patches, it moves with the player */
+    override fun getDimensions(out: Rectangle): Rectangle {
+        return out.set((ring.centerX - RADIUS_X) * PATCH_WIDTH, (ring.centerY - RADIUS_Y) * PATCH_HEIGHT,
+                (2 * RADIUS_X + 1) * PATCH_WIDTH, (2 * RADIUS_Y + 1) * PATCH_HEIGHT)
+    }
+
+    /** Ranges, pairs of min and max height, whose fields are rebuilt when heights change. Also guards [heightRangeFields]. */
+    private val heightRanges = GdxFloatArray(heightRanges)
+    /** Fields of some recent heights, one for each range, replaced when the fields of the current heights are built */
+    @Volatile
+    private var heightRangeFields:Array<HeightRangeField> = emptyArray()
+    /** Build of the fields of the current heights */
+    private var heightRangeFieldsTask:Delayed<Array<HeightRangeField>>? = null
+
+    /** Start building fields of all known ranges from the currently loaded patches, whose heights don't change anymore. */
+    private fun rebuildHeightRangeFields() {
+        heightRangeFieldsTask?.cancel()
+        val ranges = synchronized(heightRanges) { heightRanges.toArray() }
+        if (ranges.isEmpty()) {
+            heightRangeFieldsTask = null
+            return
+        }
+        val heights = LoadedHeights(patches)
+        val area = getDimensions(Rectangle())
+        heightRangeFieldsTask = TaskContext(CancellationToken(), Priority.VISIBLE).within {
+            offload {
+                Array(ranges.size / 2) { i -> HeightRangeField(heights, area, ranges[i * 2], ranges[i * 2 + 1]) }
+            }
+        }
+    }
+
+    private fun publishHeightRangeFields(fields:Array<HeightRangeField>) {
+        synchronized(heightRanges) {
+            // Ranges first queried during the build keep their field of older heights, until the next build
+            var published = fields
+            for (field in heightRangeFields) {
+                if (findHeightRangeField(published, field.minHeight, field.maxHeight) == null) {
+                    published += field
+                }
+            }
+            heightRangeFields = published
+        }
+    }
+
+    private fun findHeightRangeField(fields:Array<HeightRangeField>, minHeight:Float, maxHeight:Float):HeightRangeField? {
+        for (field in fields) {
+            if (field.minHeight == minHeight && field.maxHeight == maxHeight) {
+                return field
+            }
+        }
+        return null
+    }
+
+    /** Until the fields of the current heights are built in the background, those of previous heights are returned.
+     * Only the field of a range which was not queried before is built right away. See [Terrain.heightRangeField]. */
+    override fun heightRangeField(minHeight:Float, maxHeight:Float):HeightRangeField {
+        findHeightRangeField(heightRangeFields, minHeight, maxHeight)?.let { return it }
+        synchronized(heightRanges) {
+            // May have been built by another thread meanwhile
+            findHeightRangeField(heightRangeFields, minHeight, maxHeight)?.let { return it }
+            val field = HeightRangeField(this, getDimensions(Rectangle()), minHeight, maxHeight)
+            heightRanges.add(minHeight, maxHeight)
+            heightRangeFields += field
+            return field
+        }
+    }
+
+    override fun setupGlobalAttributes(batch: RenderBatch) {
+        batch.attributes[TERRAIN_WATER_COLOR_FROM_ATTRIBUTE][0] = worldSpec.waterColor
+        batch.attributes[TERRAIN_WATER_COLOR_TO_ATTRIBUTE][0] = worldSpec.waterColor
+    }
+
+    private val render_bounds = BoundingBox()
+    private val render_boundsSea = BoundingBox()
+
+    override fun render(batch: RenderBatch, camera: Camera) {
+        val frustum = camera.frustum
+        val cameraPosition = camera.position
+        val bounds = this.render_bounds.set(frustum.planePoints)
+
+        val lowX = Math.floor(((bounds.min.x - X_STEP) / PATCH_WIDTH).toDouble()).toInt()
+        val highX = Math.ceil(((bounds.max.x + X_STEP) / PATCH_WIDTH).toDouble()).toInt()
+
+        val lowY = Math.floor(((bounds.min.y - Y_STEP) / PATCH_HEIGHT).toDouble()).toInt()
+        val highY = Math.ceil(((bounds.max.y + Y_STEP) / PATCH_HEIGHT).toDouble()).toInt()
+
+        for (y in lowY..highY) {
+            for (x in lowX..highX) {
+                val loaded = patches.get(patchKey(x, y))
+                if (loaded != null) {
+                    val patch = loaded.patch
+                    if (frustum.boundsInFrustum(patch.boundingBox)) {
+                        val model = batch.render()
+                        model.set(patch.model)
+                        model.shader = TERRAIN_SHADER_L_W
+                        model.setupTerrainOrderAndLod(cameraPosition, x, y, 300)
+                    }
+                } else {
+                    val patch = oceanPatch
+                    val xOff = x * PATCH_WIDTH
+                    val yOff = y * PATCH_HEIGHT
+
+                    val box = render_boundsSea.set(patch.boundingBox)
+                    box.min.add(xOff, yOff, 0f)
+                    box.max.add(xOff, yOff, 0f)
+
+                    if (frustum.boundsInFrustum(box)) {
+                        val model = batch.render()
+                        model.set(patch.model)
+                        model.shader = TERRAIN_SHADER_W_W
+                        model.attributes[TERRAIN_W_W_OCEAN_OFFSET_ATTRIBUTE].set(xOff, yOff)
+                        model.setupTerrainOrderAndLod(cameraPosition, x, y, 180)
+                    }
+                }
+            }
+        }
+    }
+
+    override fun dispose() {
+        heightRangeFieldsTask?.cancel()
+        heightRangeFieldsTask = null
+        for (entry in loading.entries()) {
+            entry.value.cancel()
+        }
+        loading.clear()
+        patches.clear()
+
+        vao.dispose()
+        vertexBuffer.dispose()
+    }
+
+    /** Heights of the patches loaded at one moment. Height maps of patches never change, so this can be read from any thread. */
+    private class LoadedHeights(patches:LongMap<LoadedPatch>) : HeightSource {
+
+        private val heightMaps = LongMap<FloatArray>(patches.size)
+
+        init {
+            for (entry in patches.entries()) {
+                heightMaps.put(entry.key, entry.value.patch.heightMap)
+            }
+        }
+
+        private fun heightAtVertex(x: Int, y: Int): Float {
+            val patchX = Math.floorDiv(x, PATCH_UNIT_SIZE)
+            val patchY = Math.floorDiv(y, PATCH_UNIT_SIZE)
+            val heightMap = heightMaps.get(patchKey(patchX, patchY)) ?: return -1f
+
+            val inPatchX = Math.floorMod(x, PATCH_UNIT_SIZE)
+            val inPatchY = Math.floorMod(y, PATCH_UNIT_SIZE)
+            return heightMap[inPatchY * PATCH_SIZE + inPatchX]
+        }
+
+        override fun heightAt(x: Float, y: Float): Float {
+            return terrainHeightAt(x, y, ::heightAtVertex)
+        }
+    }
+
+    private companion object {
+        /** How far can the player see, should match the far plane of the camera */
+        private const val VIEW_DISTANCE = 500f
+        /** Patches around the patch of the player, which are kept loaded */
+        private val RADIUS_X = MathUtils.ceil(VIEW_DISTANCE / PATCH_WIDTH)
+        private val RADIUS_Y = MathUtils.ceil(VIEW_DISTANCE / PATCH_HEIGHT)
+        /** Slots over the wanted patches, so that patches just left behind are not unloaded right away */
+        private val SPARE_SLOTS = 2 * RADIUS_X + 2 * RADIUS_Y + 2
+        /** Heightfield around a generated patch, needed for its normals */
+        private const val REGION_MARGIN = 3
+    }
+}
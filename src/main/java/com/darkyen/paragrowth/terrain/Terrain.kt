@@ -0,0 +1,33 @@
+package com.darkyen.paragrowth.terrain
+
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.utils.Disposable
+import com.darkyen.paragrowth.WorldSpecifics
+import com.darkyen.paragrowth.render.RenderBatch
+import com.darkyen.paragrowth.render.Renderable
+
+/**
+ * Ground of a world, made of terrain patches.
+ * Either the whole finite world, [TerrainPatchwork], or patches around the player in an open world, [StreamingTerrain].
+ */
+interface Terrain : HeightSource, Renderable, Disposable {
+
+    val worldSpec: WorldSpecifics
+
+    /** Changes whenever the heights change, for example when patches are loaded or unloaded, at most once per [update]. */
+    val version: Int
+
+    /** @return true if heights in [area] may have changed since [version] was [sinceVersion]. Render thread only. */
+    fun heightsChangedSince(sinceVersion: Int, area: Rectangle): Boolean = version != sinceVersion
+
+    /** Set [out] to the area covered by the terrain and return it. */
+    fun getDimensions(out: Rectangle): Rectangle
+
+    /** @return field of nearest points with height in given range, over [getDimensions]. May be called from any thread. */
+    fun heightRangeField(minHeight: Float, maxHeight: Float): HeightRangeField
+
+    fun setupGlobalAttributes(batch: RenderBatch)
+
+    /** Called each frame with the position of the player, on the render thread. */
+    fun update(playerX: Float, playerY: Float) {}
+}
@@ -7,7 +7,7 @@ import com.badlogic.gdx.graphics.g3d.utils.RenderContext
 import com.badlogic.gdx.graphics.g3d.utils.TextureDescriptor
 import com.badlogic.gdx.math.Vector3
 import com.badlogic.gdx.math.collision.BoundingBox
-import com.darkyen.paragrowth.ParagrowthMain
+import com.darkyen.paragrowth.Assets
 import com.darkyen.paragrowth.render.*
 import com.darkyen.paragrowth.render.Shader.Companion.TERRAIN
 import com.darkyen.paragrowth.render.Shader.Companion.TERRAIN_OCEAN
@@ -427,6 +427,82 @@ class TerrainPatch(
     }
 }
 
+/** Height of terrain at [x], [y], interpolated over the triangle around the point, from heights of its vertices.
+ * For easier to debug math. */
+internal inline fun terrainHeightAt(x: Float, y: Float, heightAtVertex:(x:Int, y:Int) -> Float): Float {
+    val gridY = y / Y_STEP
+    val baseY = Math.floor(gridY.toDouble()).toInt()
+    val yFrac = gridY - baseY
+
+    val odd = baseY and 1 == 0
+    val gridX = x / X_STEP
+    // Skew the grid to look like rectangles with alternating diagonals
+    val skewedX = gridX - if (odd) yFrac * X_STAGGER else (1f - yFrac) * X_STAGGER
+
+    val baseX = Math.floor(skewedX.toDouble()).toInt()
+    val xFrac = skewedX - baseX
+
+    /*
+    We are somewhere in a triangle, with straight on top or on bottom.
+    We want to find "global coordinates" of vertices of this triangle and interpolation factors.
+
+    Also, we need interpolation factor for the base and point.
+     */
+
+    val trigBaseYOff: Int
+    val trigPointXOff: Int
+    val trigPointYOff: Int
+
+    if (odd) {
+        if (yFrac < 1f - xFrac) {
+            trigBaseYOff = 0
+            trigPointXOff = 0
+            trigPointYOff = 1
+        } else {
+            trigBaseYOff = 1
+            trigPointXOff = 1
+            trigPointYOff = 0
+        }
+    } else {
+        if (yFrac < xFrac) {
+            trigBaseYOff = 0
+            trigPointXOff = 1
+            trigPointYOff = 1
+        } else {
+            trigBaseYOff = 1
+            trigPointXOff = 0
+            trigPointYOff = 0
+        }
+    }
+
+    // Convert to barycentric
+    // https://en.wikipedia.org/wiki/Barycentric_coordinate_system
+    // P1 = base left, P2 = base right, P3 = point
+    val x1 = 0
+    val x2 = 1
+
+    val detT = ((trigBaseYOff - trigPointYOff) * (x1 - trigPointXOff) + (trigPointXOff - x2) * (trigBaseYOff - trigPointYOff)).toFloat()
+    val a1 = ((trigBaseYOff - trigPointYOff) * (xFrac - trigPointXOff) + (trigPointXOff - x2) * (yFrac - trigPointYOff)) / detT
+    val a2 = ((trigPointYOff - trigBaseYOff) * (xFrac - trigPointXOff) + (x1 - trigPointXOff) * (yFrac - trigPointYOff)) / detT
+    val a3 = 1f - a1 - a2
+
+    val hBaseLeft = heightAtVertex(baseX, baseY + trigBaseYOff)
+    val hBaseRight = heightAtVertex(baseX + 1, baseY + trigBaseYOff)
+    val hPoint = heightAtVertex(baseX + trigPointXOff, baseY + trigPointYOff)
+
+    return hBaseLeft * a1 + hBaseRight * a2 + hPoint * a3
+}
+
+/** Order by distance of the patch at patch coordinates [x], [y] from [cameraPosition]
+ * and draw it with less detail, when it is further than [lodDistance]. */
+internal fun RenderModel.setupTerrainOrderAndLod(cameraPosition: Vector3, x:Int, y:Int, lodDistance:Int) {
+    order = cameraPosition.dst2(x * PATCH_WIDTH + PATCH_WIDTH * 0.5f, y * PATCH_HEIGHT + PATCH_HEIGHT * 0.5f, 0f)
+    if (order > lodDistance * lodDistance) {
+        offset = TERRAIN_PATCH_INDEX_COUNT
+        count = TERRAIN_PATCH_LOD1_INDEX_COUNT
+    }
+}
+
 // TODO Better order for better batching
 enum class TerrainShaderType(val order:Int) {
     LAND_LAND(TERRAIN),
@@ -492,11 +568,8 @@ class TerrainShader(type:TerrainShaderType) : Shader(
             uniform.set(attributes[TERRAIN_TIME_ATTRIBUTE][0])
         }
 
-        ParagrowthMain.assetManager.load("Water_001_DISP.png", Texture::class.java)
-        ParagrowthMain.assetManager.load("Water_001_NORM.jpg", Texture::class.java)
-        ParagrowthMain.assetManager.finishLoading()
-        val displacement = TextureDescriptor(ParagrowthMain.assetManager.get("Water_001_DISP.png", Texture::class.java), Texture.TextureFilter.Linear, Texture.TextureFilter.Linear, Texture.TextureWrap.Repeat, Texture.TextureWrap.Repeat)
-        val normal = TextureDescriptor(ParagrowthMain.assetManager.get("Water_001_NORM.jpg", Texture::class.java), Texture.TextureFilter.Linear, Texture.TextureFilter.Linear, Texture.TextureWrap.Repeat, Texture.TextureWrap.Repeat)
+        val displacement = TextureDescriptor(Assets.waterDisplacement, Texture.TextureFilter.Linear, Texture.TextureFilter.Linear, Texture.TextureWrap.Repeat, Texture.TextureWrap.Repeat)
+        val normal = TextureDescriptor(Assets.waterNormal, Texture.TextureFilter.Linear, Texture.TextureFilter.Linear, Texture.TextureWrap.Repeat, Texture.TextureWrap.Repeat)
 
         globalUniform("u_displacement_texture") { uniform, _, _ ->
             uniform.set(displacement)
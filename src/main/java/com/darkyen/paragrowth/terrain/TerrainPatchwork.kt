@@ -1,25 +1,23 @@
 package com.darkyen.paragrowth.terrain
 
+import com.badlogic.gdx.Gdx
 import com.badlogic.gdx.graphics.Camera
 import com.badlogic.gdx.graphics.GL20
 import com.badlogic.gdx.graphics.GL30
 import com.badlogic.gdx.math.MathUtils
-import com.badlogic.gdx.math.Vector3
+import com.badlogic.gdx.math.Rectangle
+import com.badlogic.gdx.math.Vector2
 import com.badlogic.gdx.math.collision.BoundingBox
-import com.badlogic.gdx.utils.Disposable
-import com.darkyen.paragrowth.ParagrowthMain
 import com.darkyen.paragrowth.WorldSpecifics
 import com.darkyen.paragrowth.render.*
-import com.darkyen.paragrowth.util.Delayed
-import com.darkyen.paragrowth.util.arrayOfSize
-import org.lwjgl.opengl.GL15.GL_WRITE_ONLY
-import java.util.concurrent.ForkJoinTask
+import com.darkyen.paragrowth.util.*
+import java.nio.ByteBuffer
 import kotlin.math.roundToInt
 
 /**
  * A collection of terrain patches.
  */
-class TerrainPatchwork private constructor(val worldSpec: WorldSpecifics) : Renderable, Disposable {
+class TerrainPatchwork private constructor(override val worldSpec: WorldSpecifics) : Terrain {
 
     // inclusive min
     private val minPatchX = MathUtils.floor(worldSpec.offsetX / PATCH_WIDTH)
@@ -42,77 +40,98 @@ class TerrainPatchwork private constructor(val worldSpec: WorldSpecifics) : Rend
             GlVertexArrayObject.Binding(vertexBuffer, TERRAIN_PATCH_VERTEX_SIZE, 4) // normal
     )
 
-    private var patchTasks:Array<ForkJoinTask<*>>? = beginInitialization()
+    /** Context of the graph which builds this, when cancelled, this is disposed */
+    private val context = TaskContext.current()
 
-    private fun beginInitialization():Array<ForkJoinTask<*>> {
-        val tasks = arrayOfSize<ForkJoinTask<*>>(patches.size)
+    /** Generation of each patch into staging memory and its upload */
+    private var patchTasks:Array<Delayed<Unit>>? = beginInitialization()
 
-        val vertexBufferMemory = vertexBuffer.beginMappedAccess(GL_WRITE_ONLY)
+    init {
+        context.token.onCancel(::abandon)
+    }
+
+    private fun beginInitialization():Array<Delayed<Unit>> {
+        val tasks = arrayOfSize<Delayed<Unit>>(patches.size)
+        // Patches closest to the center, where the player is, are generated first
+        val centerX = worldSpec.offsetX + worldSpec.noise.sizeX * 0.5f
+        val centerY = worldSpec.offsetY + worldSpec.noise.sizeY * 0.5f
 
         var patchI = 0
         var baseVertex = 0
-        val patchSizeBytes = TERRAIN_PATCH_VERTEX_COUNT * TERRAIN_PATCH_VERTEX_SIZE * java.lang.Float.BYTES
 
         for (y in minPatchY until maxPatchY) {
             for (x in minPatchX until maxPatchX) {
-                val vertexArray = vertexBufferMemory.asFloatBuffer()
-                vertexBufferMemory.position(vertexBufferMemory.position() + patchSizeBytes)
-
                 val patchIndex = patchI++
                 val patchBaseVertex = baseVertex
                 baseVertex += TERRAIN_PATCH_VERTEX_COUNT
 
-                tasks[patchIndex] = ParagrowthMain.WORKER_POOL.submit {
-                    val xOffset = x * PATCH_WIDTH
-                    val yOffset = y * PATCH_HEIGHT
+                val xOffset = x * PATCH_WIDTH
+                val yOffset = y * PATCH_HEIGHT
+                val order = Vector2.dst2(xOffset + PATCH_WIDTH * 0.5f, yOffset + PATCH_HEIGHT * 0.5f, centerX, centerY)
+
+                tasks[patchIndex] = offload(context, order) {
+                    val staging = STAGING.obtain()
                     val heightMap = FloatArray(PATCH_SIZE * PATCH_SIZE)
                     val colorQuery = worldSpec.queryColors()
-                    generateTerrainPatchVertices(xOffset, yOffset, worldSpec::getHeight, colorQuery::getColor, worldSpec::getNormal, vertexArray, heightMap)
+                    generateTerrainPatchVertices(xOffset, yOffset, worldSpec::getHeight, colorQuery::getColor, worldSpec::getNormal, staging.asFloatBuffer(), heightMap)
                     val model = Model(vao, TERRAIN_PATCH_INDEX_COUNT, 0, patchBaseVertex)
 
                     patches[patchIndex] = TerrainPatch(xOffset, yOffset, heightMap, model)
-                }
+                    staging
+                }.mapOnGlThread { staging -> upload(staging, patchBaseVertex) }
             }
         }
 
-        tasks[patchI] = ParagrowthMain.WORKER_POOL.submit {
-            val vertexArray = vertexBufferMemory.asFloatBuffer()
+        tasks[patchI] = offload(context) {
+            val staging = STAGING.obtain()
             val heightMap = FloatArray(PATCH_SIZE * PATCH_SIZE)
-            generateTerrainPatchVertices(0f, 0f, { _, _ -> -1f }, { _, _ -> worldSpec.waterColor }, { _, _, _ -> }, vertexArray, heightMap)
+            generateTerrainPatchVertices(0f, 0f, { _, _ -> -1f }, { _, _ -> worldSpec.waterColor }, { _, _, _ -> }, staging.asFloatBuffer(), heightMap)
             val model = Model(vao, TERRAIN_PATCH_INDEX_COUNT, 0, baseVertex)
             patches[patchI] = TerrainPatch(0f, 0f, heightMap, model)
-        }
+            staging
+        }.mapOnGlThread { staging -> upload(staging, baseVertex) }
 
         return tasks
     }
 
+    private fun upload(staging:ByteBuffer, baseVertex:Int) {
+        vertexBuffer.setSubData(baseVertex * TERRAIN_PATCH_VERTEX_SIZE, staging)
+        STAGING.free(staging)
+    }
+
     private fun tryCompleteInitialization():Boolean {
         val patchTasks = patchTasks ?: return true
-        if (patchTasks.all { it.isDone }) {
-            this.patchTasks = null
-            patchTasks.forEach { it.join() }
-            if (!vertexBuffer.endMappedAccess()) {
-                this.patchTasks = beginInitialization()
-                return false
+        // Poll all, so that uploads of all done patches get queued
+        var done = true
+        for (task in patchTasks) {
+            if (task.poll() == null) {
+                done = false
             }
-            return true
         }
-        return false
+        if (done) {
+            this.patchTasks = null
+        }
+        return done
     }
 
     private fun completeInitialization() {
-        var patchTasks = patchTasks ?: return
+        val patchTasks = patchTasks ?: return
         this.patchTasks = null
+        patchTasks.forEach { it.get() }
+    }
 
-        while (true) {
-            patchTasks.forEach { it.join() }
-            if (vertexBuffer.endMappedAccess()) {
-                break
-            }
-            patchTasks = beginInitialization()
-        }
+    /** Stop the initialization and dispose. Patch tasks which still run touch only their own staging memory. */
+    private fun abandon() {
+        this.patchTasks = null
+        Gdx.app.postRunnable(::dispose)
     }
 
+    private val progress:Float
+        get() {
+            val patchTasks = patchTasks ?: return 1f
+            return patchTasks.count { it.progress >= 1f } / patchTasks.size.toFloat()
+        }
+
     private var blendingTo:TerrainPatchwork? = null
     private var blendVao:Array<GlVertexArrayObject>? = null
     private var blendVaoMinY = 0
@@ -159,76 +178,48 @@ class TerrainPatchwork private constructor(val worldSpec: WorldSpecifics) : Rend
         return patches[(patchY - minPatchY) * patchAmountX + (patchX - minPatchX)].heightMap[inPatchY * PATCH_SIZE + inPatchX]
     }
 
+    /** Heights change only while the patches are built, before this is returned by [build] */
+    override val version: Int
+        get() = 0
+
     fun fastHeightAt(x:Float, y:Float):Float {
         return heightAtVertex((x / X_STEP).roundToInt(), (y / Y_STEP).roundToInt())
     }
 
-    // For easier to debug math
-    fun heightAt(x: Float, y: Float): Float {
-        val gridY = y / Y_STEP
-        val baseY = Math.floor(gridY.toDouble()).toInt()
-        val yFrac = gridY - baseY
-
-        val odd = baseY and 1 == 0
-        val gridX = x / X_STEP
-        // Skew the grid to look like rectangles with alternating diagonals
-        val skewedX = gridX - if (odd) yFrac * X_STAGGER else (1f - yFrac) * X_STAGGER
-
-        val baseX = Math.floor(skewedX.toDouble()).toInt()
-        val xFrac = skewedX - baseX
-
-        /*
-        We are somewhere in a triangle, with straight on top or on bottom.
-        We want to find "global coordinates" of vertices of this triangle and interpolation factors.
-
-        Also, we need interpolation factor for the base and point.
-         */
-
-        val trigBaseYOff: Int
-        val trigPointXOff: Int
-        val trigPointYOff: Int
-
-        if (odd) {
-            if (yFrac < 1f - xFrac) {
-                trigBaseYOff = 0
-                trigPointXOff = 0
-                trigPointYOff = 1
-            } else {
-                trigBaseYOff = 1
-                trigPointXOff = 1
-                trigPointYOff = 0
-            }
-        } else {
-            if (yFrac < xFrac) {
-                trigBaseYOff = 0
-                trigPointXOff = 1
-                trigPointYOff = 1
-            } else {
-                trigBaseYOff = 1
-                trigPointXOff = 0
-                trigPointYOff = 0
-            }
-        }
+    override fun heightAt(x: Float, y: Float): Float {
+        return terrainHeightAt(x, y, ::heightAtVertex)
+    }
 
-        // Convert to barycentric
-        // https://en.wikipedia.org/wiki/Barycentric_coordinate_system
-        // P1 = base left, P2 = base right, P3 = point
-        val x1 = 0
-        val x2 = 1
+    override fun getDimensions(out: Rectangle): Rectangle {
+        return out.set(worldSpec.offsetX, worldSpec.offsetY, worldSpec.noise.sizeX.toFloat(), worldSpec.noise.sizeY.toFloat())
+    }
 
-        val detT = ((trigBaseYOff - trigPointYOff) * (x1 - trigPointXOff) + (trigPointXOff - x2) * (trigBaseYOff - trigPointYOff)).toFloat()
-        val a1 = ((trigBaseYOff - trigPointYOff) * (xFrac - trigPointXOff) + (trigPointXOff - x2) * (yFrac - trigPointYOff)) / detT
-        val a2 = ((trigPointYOff - trigBaseYOff) * (xFrac - trigPointXOff) + (x1 - trigPointXOff) * (yFrac - trigPointYOff)) / detT
-        val a3 = 1f - a1 - a2
+    /** One for each queried range, ranges given to [build] are built in advance, others on demand */
+    private val heightRangeFields = GdxArray<HeightRangeField>(false, 4, HeightRangeField::class.java)
 
-        val hBaseLeft = heightAtVertex(baseX, baseY + trigBaseYOff)
-        val hBaseRight = heightAtVertex(baseX + 1, baseY + trigBaseYOff)
-        val hPoint = heightAtVertex(baseX + trigPointXOff, baseY + trigPointYOff)
+    /** Build fields of [heightRanges], pairs of min and max height, so that the first queries don't have to. */
+    private fun prepareHeightRangeFields(heightRanges:FloatArray) {
+        for (i in 0 until heightRanges.size step 2) {
+            heightRangeField(heightRanges[i], heightRanges[i + 1])
+        }
+    }
 
-        return hBaseLeft * a1 + hBaseRight * a2 + hPoint * a3
+    /** Built on first request, unless prepared by [build], see [Terrain.heightRangeField]. */
+    override fun heightRangeField(minHeight:Float, maxHeight:Float):HeightRangeField {
+        synchronized(heightRangeFields) {
+            for (i in 0 until heightRangeFields.size) {
+                val field = heightRangeFields[i]
+                if (field.minHeight == minHeight && field.maxHeight == maxHeight) {
+                    return field
+                }
+            }
+            val field = HeightRangeField(this, getDimensions(Rectangle()), minHeight, maxHeight)
+            heightRangeFields.add(field)
+            return field
+        }
     }
 
-    fun setupGlobalAttributes(batch: RenderBatch) {
+    override fun setupGlobalAttributes(batch: RenderBatch) {
         batch.attributes[TERRAIN_WATER_COLOR_FROM_ATTRIBUTE][0] = worldSpec.waterColor
         batch.attributes[TERRAIN_WATER_COLOR_TO_ATTRIBUTE][0] = (blendingTo ?: this).worldSpec.waterColor
     }
@@ -236,14 +227,6 @@ class TerrainPatchwork private constructor(val worldSpec: WorldSpecifics) : Rend
     private val render_bounds = BoundingBox()
     private val render_boundsSea = BoundingBox()
 
-    private fun RenderModel.setupOrderAndLod(cameraPosition: Vector3, x:Int, y:Int, lodDistance:Int) {
-        order = cameraPosition.dst2(x * PATCH_WIDTH + PATCH_WIDTH * 0.5f, y * PATCH_HEIGHT + PATCH_HEIGHT * 0.5f, 0f)
-        if (order > lodDistance * lodDistance) {
-            offset = TERRAIN_PATCH_INDEX_COUNT
-            count = TERRAIN_PATCH_LOD1_INDEX_COUNT
-        }
-    }
-
     override fun render(batch: RenderBatch, camera: Camera) {
         val frustum = camera.frustum
         val cameraPosition = camera.position
@@ -291,7 +274,7 @@ class TerrainPatchwork private constructor(val worldSpec: WorldSpecifics) : Rend
                         model.set(patch.model)
                         model.shader = TERRAIN_SHADER_W_W
                         model.attributes[TERRAIN_W_W_OCEAN_OFFSET_ATTRIBUTE].set(xOff, yOff)
-                        model.setupOrderAndLod(cameraPosition, x, y, 180)
+                        model.setupTerrainOrderAndLod(cameraPosition, x, y, 180)
                     }
                 } else {
                     if /* l */ ((baseLand && blendToLand == null /* Land */)
@@ -315,7 +298,7 @@ class TerrainPatchwork private constructor(val worldSpec: WorldSpecifics) : Rend
                                 model.shader = TERRAIN_SHADER_L_W
                             }
 
-                            model.setupOrderAndLod(cameraPosition, x, y, 300)
+                            model.setupTerrainOrderAndLod(cameraPosition, x, y, 300)
                         }
                     } else /* Land -> Land */ {
                         assert(baseLand && blendToLand == true)
@@ -330,7 +313,7 @@ class TerrainPatchwork private constructor(val worldSpec: WorldSpecifics) : Rend
                             model.shader = TERRAIN_SHADER_L_L
                             model.order = cameraPosition.dst2(x * PATCH_WIDTH + PATCH_WIDTH * 0.5f, y * PATCH_HEIGHT + PATCH_HEIGHT * 0.5f, 0f)
 
-                            model.setupOrderAndLod(cameraPosition, x, y, 300)
+                            model.setupTerrainOrderAndLod(cameraPosition, x, y, 300)
                         }
                     }
                 }
@@ -348,7 +331,7 @@ class TerrainPatchwork private constructor(val worldSpec: WorldSpecifics) : Rend
     }
 
     companion object {
-        private val indexBuffer:GlBuffer
+        internal val indexBuffer:GlBuffer
 
         init {
             val indexBuffer = GlBuffer(GL20.GL_STATIC_DRAW)
@@ -360,16 +343,28 @@ class TerrainPatchwork private constructor(val worldSpec: WorldSpecifics) : Rend
             this.indexBuffer = indexBuffer
         }
 
-        fun build(spec:WorldSpecifics): Delayed<TerrainPatchwork> {
+        /** Vertices of one patch, generated off the render thread */
+        internal val STAGING = StagingPool(TERRAIN_PATCH_VERTEX_COUNT * TERRAIN_PATCH_VERTEX_SIZE * java.lang.Float.BYTES, 32)
+
+        /** Build the terrain of [spec], with height range fields of [heightRanges] (pairs of min and max height) ready. */
+        fun build(spec:WorldSpecifics, heightRanges:FloatArray = FloatArray(0)): Delayed<TerrainPatchwork> {
             val patchwork = TerrainPatchwork(spec)
-            return object : Delayed<TerrainPatchwork> {
+            val patches = object : Delayed<TerrainPatchwork> {
+
+                override val context:TaskContext
+                    get() = patchwork.context
+
+                override val progress:Float
+                    get() = patchwork.progress
 
                 override fun get(): TerrainPatchwork {
+                    context.token.check()
                     patchwork.completeInitialization()
                     return patchwork
                 }
 
                 override fun poll(): TerrainPatchwork? {
+                    context.token.check()
                     return if (patchwork.tryCompleteInitialization()) {
                         patchwork
                     } else {
@@ -377,6 +372,12 @@ class TerrainPatchwork private constructor(val worldSpec: WorldSpecifics) : Rend
                     }
                 }
             }
+
+            if (heightRanges.isEmpty()) {
+                return patches
+            }
+            // Fields need all heights, so they are built after the patches, but before the terrain is used
+            return patches.then { offload { it.prepareHeightRangeFields(heightRanges); it } }
         }
     }
 }
\ No newline at end of file
@@ -1,15 +1,47 @@
 package com.darkyen.paragrowth.terrain
 
+import com.badlogic.gdx.math.MathUtils
 import com.badlogic.gdx.math.Rectangle
 import com.badlogic.gdx.math.Vector2
 
 /**
  * Used to query world properties.
+ *
+ * Bulk queries take coordinates as separate arrays and write into preallocated arrays,
+ * so that many points can be queried with one call and without allocation.
  */
 interface WorldQuery {
     fun getHeightAt(x:Float, y:Float):Float
 
-    fun getDimensions(): Rectangle
+    /** Query heights at many points at once, `out[i]` is the height at `xs[i]`, `ys[i]`.
+     * @param count amount of points, from the start of the arrays */
+    fun getHeightsAt(xs:FloatArray, ys:FloatArray, out:FloatArray, count:Int) {
+        for (i in 0 until count) {
+            out[i] = getHeightAt(xs[i], ys[i])
+        }
+    }
 
+    /** Query how much are many points in water at once, see [waterAmount].
+     * Heights at the points, as by [getHeightsAt], are written into [heights] along the way.
+     * @param count amount of points, from the start of the arrays */
+    fun getWaterAt(xs:FloatArray, ys:FloatArray, heights:FloatArray, out:FloatArray, count:Int) {
+        getHeightsAt(xs, ys, heights, count)
+        for (i in 0 until count) {
+            out[i] = waterAmount(heights[i])
+        }
+    }
+
+    /** Set [out] to the area of the world and return it. */
+    fun getDimensions(out:Rectangle): Rectangle
+
+    fun getDimensions(): Rectangle = getDimensions(Rectangle())
+
+    /** Move [point] to a nearby point, whose height is in given range, if it is not in it already.
+     * @return false if there is no such point and [point] was not changed */
     fun adjustPointToHeightRange(point: Vector2, minHeight:Float, maxHeight:Float):Boolean
-}
\ No newline at end of file
+}
+
+/** @return how much is the ground of [height] in water, 0 on land, 1 in water at least 1 unit deep */
+fun waterAmount(height:Float):Float {
+    return MathUtils.clamp(-height, 0f, 1f)
+}
@@ -20,6 +20,11 @@ import com.badlogic.gdx.math.MathUtils;
 import com.badlogic.gdx.math.RandomXS128;
 import com.badlogic.gdx.math.Vector3;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -163,6 +168,61 @@ public final class Noise {
     }
 
 
+    private static final int MAGIC = 0x5a534f4e; // "NOSZ" in little endian
+    /** Magic, size x, size y, default value */
+    private static final int HEADER_SIZE = 4 * 4;
+
+    /**
+     * Write the noise to the channel. Format is little endian header (magic, size x, size y, default value)
+     * followed by the values.
+     * @see #read(ByteBuffer)
+     */
+    public void write(WritableByteChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(sizeX).putInt(sizeY).putFloat(defaultValue);
+
+        final float[] values = this.values;
+        int written = 0;
+        while (true) {
+            final FloatBuffer floats = buffer.asFloatBuffer();
+            final int count = Math.min(floats.remaining(), values.length - written);
+            floats.put(values, written, count);
+            written += count;
+            buffer.position(buffer.position() + count * 4);
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+            if (written == values.length) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Read noise written by {@link #write(WritableByteChannel)}.
+     * @param buffer for example a mapped file, from its position to limit
+     */
+    public static Noise read(ByteBuffer buffer) throws IOException {
+        buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a noise");
+        }
+        final int sizeX = buffer.getInt(4);
+        final int sizeY = buffer.getInt(8);
+        final float defaultValue = buffer.getFloat(12);
+        if (sizeX < 0 || sizeY < 0 || HEADER_SIZE + (long) sizeX * sizeY * 4 != buffer.remaining()) {
+            throw new IOException("Noise is corrupted");
+        }
+
+        final float[] values = new float[sizeX * sizeY];
+        buffer.position(HEADER_SIZE);
+        buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values);
+        return new Noise(values, defaultValue, sizeX, sizeY);
+    }
+
     private static Noise generateWhiteNoise(int sizeX, int sizeY, long seed) {
         Random random = new Random(seed);
         float[] noise = new float[sizeX * sizeY];
@@ -227,6 +287,18 @@ public final class Noise {
                                                  long seed, float initialHeight,
                                                  float initialScale, float scaleMultiplier,
                                                  int octaveCount, float initialAmplitude, float amplitudeMultiplier, float defaultHeight) {
+        return generateSimplexNoise(width, height, 0, 0, seed, initialHeight, initialScale, scaleMultiplier, octaveCount, initialAmplitude, amplitudeMultiplier, defaultHeight);
+    }
+
+    /**
+     * Like {@link #generateSimplexNoise(int, int, long, float, float, float, int, float, float, float)},
+     * but the grid starts at given origin of the noise, so that adjacent areas can be generated separately
+     * and their heights match where they meet.
+     */
+    public static Noise generateSimplexNoise(int width, int height, int originX, int originY,
+                                                 long seed, float initialHeight,
+                                                 float initialScale, float scaleMultiplier,
+                                                 int octaveCount, float initialAmplitude, float amplitudeMultiplier, float defaultHeight) {
         final OpenSimplexNoise noise = new OpenSimplexNoise();
 
         final float[] result = new float[width * height];
@@ -242,7 +314,7 @@ public final class Noise {
 
             for (int x = 0; x < width; x++) {
                 for (int y = 0; y < height; y++) {
-                    result[x + width * y] += noise.evaluate(x * scale, y * scale) * amplitude;
+                    result[x + width * y] += noise.evaluate((originX + x) * scale, (originY + y) * scale) * amplitude;
                 }
             }
 
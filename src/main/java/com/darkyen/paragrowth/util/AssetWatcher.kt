@@ -0,0 +1,111 @@
+package com.darkyen.paragrowth.util
+
+import com.badlogic.gdx.Gdx
+import com.badlogic.gdx.files.FileHandle
+import com.badlogic.gdx.utils.Disposable
+import java.io.IOException
+import java.nio.file.ClosedWatchServiceException
+import java.nio.file.FileSystems
+import java.nio.file.Path
+import java.nio.file.StandardWatchEventKinds
+import java.nio.file.WatchService
+
+/**
+ * Reloads assets when their files change, for development.
+ *
+ * Enabled by the `PARAGROWTH_DEV` environment variable. When disabled, [watch] does nothing and no thread is started.
+ * When enabled, a single thread waits on a [WatchService], so it wakes up only when something in the watched
+ * directories changes. Listeners are then run as [GlJobs], on the render thread.
+ */
+object AssetWatcher {
+
+    private const val LOG = "AssetWatcher"
+
+    val enabled = System.getenv("PARAGROWTH_DEV") != null
+
+    /** Listeners by watched file or directory */
+    private val listeners = HashMap<Path, GdxArray<() -> Unit>>()
+    private val registeredDirectories = HashSet<Path>()
+    /** Paths whose change is already posted and not yet handled, editors often report one save as multiple events */
+    private val pending = HashSet<Path>()
+
+    private val service:WatchService? by lazy {
+        if (!enabled) {
+            return@lazy null
+        }
+        val service = FileSystems.getDefault().newWatchService()
+        Thread({
+            try {
+                while (true) {
+                    val key = service.take()
+                    val directory = key.watchable() as Path
+                    for (event in key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            continue
+                        }
+                        val file = directory.resolve(event.context() as Path)
+                        changed(file)
+                        changed(directory)
+                    }
+                    key.reset()
+                }
+            } catch (e:InterruptedException) {
+                // Stopped
+            } catch (e:ClosedWatchServiceException) {
+                // Stopped
+            }
+        }, "AssetWatcher").apply {
+            isDaemon = true
+            start()
+        }
+        service
+    }
+
+    /** Call [onChange] on the render thread whenever [file] changes.
+     * When [file] is a directory, [onChange] is called when any file directly in it changes.
+     * @return disposable which stops the watching */
+    @JvmStatic
+    fun watch(file:FileHandle, onChange:() -> Unit):Disposable {
+        val service = service ?: return NOT_WATCHING
+        val path = file.file().toPath().toAbsolutePath().normalize()
+        val directory = if (file.isDirectory) path else path.parent
+
+        synchronized(listeners) {
+            if (registeredDirectories.add(directory)) {
+                try {
+                    directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY)
+                } catch (e:IOException) {
+                    Gdx.app.error(LOG, "Failed to watch $directory", e)
+                }
+            }
+            listeners.getOrPut(path) { GdxArray() }.add(onChange)
+        }
+
+        return Disposable {
+            synchronized(listeners) {
+                listeners[path]?.removeValue(onChange, true)
+            }
+        }
+    }
+
+    private fun changed(path:Path) {
+        synchronized(listeners) {
+            val pathListeners = listeners[path]
+            if (pathListeners == null || pathListeners.size == 0 || !pending.add(path)) {
+                return
+            }
+        }
+
+        onGlThread {
+            // Copy, listeners may watch or stop watching
+            val pathListeners = synchronized(listeners) {
+                pending.remove(path)
+                GdxArray(listeners[path] ?: return@onGlThread)
+            }
+            Gdx.app.log(LOG, "Reloading $path")
+            pathListeners.each { it() }
+        }
+    }
+
+    private val NOT_WATCHING = Disposable {}
+}
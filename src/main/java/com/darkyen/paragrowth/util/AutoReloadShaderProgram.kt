@@ -12,39 +12,15 @@ import java.nio.ByteOrder
  */
 class AutoReloadShaderProgram(val vertexShader:FileHandle, val fragmentShader:FileHandle) : ShaderProgram(vertexShader, fragmentShader) {
 
-    private var keepReloading = true
     init {
         if (!isCompiled) {
             throw IllegalArgumentException("Error compiling shader: $log")
         }
-
-        Thread({
-            val vertexFile = vertexShader.file().canonicalFile
-            val fragmentFile = fragmentShader.file().canonicalFile
-            var vertexModified = vertexFile.lastModified()
-            var fragmentModified = fragmentFile.lastModified()
-
-            while (keepReloading) {
-                val vMod = vertexFile.lastModified()
-                val fMod = fragmentFile.lastModified()
-
-                if (vMod != vertexModified || fragmentModified != fMod) {
-                    vertexModified = vMod
-                    fragmentModified = fMod
-
-                    Gdx.app.postRunnable {
-                        reload()
-                    }
-                }
-                Thread.sleep(2000)
-            }
-
-        }, "AutoReloadShaderProgram").apply {
-            isDaemon = true
-            start()
-        }
     }
 
+    private val vertexShaderWatch = AssetWatcher.watch(vertexShader, ::reload)
+    private val fragmentShaderWatch = AssetWatcher.watch(fragmentShader, ::reload)
+
     private var vertexShaderHandle by ReflectionMember<Int>(ShaderProgram::class.java, "vertexShaderHandle")
     private var fragmentShaderHandle by ReflectionMember<Int>(ShaderProgram::class.java, "fragmentShaderHandle")
     private var program by ReflectionMember<Int>(ShaderProgram::class.java, "program")
@@ -123,6 +99,7 @@ class AutoReloadShaderProgram(val vertexShader:FileHandle, val fragmentShader:Fi
 
     override fun dispose() {
         super.dispose()
-        keepReloading = false
+        vertexShaderWatch.dispose()
+        fragmentShaderWatch.dispose()
     }
 }
\ No newline at end of file
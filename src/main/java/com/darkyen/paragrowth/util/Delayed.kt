@@ -1,69 +1,193 @@
 package com.darkyen.paragrowth.util
 
 import com.darkyen.paragrowth.ParagrowthMain
-import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * Value, which is not immediately available, for some reason, but it can be polled for.
+ *
+ * Delayed values form a task graph. Stages created by [then], [map], [pairWith] and [andWaitFor]
+ * share the [TaskContext] of the stage they were created from, so cancelling any stage cancels the whole graph
+ * and all background work of the graph is started with the same [Priority].
  */
 interface Delayed<T : Any> {
 
-    /** Get the delayed item, or null if not done yet. */
+    /** Context of the graph this belongs to. */
+    val context:TaskContext
+
+    /** Approximate fraction of the work which is done, from 0 to 1. */
+    val progress:Float
+
+    /** Get the delayed item, or null if not done yet.
+     * Exceptions of the computation are rethrown as they are, [CancelledException] if the graph was cancelled. */
     fun poll():T?
 
-    /** Get the delayed item now, even if that means blocking. */
+    /** Get the delayed item now, even if that means blocking. Throws like [poll]. */
     fun get():T
+
+    /** Cancel the whole graph. Background work which has not started yet is dropped,
+     * running work stops at its next [CancellationToken.check]. Resources of cancelled stages are released. */
+    fun cancel() {
+        context.token.cancel()
+    }
+}
+
+/** Thrown when accessing work, whose [CancellationToken] was cancelled. */
+class CancelledException : RuntimeException("Cancelled", null, false, false)
+
+/**
+ * Cancellation flag shared by the stages of one task graph.
+ * Thread safe.
+ */
+class CancellationToken {
+
+    @Volatile
+    var isCancelled = false
+        private set
+
+    private var listeners:GdxArray<() -> Unit>? = GdxArray()
+
+    /** Call [listener] when cancelled, on the cancelling thread, or now, if already cancelled. */
+    fun onCancel(listener:() -> Unit) {
+        synchronized(this) {
+            val listeners = listeners
+            if (listeners != null) {
+                listeners.add(listener)
+                return
+            }
+        }
+        listener()
+    }
+
+    /** Remove [listener] added by [onCancel], when the work it would cancel is already over. */
+    fun removeOnCancel(listener:() -> Unit) {
+        synchronized(this) {
+            listeners?.removeValue(listener, true)
+        }
+    }
+
+    fun cancel() {
+        val listeners = synchronized(this) {
+            val listeners = listeners ?: return
+            this.listeners = null
+            isCancelled = true
+            listeners
+        }
+        listeners.each { it() }
+    }
+
+    /** To be called periodically by long running work.
+     * @throws CancelledException when cancelled */
+    fun check() {
+        if (isCancelled) {
+            throw CancelledException()
+        }
+    }
 }
 
-/** Produce [Delayed], which will perform [op] on the result of this [Delayed]. */
-inline fun <T:Any, T2:Any> Delayed<T>.then(crossinline op:(T)->Delayed<T2>):Delayed<T2> {
+/** Order in which queued background work is started. */
+enum class Priority {
+    /** Work, whose result the player is waiting for */
+    VISIBLE,
+    /** Work, whose result may never be needed */
+    PREFETCH
+}
+
+/**
+ * Cancellation token and priority of a task graph.
+ */
+class TaskContext(val token:CancellationToken, val priority:Priority) {
+
+    /** Run [op] with this as the [current] context. */
+    inline fun <R> within(op:() -> R):R {
+        val previous = CURRENT.get()
+        CURRENT.set(this)
+        try {
+            return op()
+        } finally {
+            CURRENT.set(previous)
+        }
+    }
+
+    companion object {
+        @PublishedApi
+        internal val CURRENT = ThreadLocal<TaskContext?>()
+
+        /** @return context of the stage which runs on this thread, or a new [Priority.VISIBLE] context if there is none */
+        fun current():TaskContext {
+            return CURRENT.get() ?: TaskContext(CancellationToken(), Priority.VISIBLE)
+        }
+    }
+}
+
+/** Produce [Delayed], which will perform [op] on the result of this [Delayed].
+ * [op] is called in the context of this, so that stages created by it belong to the same graph. */
+fun <T:Any, T2:Any> Delayed<T>.then(op:(T)->Delayed<T2>):Delayed<T2> {
+    val first = this
     return object : Delayed<T2> {
 
         var then:Delayed<T2>? = null
 
-        override fun poll(): T2? {
-            if (then == null) {
-                val first = this@then.poll() ?: return null
-                then = op(first)
+        override val context:TaskContext
+            get() = first.context
+
+        override val progress:Float
+            get() = (first.progress + (then?.progress ?: 0f)) * 0.5f
+
+        private fun start(value:T):Delayed<T2> {
+            val then = context.within { op(value) }
+            if (then.context.token !== context.token) {
+                context.token.onCancel(then::cancel)
             }
-            return then?.poll()
+            this.then = then
+            return then
         }
 
-        override fun get(): T2 {
-            val then = this.then ?: run {
-                val first = this@then.get()
-                val newThen = op(first)
-                this.then = newThen
-                newThen
-            }
+        override fun poll(): T2? {
+            context.token.check()
+            val then = then ?: start(first.poll() ?: return null)
+            return then.poll()
+        }
 
-            return then.get()
+        override fun get(): T2 {
+            context.token.check()
+            return (then ?: start(first.get())).get()
         }
     }
 }
 
 /** After this computation completes, map its result with [op].
- * [op] is guaranteed to be called only once. */
-inline fun <T:Any, T2:Any> Delayed<T>.map(crossinline op:(T) -> T2):Delayed<T2> {
+ * [op] is guaranteed to be called only once, on the polling thread, and not at all when cancelled. */
+fun <T:Any, T2:Any> Delayed<T>.map(op:(T) -> T2):Delayed<T2> {
+    val first = this
     return object : Delayed<T2> {
 
         var result:T2? = null
 
+        override val context:TaskContext
+            get() = first.context
+
+        override val progress:Float
+            get() = if (result != null) 1f else first.progress
+
         override fun poll(): T2? {
-            var result = result
-            if (result != null) {
-                return result
+            context.token.check()
+            return result ?: run {
+                val value = first.poll() ?: return null
+                val newResult = context.within { op(value) }
+                this.result = newResult
+                newResult
             }
-            val first = this@map.poll() ?: return null
-            result = op(first)
-            this.result = result
-            return result
         }
 
         override fun get(): T2 {
+            context.token.check()
             return result ?: run {
-                val first = this@map.get()
-                val newResult = op(first)
+                val value = first.get()
+                val newResult = context.within { op(value) }
                 this.result = newResult
                 newResult
             }
@@ -71,17 +195,32 @@ inline fun <T:Any, T2:Any> Delayed<T>.map(crossinline op:(T) -> T2):Delayed<T2>
     }
 }
 
+/** Cancel [other] together with this. */
+private fun Delayed<*>.adopt(other:Delayed<*>) {
+    if (other.context.token !== context.token) {
+        context.token.onCancel(other::cancel)
+    }
+}
+
 /** Allow this [Delayed] to return only after [other] does too. */
 fun <T:Any> Delayed<T>.andWaitFor(other:Delayed<*>):Delayed<T> {
+    adopt(other)
     return object : Delayed<T> {
+        override val context:TaskContext
+            get() = this@andWaitFor.context
+
+        override val progress:Float
+            get() = (this@andWaitFor.progress + other.progress) * 0.5f
+
         override fun poll(): T? {
-            if (other.poll() != null) {
-                return this@andWaitFor.poll()
-            }
-            return null
+            context.token.check()
+            // Poll both, so that both can progress
+            val value = this@andWaitFor.poll()
+            return if (other.poll() != null) value else null
         }
 
         override fun get(): T {
+            context.token.check()
             other.get()
             return this@andWaitFor.get()
         }
@@ -90,14 +229,24 @@ fun <T:Any> Delayed<T>.andWaitFor(other:Delayed<*>):Delayed<T> {
 }
 
 fun <T1:Any, T2:Any> Delayed<T1>.pairWith(other:Delayed<T2>):Delayed<Pair<T1, T2>> {
+    adopt(other)
     return object : Delayed<Pair<T1, T2>> {
+        override val context:TaskContext
+            get() = this@pairWith.context
+
+        override val progress:Float
+            get() = (this@pairWith.progress + other.progress) * 0.5f
+
         override fun poll(): Pair<T1, T2>? {
-            val v1 = this@pairWith.poll() ?: return null
-            val v2 = other.poll() ?: return null
-            return v1 to v2
+            context.token.check()
+            // Poll both, so that both can progress
+            val v1 = this@pairWith.poll()
+            val v2 = other.poll()
+            return if (v1 != null && v2 != null) v1 to v2 else null
         }
 
         override fun get(): Pair<T1, T2> {
+            context.token.check()
             val v1 = this@pairWith.get()
             val v2 = other.get()
             return v1 to v2
@@ -106,34 +255,181 @@ fun <T1:Any, T2:Any> Delayed<T1>.pairWith(other:Delayed<T2>):Delayed<Pair<T1, T2
     }
 }
 
-/** Offload [op] to a background thread. */
-inline fun <T:Any> offload(crossinline op:()->T):Delayed<T> {
-    val task = ParagrowthMain.WORKER_POOL.submit( Callable {
-        return@Callable op()
-    } )
+/** Done when all [stages] are. Its progress is the average progress of [stages]. */
+fun allOf(vararg stages:Delayed<*>):Delayed<Unit> {
+    val allContext = TaskContext.current()
+    return object : Delayed<Unit> {
+        override val context:TaskContext
+            get() = allContext
 
-    return object : Delayed<T> {
+        init {
+            for (stage in stages) {
+                adopt(stage)
+            }
+        }
 
-        override fun get(): T {
-            return task.get()
+        override val progress:Float
+            get() = if (stages.isEmpty()) 1f else stages.sumByDouble { it.progress.toDouble() }.toFloat() / stages.size
+
+        override fun poll(): Unit? {
+            context.token.check()
+            // Poll all, so that all can progress
+            var done = true
+            for (stage in stages) {
+                if (stage.poll() == null) {
+                    done = false
+                }
+            }
+            return if (done) Unit else null
         }
 
-        override fun poll(): T? {
-            return if (task.isDone) {
-                task.get()
-            } else {
-                null
+        override fun get() {
+            context.token.check()
+            for (stage in stages) {
+                stage.get()
             }
         }
     }
 }
 
+/**
+ * Work offloaded to [ParagrowthMain.WORKER_POOL] by [offload].
+ */
+class Task<T:Any> internal constructor(
+        override val context:TaskContext,
+        private val order:Float,
+        private val op:() -> T) : Delayed<T>, Comparable<Task<*>> {
+
+    private val sequence = SEQUENCE.getAndIncrement()
+    private val state = AtomicInteger(QUEUED)
+    @Volatile
+    private var result:T? = null
+    @Volatile
+    private var failure:Throwable? = null
+
+    private val settled = CountDownLatch(1)
+    /** Registered to [CancellationToken.onCancel] by [offload], removed when settled */
+    internal val dropOnCancel:() -> Unit = ::drop
+
+    override val progress:Float
+        get() = if (state.get() >= DONE) 1f else 0f
+
+    internal fun run() {
+        if (!state.compareAndSet(QUEUED, RUNNING)) {
+            return
+        }
+        try {
+            context.token.check()
+            result = context.within(op)
+            state.set(DONE)
+        } catch (e:Throwable) {
+            failure = e
+            state.set(FAILED)
+        }
+        settle()
+    }
+
+    /** Drop, if not started yet. */
+    internal fun drop() {
+        if (state.compareAndSet(QUEUED, DROPPED)) {
+            TaskScheduler.remove(this)
+            settle()
+        }
+    }
+
+    private fun settle() {
+        context.token.removeOnCancel(dropOnCancel)
+        settled.countDown()
+    }
+
+    /** Block until settled, without throwing. Work which has not started yet is run on this thread. */
+    fun await() {
+        if (TaskScheduler.remove(this)) {
+            run()
+        }
+        settled.await()
+    }
+
+    override fun poll():T? {
+        context.token.check()
+        return when (state.get()) {
+            DONE -> result
+            FAILED -> throw failure!!
+            DROPPED -> throw CancelledException()
+            else -> null
+        }
+    }
+
+    override fun get():T {
+        await()
+        return poll()!!
+    }
+
+    override fun compareTo(other:Task<*>):Int {
+        val byPriority = context.priority.compareTo(other.context.priority)
+        if (byPriority != 0) {
+            return byPriority
+        }
+        val byOrder = order.compareTo(other.order)
+        if (byOrder != 0) {
+            return byOrder
+        }
+        return sequence.compareTo(other.sequence)
+    }
+
+    private companion object {
+        private val SEQUENCE = AtomicLong()
+
+        private const val QUEUED = 0
+        private const val RUNNING = 1
+        private const val DONE = 2
+        private const val FAILED = 3
+        private const val DROPPED = 4
+    }
+}
+
+/**
+ * Starts queued [Task]s on [ParagrowthMain.WORKER_POOL], most important first.
+ *
+ * Each submitted task schedules one runner, which then runs whichever task is the most important at that time,
+ * so that the pool itself does not need to know about priorities.
+ */
+private object TaskScheduler {
+    private val queue = PriorityBlockingQueue<Task<*>>()
+    private val runNext = Runnable {
+        queue.poll()?.run()
+    }
+
+    fun submit(task:Task<*>) {
+        queue.add(task)
+        ParagrowthMain.WORKER_POOL.execute(runNext)
+    }
+
+    /** @return true if the task was queued and now it is not */
+    fun remove(task:Task<*>):Boolean {
+        return queue.remove(task)
+    }
+}
+
+/** Offload [op] to a background thread.
+ * It starts after all queued work of higher [TaskContext.priority] and, within the same priority, of lower [order].
+ * Long running [op] should periodically [CancellationToken.check] the token of [context]. */
+fun <T:Any> offload(context:TaskContext = TaskContext.current(), order:Float = 0f, op:()->T):Task<T> {
+    val task = Task(context, order, op)
+    context.token.onCancel(task.dropOnCancel)
+    TaskScheduler.submit(task)
+    return task
+}
+
 /** Call [op] immediately and return it. */
 inline fun <T:Any> immediate(crossinline op:()->T):Delayed<T> {
+    val immediateContext = TaskContext.current()
     val result = op()
 
     return object : Delayed<T> {
+        override val context:TaskContext = immediateContext
+        override val progress:Float get() = 1f
         override fun get(): T = result
         override fun poll(): T? = result
     }
-}
\ No newline at end of file
+}
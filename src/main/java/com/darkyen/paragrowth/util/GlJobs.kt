@@ -0,0 +1,149 @@
+package com.darkyen.paragrowth.util
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Queue of GL work which results from background stages.
+ *
+ * Jobs are posted from any thread and run on the render thread by [drain], which stops when the frame budget is spent,
+ * so that completing a large world is spread over multiple frames instead of making one frame spike.
+ * Jobs of cancelled graphs are dropped.
+ */
+object GlJobs {
+
+    /** How long may [drain] run each frame, at least one job is always run */
+    var frameBudgetMillis = 3f
+
+    private val queue = ConcurrentLinkedQueue<GlJob<*>>()
+    private val queued = AtomicInteger()
+
+    /** Amount of jobs waiting to be run */
+    val depth:Int
+        get() = queued.get()
+
+    /** Largest [depth] seen by [drain] */
+    var peakDepth = 0
+        private set
+
+    /** Amount of jobs run by last [drain] */
+    var lastDrainJobs = 0
+        private set
+
+    /** Time spent in last [drain] */
+    var lastDrainMillis = 0f
+        private set
+
+    internal fun post(job:GlJob<*>) {
+        queued.incrementAndGet()
+        queue.add(job)
+    }
+
+    /** @return true if the job was queued and now it is not */
+    internal fun remove(job:GlJob<*>):Boolean {
+        if (queue.remove(job)) {
+            queued.decrementAndGet()
+            return true
+        }
+        return false
+    }
+
+    /** Run queued jobs, until they run out or [frameBudgetMillis] is spent. Call once per frame on the render thread. */
+    fun drain() {
+        peakDepth = maxOf(peakDepth, queued.get())
+        val start = System.nanoTime()
+        val deadline = start + (frameBudgetMillis * 1_000_000f).toLong()
+        var jobs = 0
+        while (true) {
+            val job = queue.poll() ?: break
+            queued.decrementAndGet()
+            if (job.run()) {
+                jobs++
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                break
+            }
+        }
+        lastDrainJobs = jobs
+        lastDrainMillis = (System.nanoTime() - start) / 1_000_000f
+    }
+}
+
+/**
+ * Work posted to [GlJobs] by [onGlThread].
+ */
+class GlJob<T:Any> internal constructor(
+        override val context:TaskContext,
+        private val op:() -> T) : Delayed<T> {
+
+    private val state = AtomicInteger(QUEUED)
+    private var result:T? = null
+    private var failure:Throwable? = null
+
+    /** Registered to [CancellationToken.onCancel] by [onGlThread], removed when run */
+    internal val dropOnCancel:() -> Unit = ::drop
+
+    override val progress:Float
+        get() = if (state.get() >= DONE) 1f else 0f
+
+    /** @return true if the job was run, false if it was dropped */
+    internal fun run():Boolean {
+        if (!state.compareAndSet(QUEUED, RUNNING)) {
+            return false
+        }
+        try {
+            result = context.within(op)
+            state.set(DONE)
+        } catch (e:Throwable) {
+            failure = e
+            state.set(FAILED)
+        }
+        context.token.removeOnCancel(dropOnCancel)
+        return true
+    }
+
+    internal fun drop() {
+        if (state.compareAndSet(QUEUED, DROPPED)) {
+            GlJobs.remove(this)
+        }
+    }
+
+    override fun poll():T? {
+        context.token.check()
+        return when (state.get()) {
+            DONE -> result
+            FAILED -> throw failure!!
+            DROPPED -> throw CancelledException()
+            else -> null
+        }
+    }
+
+    /** Run now, if it was not yet. Must be called on the render thread. */
+    override fun get():T {
+        if (GlJobs.remove(this)) {
+            run()
+        }
+        return poll()!!
+    }
+
+    private companion object {
+        private const val QUEUED = 0
+        private const val RUNNING = 1
+        private const val DONE = 2
+        private const val FAILED = 3
+        private const val DROPPED = 4
+    }
+}
+
+/** Run [op] on the render thread, when [GlJobs] get to it. */
+fun <T:Any> onGlThread(context:TaskContext = TaskContext.current(), op:() -> T):GlJob<T> {
+    val job = GlJob(context, op)
+    context.token.onCancel(job.dropOnCancel)
+    GlJobs.post(job)
+    return job
+}
+
+/** Like [map], but [op] is queued to [GlJobs] instead of being run on the polling thread right away. */
+fun <T:Any, T2:Any> Delayed<T>.mapOnGlThread(op:(T) -> T2):Delayed<T2> {
+    return then { value -> onGlThread { op(value) } }
+}
@@ -0,0 +1,91 @@
+package com.darkyen.paragrowth.util
+
+import com.badlogic.gdx.math.MathUtils
+import com.badlogic.gdx.math.Vector2
+import kotlin.math.abs
+
+/** @return key of patch at patch coordinates [x], [y], for maps of patches */
+fun patchKey(x:Int, y:Int):Long {
+    return (x.toLong() shl 32) or (y.toLong() and 0xFFFF_FFFFL)
+}
+
+fun patchKeyX(key:Long):Int = (key shr 32).toInt()
+
+fun patchKeyY(key:Long):Int = key.toInt()
+
+/**
+ * Patches of size [patchWidth] x [patchHeight] around the player, which content streamed around the player keeps loaded.
+ *
+ * Patches at most [radiusX] and [radiusY] patches away from the patch of the player are wanted.
+ * Patches in the direction in which the player moves are loaded first, see [order].
+ */
+class PatchRing(val patchWidth:Float, val patchHeight:Float, val radiusX:Int, val radiusY:Int) {
+
+    /** Patch of the player */
+    var centerX = 0
+        private set
+    var centerY = 0
+        private set
+    private var placed = false
+
+    /** Position of the player, where the [heading] was last updated */
+    private val lastPosition = Vector2()
+    /** Unit direction of movement, zero when not known */
+    private val heading = Vector2()
+    /** Point in front of the player, to which are closer patches loaded first */
+    private val ahead = Vector2()
+
+    /** Amount of patches, which are wanted at any time */
+    val size:Int
+        get() = (2 * radiusX + 1) * (2 * radiusY + 1)
+
+    /** Update with the current position of the player.
+     * @return true if the player moved to another patch and other patches are wanted now */
+    fun update(playerX:Float, playerY:Float):Boolean {
+        if (!placed || lastPosition.dst2(playerX, playerY) >= HEADING_MIN_MOVE * HEADING_MIN_MOVE) {
+            if (placed) {
+                heading.set(playerX - lastPosition.x, playerY - lastPosition.y).nor()
+            }
+            lastPosition.set(playerX, playerY)
+        }
+        val lookahead = minOf(radiusX * patchWidth, radiusY * patchHeight) * LOOKAHEAD
+        ahead.set(heading).scl(lookahead).add(playerX, playerY)
+
+        val centerX = MathUtils.floor(playerX / patchWidth)
+        val centerY = MathUtils.floor(playerY / patchHeight)
+        if (placed && centerX == this.centerX && centerY == this.centerY) {
+            return false
+        }
+        placed = true
+        this.centerX = centerX
+        this.centerY = centerY
+        return true
+    }
+
+    /** @return true if the patch at [x], [y] is wanted, or at most [margin] patches outside of the wanted patches */
+    fun contains(x:Int, y:Int, margin:Int = 0):Boolean {
+        return abs(x - centerX) <= radiusX + margin && abs(y - centerY) <= radiusY + margin
+    }
+
+    /** @return order in which should be the patch at [x], [y] loaded, lower first.
+     * Squared distance of the patch from a point in front of the player, so it is also the order of unloading, higher first. */
+    fun order(x:Int, y:Int):Float {
+        return ahead.dst2((x + 0.5f) * patchWidth, (y + 0.5f) * patchHeight)
+    }
+
+    /** Call [action] with each wanted patch. */
+    inline fun forEach(action:(x:Int, y:Int) -> Unit) {
+        for (y in centerY - radiusY..centerY + radiusY) {
+            for (x in centerX - radiusX..centerX + radiusX) {
+                action(x, y)
+            }
+        }
+    }
+
+    private companion object {
+        /** How far must the player move, before the heading is updated, in world units */
+        private const val HEADING_MIN_MOVE = 4f
+        /** Where is the point in front of the player, relative to the smaller radius of the ring */
+        private const val LOOKAHEAD = 0.5f
+    }
+}
@@ -74,9 +74,11 @@ private fun dot(x:Float, y:Float, z:Float, vec:Vector3):Float {
 }
 
 fun Attributes.getBlendAt(x:Float, y:Float):Float {
-    val u_blend:Float = this[WORLD_BLEND_ATTRIBUTE][0]
-    val u_blendEdgeLeft = this[WORLD_BLEND_LEFT_ATTR]
-    val u_blendEdgeRight = this[WORLD_BLEND_RIGHT_ATTR]
+    return getBlendAt(x, y, this[WORLD_BLEND_ATTRIBUTE][0], this[WORLD_BLEND_LEFT_ATTR], this[WORLD_BLEND_RIGHT_ATTR])
+}
+
+/** Same as [Attributes.getBlendAt], with values of the attributes given directly. */
+fun getBlendAt(x:Float, y:Float, u_blend:Float, u_blendEdgeLeft:Vector3, u_blendEdgeRight:Vector3):Float {
     val MAX_EDGE_DIST_INV = 1f / 50f
 
 
@@ -8,22 +8,29 @@ import com.badlogic.gdx.graphics.g3d.utils.RenderContext
 import com.badlogic.gdx.graphics.g3d.utils.TextureDescriptor
 import com.badlogic.gdx.math.*
 import com.badlogic.gdx.utils.Align
+import com.darkyen.paragrowth.IncrementalTextAnalyzer
 import com.darkyen.paragrowth.TextAnalyzer
+import com.darkyen.paragrowth.WorldCharacteristics
 import com.darkyen.paragrowth.font.FontLoader
 import com.darkyen.paragrowth.font.GlyphLayout
 import com.darkyen.paragrowth.render.*
 import com.darkyen.paragrowth.terrain.WorldQuery
 import com.darkyen.paragrowth.util.*
-import org.lwjgl.opengl.GL15.GL_WRITE_ONLY
 import kotlin.math.roundToInt
 
 private val WORD_ATTRIBUTES = VertexAttributes(
         VertexAttribute("a_letter_xywh", GL30.GL_FLOAT, 4, instancingDivisor = 1),
         VertexAttribute("a_letter_uvu2v2", GL30.GL_FLOAT, 4, instancingDivisor = 1),
-        VertexAttribute("a_position_xyz", GL30.GL_FLOAT, 3, instancingDivisor = 1),
+        VertexAttribute("a_word", GL30.GL_FLOAT, 1, instancingDivisor = 1),
         VertexAttribute("a_color", GL30.GL_UNSIGNED_BYTE, 4, normalized = true, instancingDivisor = 1)
 )
 
+/** Each placed word occupies one slot. Limited by the size of the uniform array in the word shader. */
+private const val MAX_PLACED_WORDS = 240
+
+/** Position (xyz) and alpha (w) of each word slot, see [Words.wordState] */
+private val WORD_STATE_ATTRIBUTE = AttributeKey("wordState", ModelAttributeLayer, { FloatArray(MAX_PLACED_WORDS * 4) }) { null }
+
 private object AvailableWords {
     val positiveWords = GdxArray<String>()
     val negativeWords = GdxArray<String>()
@@ -32,11 +39,7 @@ private object AvailableWords {
     val maxWordLength:Int
 
     init {
-        TextAnalyzer.get().apply {
-            exportPositive(positiveWords)
-            exportNegative(negativeWords)
-            export(colorWords, colors)
-        }
+        load(TextAnalyzer.get(), positiveWords, negativeWords, colorWords, colors)
         var maxLength = 0
         for (word in positiveWords) {
             maxLength = maxOf(maxLength, word.length)
@@ -48,18 +51,65 @@ private object AvailableWords {
             maxLength = maxOf(maxLength, word.length)
         }
         maxWordLength = maxLength
+
+        TextAnalyzer.onReload { reload() }
+    }
+
+    private fun reload() {
+        val positive = GdxArray<String>()
+        val negative = GdxArray<String>()
+        val colorWords = GdxArray<String>()
+        val colors = GdxFloatArray()
+        load(TextAnalyzer.get(), positive, negative, colorWords, colors)
+
+        // Word slots are already allocated, longer words would not fit
+        removeLongerWords(positive, null)
+        removeLongerWords(negative, null)
+        removeLongerWords(colorWords, colors)
+
+        // Words are picked at random from each list, so keep the old ones rather than leave a list empty
+        if (positive.size > 0) {
+            positiveWords.clear()
+            positiveWords.addAll(positive)
+        }
+        if (negative.size > 0) {
+            negativeWords.clear()
+            negativeWords.addAll(negative)
+        }
+        if (colorWords.size > 0) {
+            this.colorWords.clear()
+            this.colorWords.addAll(colorWords)
+            this.colors.clear()
+            this.colors.addAll(colors)
+        }
+    }
+
+    private fun removeLongerWords(words:GdxArray<String>, colors:GdxFloatArray?) {
+        for (i in words.size - 1 downTo 0) {
+            if (words[i].length > maxWordLength) {
+                words.removeIndex(i)
+                colors?.removeIndex(i)
+            }
+        }
+    }
+
+    private fun load(analyzer:TextAnalyzer, positiveWords:GdxArray<String>, negativeWords:GdxArray<String>,
+                     colorWords:GdxArray<String>, colors:GdxFloatArray) {
+        analyzer.exportPositive(positiveWords)
+        analyzer.exportNegative(negativeWords)
+        analyzer.export(colorWords, colors)
     }
 }
 
 /**
  *
  */
-class Words(private val onCollectedTextChange:(Words, String) -> Unit) {
+class Words(private val onCollectedTextChange:(Words, IncrementalTextAnalyzer) -> Unit) {
 
-    private val worldText = StringBuilder()
+    /** Collected words, analyzed as they come */
+    private val worldText = IncrementalTextAnalyzer()
 
-    private val maxPlacedWords = 128
-    val placedWords = GdxArray<WorldWord>(maxPlacedWords)
+    val placedWords = GdxArray<WorldWord>(MAX_PLACED_WORDS)
     var enabled = true
         set(value) {
             if (field != value) {
@@ -77,70 +127,166 @@ class Words(private val onCollectedTextChange:(Words, String) -> Unit) {
                 0, 1, 2,
                 2, 3, 0))
     }
-    private val vertices = GlBuffer(GL_STREAM_DRAW).apply {
-        val bytes = WORD_ATTRIBUTES.getByteSize(4) * AvailableWords.maxWordLength * maxPlacedWords
-        reserve(bytes / 4, GL_FLOAT)
+    /** Floats per letter instance */
+    private val letterStride = WORD_ATTRIBUTES.getByteSize(4) / 4
+    /** Letter instances of each slot, written only when a word is placed into the slot. Unused letters are empty. */
+    private val slotFloats = AvailableWords.maxWordLength * letterStride
+    private val vertices = GlBuffer(GL_DYNAMIC_DRAW).apply {
+        reserve(slotFloats * MAX_PLACED_WORDS, GL_FLOAT)
+    }
+    private val slotVertices = FloatArray(slotFloats)
+    private val slotUsed = BooleanArray(MAX_PLACED_WORDS)
+    /** Slots from 0 until this may be used */
+    private var slotsInUse = 0
+    /** Position and alpha of each slot, the only thing which changes each frame */
+    private val wordState = FloatArray(MAX_PLACED_WORDS * 4)
+
+    private val vao = GlVertexArrayObject(indices, WORD_ATTRIBUTES,
+            GlVertexArrayObject.Binding(vertices, letterStride, 0),
+            GlVertexArrayObject.Binding(vertices, letterStride, 4),
+            GlVertexArrayObject.Binding(vertices, letterStride, 8),
+            GlVertexArrayObject.Binding(vertices, letterStride, 9)
+    )
+
+    private val slotDrawDelegate = object : GlyphLayout.DrawDelegate {
+
+        var slot = 0
+        var selectedColor = 0f
+        override fun setColor(color: Float) {
+            this.selectedColor = color
+        }
+
+        var i = 0
+        override fun draw(page: Int, x: Float, y: Float, width: Float, height: Float, u: Float, v: Float, u2: Float, v2: Float) {
+            var i = this.i
+            if (i + letterStride > slotVertices.size) {
+                return
+            }
+            val verts = slotVertices
+            verts[i++] = x
+            verts[i++] = y
+            verts[i++] = width
+            verts[i++] = height
+
+            verts[i++] = u
+            verts[i++] = v
+            verts[i++] = u2
+            verts[i++] = v2
+
+            verts[i++] = slot.toFloat()
+            verts[i++] = selectedColor.withAlpha(1f)
+            this.i = i
+        }
+    }
+
+    /** Occupy a free slot with the word and upload its letters. */
+    private fun placeIntoSlot(word:WorldWord) {
+        var slot = 0
+        while (slotUsed[slot]) {
+            slot++
+        }
+        slotUsed[slot] = true
+        slotsInUse = maxOf(slotsInUse, slot + 1)
+        word.slot = slot
+        writeSlot(word)
+    }
+
+    /** Upload letters of the word into its slot. */
+    private fun writeSlot(word:WorldWord) {
+        val slot = word.slot
+        java.util.Arrays.fill(slotVertices, 0f)
+        slotDrawDelegate.slot = slot
+        slotDrawDelegate.i = 0
+        word.glyphLayout.draw(slotDrawDelegate, -word.glyphLayout.width * 0.5f, word.glyphLayout.height)
+        vertices.setSubData(slot * slotFloats, slotVertices)
     }
 
-    private val vao = run {
-        val stride = WORD_ATTRIBUTES.getByteSize(4)/4
+    /** Version of [WORD_FONT] when the slots were written */
+    private var fontVersion = WORD_FONT.version
 
-        GlVertexArrayObject(indices, WORD_ATTRIBUTES,
-            GlVertexArrayObject.Binding(vertices, stride, 0),
-            GlVertexArrayObject.Binding(vertices, stride, 4),
-            GlVertexArrayObject.Binding(vertices, stride, 8),
-            GlVertexArrayObject.Binding(vertices, stride, 11)
-        )
+    private fun freeSlot(word:WorldWord) {
+        val slot = word.slot
+        slotUsed[slot] = false
+        while (slotsInUse > 0 && !slotUsed[slotsInUse - 1]) {
+            slotsInUse--
+        }
     }
 
+    private val worldArea = Rectangle()
+
+    private var candidateXs = FloatArray(0)
+    private var candidateYs = FloatArray(0)
+    private var candidateZs = FloatArray(0)
+
     private fun generateWords(amount:Int, area: Rectangle, avoid: Vector2, world: WorldQuery) {
         placedWords.ensureCapacity(amount)
         val avoidDistance = 50f
         val avoidDistance2 = avoidDistance * avoidDistance
 
+        if (candidateXs.size < amount) {
+            candidateXs = FloatArray(amount)
+            candidateYs = FloatArray(amount)
+            candidateZs = FloatArray(amount)
+        }
+        val candidateXs = candidateXs
+        val candidateYs = candidateYs
+        val candidateZs = candidateZs
+
         // May generate less words if there is no suitable place for them
         var remaining = amount
-        for (j in 0 until 10 * amount) {
-            val x = area.x + area.width * MathUtils.random()
-            val y = area.y + area.height * MathUtils.random()
-            val z = world.getHeightAt(x, y)
-
-            if (z < 0f || avoid.dst2(x, y) < avoidDistance2) {
-                continue
+        var triesLeft = 10 * amount
+        while (remaining > 0 && triesLeft > 0) {
+            // Each round tries as many candidate places as there are words left, with heights in one query
+            val round = minOf(remaining, triesLeft)
+            triesLeft -= round
+            for (j in 0 until round) {
+                candidateXs[j] = area.x + area.width * MathUtils.random()
+                candidateYs[j] = area.y + area.height * MathUtils.random()
             }
+            world.getHeightsAt(candidateXs, candidateYs, candidateZs, round)
 
+            for (j in 0 until round) {
+                val x = candidateXs[j]
+                val y = candidateYs[j]
+                val z = candidateZs[j]
 
-            val word:String
-            val color:Color
-            if (initialMode) {
-                word = "Paragrowth"
-                color = MathUtils.random.randomColor()
-            } else {
-                when (MathUtils.random.nextInt(3)) {
-                    0 -> {
-                        val wordIndex = MathUtils.random.nextInt(AvailableWords.positiveWords.size)
-                        word = AvailableWords.positiveWords[wordIndex]
-                        color = rgb(1f, 1f, 1f, 1f)
-                    }
-                    1 -> {
-                        val wordIndex = MathUtils.random.nextInt(AvailableWords.negativeWords.size)
-                        word = AvailableWords.negativeWords[wordIndex]
-                        color = rgb(0f, 0f, 0f, 1f)
-                    }
-                    else -> {
-                        val wordIndex = MathUtils.random.nextInt(AvailableWords.colorWords.size)
-                        word = AvailableWords.colorWords[wordIndex]
-                        color = AvailableWords.colors[wordIndex]
+                if (z < 0f || avoid.dst2(x, y) < avoidDistance2) {
+                    continue
+                }
+
+                val word:String
+                val color:Color
+                if (initialMode) {
+                    word = "Paragrowth"
+                    color = MathUtils.random.randomColor()
+                } else {
+                    when (MathUtils.random.nextInt(3)) {
+                        0 -> {
+                            val wordIndex = MathUtils.random.nextInt(AvailableWords.positiveWords.size)
+                            word = AvailableWords.positiveWords[wordIndex]
+                            color = rgb(1f, 1f, 1f, 1f)
+                        }
+                        1 -> {
+                            val wordIndex = MathUtils.random.nextInt(AvailableWords.negativeWords.size)
+                            word = AvailableWords.negativeWords[wordIndex]
+                            color = rgb(0f, 0f, 0f, 1f)
+                        }
+                        else -> {
+                            val wordIndex = MathUtils.random.nextInt(AvailableWords.colorWords.size)
+                            word = AvailableWords.colorWords[wordIndex]
+                            color = AvailableWords.colors[wordIndex]
+                        }
                     }
                 }
-            }
 
-            val ww = WorldWord(word, color)
-            ww.position.set(x, y, z)
-            placedWords.add(ww)
+                val ww = WorldWord(word, color)
+                ww.position.set(x, y, z)
+                placedWords.add(ww)
+                placeIntoSlot(ww)
 
-            if (--remaining <= 0) {
-                break
+                if (--remaining <= 0) {
+                    break
+                }
             }
         }
 
@@ -148,71 +294,43 @@ class Words(private val onCollectedTextChange:(Words, String) -> Unit) {
     }
 
     fun render(batch:RenderBatch) {
-        var letters = 0
-
-        vertices.accessMapped(GL_WRITE_ONLY, resetBefore=true) { byteVerts ->
-
-            val verts = byteVerts.asFloatBuffer()
-            val vertDrawDelegate = object : GlyphLayout.DrawDelegate {
-
-                var alpha = 1f
-
-                var selectedColor = 0f
-                override fun setColor(color: Float) {
-                    this.selectedColor = color
-                }
-
-                var positionX:Float = 0f
-                var positionY:Float = 0f
-                var positionZ:Float = 0f
-
-                var i = 0
-                override fun draw(page: Int, x: Float, y: Float, width: Float, height: Float, u: Float, v: Float, u2: Float, v2: Float) {
-                    // TODO(jp): Optimize
-                    var i = this.i
-                    verts.put(i++, x)
-                    verts.put(i++, y)
-                    verts.put(i++, width)
-                    verts.put(i++, height)
-
-                    verts.put(i++, u)
-                    verts.put(i++, v)
-                    verts.put(i++, u2)
-                    verts.put(i++, v2)
-
-                    verts.put(i++, positionX)
-                    verts.put(i++, positionY)
-                    verts.put(i++, positionZ)
-
-                    verts.put(i++, selectedColor.withAlpha(alpha))
-                    this.i = i
-                    letters++
-                }
-            }
-
-
+        val slotsInUse = slotsInUse
+        if (slotsInUse == 0) {
+            return
+        }
+        // Upload letters rasterized since the last frame
+        WORD_FONT.update()
+        if (fontVersion != WORD_FONT.version) {
+            // Font page grew, texture coordinates of written letters are no longer valid
+            fontVersion = WORD_FONT.version
             for (word in placedWords) {
-                if (word.fade < 0f) {
-                    continue
-                }
-
-                vertDrawDelegate.alpha = if (word.collected || !enabled) Interpolation.circleIn.apply(word.fade) else Interpolation.swingOut.apply(word.fade)
-                vertDrawDelegate.positionX = word.position.x
-                vertDrawDelegate.positionY = word.position.y
-                vertDrawDelegate.positionZ = if (word.collected || !enabled) word.position.z else word.position.z + Interpolation.circleIn.apply(word.fade) * 2f
-
-                word.glyphLayout.draw(vertDrawDelegate, -word.glyphLayout.width * 0.5f, word.glyphLayout.height)
+                writeSlot(word)
             }
         }
 
-        if (letters > 0) {
-            batch.render().apply {
-                primitiveType = GL_TRIANGLES
-                count = 6
-                vao = this@Words.vao
-                instances = letters
-                shader = WordShader
+        // Letters of slots with zero alpha collapse into a point and are not rasterized
+        val wordState = wordState
+        java.util.Arrays.fill(wordState, 0, slotsInUse * 4, 0f)
+        for (word in placedWords) {
+            if (word.fade < 0f) {
+                continue
             }
+
+            val fadingOut = word.collected || !enabled
+            var i = word.slot * 4
+            wordState[i++] = word.position.x
+            wordState[i++] = word.position.y
+            wordState[i++] = if (fadingOut) word.position.z else word.position.z + Interpolation.circleIn.apply(word.fade) * 2f
+            wordState[i] = if (fadingOut) Interpolation.circleIn.apply(word.fade) else Interpolation.swingOut.apply(word.fade)
+        }
+
+        batch.render().apply {
+            attributes[WORD_STATE_ATTRIBUTE] = wordState
+            primitiveType = GL_TRIANGLES
+            count = 6
+            vao = this@Words.vao
+            instances = slotsInUse * AvailableWords.maxWordLength
+            shader = WordShader
         }
     }
 
@@ -230,6 +348,7 @@ class Words(private val onCollectedTextChange:(Words, String) -> Unit) {
             } else if (!ww.fadeIn) {
                 ww.fade -= if (ww.collected) collectedFadeChange else fadeChange
                 if (ww.fade < 0f) {
+                    freeSlot(ww)
                     return@removeAll true // -> remove
                 }
             }
@@ -238,28 +357,60 @@ class Words(private val onCollectedTextChange:(Words, String) -> Unit) {
                 ww.collected = true
                 ww.fade = 1f
                 ww.fadeIn = false
-                worldText.append(' ').append(ww.word)
-                onCollectedTextChange(this, worldText.toString())
+                worldText.append(" ")
+                worldText.append(ww.word)
+                onCollectedTextChange(this, worldText)
             }
 
             false // -> keep
         }
 
         if (enabled) {
-            val worldArea = world.getDimensions()
-            val targetWordAmount = MathUtils.clamp((worldArea.area() / (100f * 100f)).roundToInt(), 3, maxPlacedWords)
+            val worldArea = world.getDimensions(this.worldArea)
+            val targetWordAmount = MathUtils.clamp((worldArea.area() / (100f * 100f)).roundToInt(), 3, MAX_PLACED_WORDS)
             if (placedWords.size < targetWordAmount) {
                 generateWords(minOf(targetWordAmount - placedWords.size, 5), worldArea, playerPosition, world)
             }
         }
     }
 
+    private val guessWords = GdxArray<WorldWord>(false, 16, WorldWord::class.java)
+
+    /**
+     * Guess, what will the collected text be after the next word is collected.
+     * @param amount of words closest to [playerPosition] to guess with
+     * @param out characteristics of collected text with each guessed word, closest first
+     */
+    fun guessNextCharacteristics(playerPosition:Vector2, amount:Int, out:GdxArray<WorldCharacteristics>) {
+        val guessWords = guessWords
+        placedWords.each { ww ->
+            if (!ww.collected && (ww.fadeIn || ww.fade > 0.2f)) {
+                guessWords.add(ww)
+            }
+        }
+        guessWords.sort { a, b ->
+            playerPosition.dst2(a.position.x, a.position.y).compareTo(playerPosition.dst2(b.position.x, b.position.y))
+        }
+
+        // Same as in update
+        val length = worldText.length()
+        for (i in 0 until minOf(amount, guessWords.size)) {
+            worldText.append(" ")
+            worldText.append(guessWords[i].word)
+            out.add(worldText.characteristics)
+            worldText.delete(length, worldText.length())
+        }
+        guessWords.clear()
+    }
+
     class WorldWord(val word:String, color:Color) {
         val position = Vector3()
 
         var fade = MathUtils.random(-1f, 0f)
         var fadeIn = true
         var collected = false
+        /** Index of the slot in which the letters are stored */
+        var slot = 0
 
         val glyphLayout = GlyphLayout(WORD_FONT, false).apply {
             setText(word, color, 0f, Align.left)
@@ -268,9 +419,10 @@ class Words(private val onCollectedTextChange:(Words, String) -> Unit) {
 
 }
 
-private val WORD_FONT = FontLoader.loadFont(Gdx.files.local("Avara.ttf"), 50, 4f)
+/** Distance field, so that the letters stay sharp up close, alpha tested at the edge */
+private val WORD_FONT = FontLoader.loadDynamicDistanceFieldFont(Gdx.files.local("Avara.ttf"), 50, FontLoader.ASCII)
 
-object WordShader : Shader(DOODADS, "word", WORD_ATTRIBUTES) {
+object WordShader : Shader(DOODADS, "word", WORD_ATTRIBUTES, defines = mapOf("MAX_PLACED_WORDS" to MAX_PLACED_WORDS.toString())) {
 
     init {
         globalUniform("u_projViewTrans") { uniform, camera, _ ->
@@ -280,8 +432,14 @@ object WordShader : Shader(DOODADS, "word", WORD_ATTRIBUTES) {
         val fontTextureDescriptor = TextureDescriptor(WORD_FONT.pages[0], Texture.TextureFilter.Linear, Texture.TextureFilter.Linear, Texture.TextureWrap.ClampToEdge, Texture.TextureWrap.ClampToEdge)
 
         globalUniform("u_font_texture") { uniform, _, _ ->
+            // Page is replaced when it grows
+            fontTextureDescriptor.texture = WORD_FONT.pages[0]
             uniform.set(fontTextureDescriptor)
         }
+
+        localUniform("u_word_position_alpha") { uniform, _, renderable ->
+            uniform.set4(renderable.attributes[WORD_STATE_ATTRIBUTE], MAX_PLACED_WORDS)
+        }
     }
 
     override fun adjustContext(context: RenderContext) {